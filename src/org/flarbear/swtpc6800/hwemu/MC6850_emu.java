@@ -103,6 +103,36 @@ public class MC6850_emu {
         return IRQ.readOnly();
     }
 
+    /****** Transaction-level connection to another emulated device ******/
+
+    /**
+     * A receiver of whole characters from an ACIA that is running in
+     * transaction-level mode. When both ends of a serial link are emulated
+     * there is no need to clock every bit across the RxData/TxData lines,
+     * the transmitter simply hands over the character once the time it
+     * would have taken to shift out the entire frame has elapsed.
+     */
+    @FunctionalInterface
+    public interface CharacterSink {
+        public void receiveCharacter(byte data);
+    }
+
+    private CharacterSink transactionPeer;
+    private byte frameData;
+    private boolean frameIsBreak;
+    private int frameTicksRemaining;
+
+    public void connectTransactional(CharacterSink peer) {
+        if (peer == null) {
+            throw new IllegalArgumentException("Transactional peer cannot be null");
+        }
+        this.transactionPeer = peer;
+    }
+
+    public boolean isTransactional() {
+        return transactionPeer != null;
+    }
+
     /****** Lines connecting the MC6850 to the other serial terminal ******/
 
     private final LineState.Boolean TxData;
@@ -181,9 +211,10 @@ public class MC6850_emu {
             case 0b01 -> newDivisor = 16;
             case 0b10 -> newDivisor = 64;
             default -> {
-                // Master reset
-                status = 0;
+                // Master reset, the transmit data register comes out empty
+                status = TDRE_BIT;
                 running = true;
+                frameTicksRemaining = 0;
                 return;
             }
         }
@@ -404,6 +435,64 @@ public class MC6850_emu {
         }
     }
 
+    private int frameBits() {
+        return 1 + (eightDataBits ? 8 : 7) + (parity != Parity.None ? 1 : 0) + (twoStopBits ? 2 : 1);
+    }
+
+    /**
+     * Deliver a whole character as if its frame had just been clocked in
+     * through the RxData line. The status bits are updated the same way
+     * that receiveClockFired() would update them at the end of a frame,
+     * including inhibiting the transfer into the receive data register if
+     * the previous character has not yet been read.
+     */
+    public void receiveCharacter(byte data) {
+        setStatus(PE_BIT, false);
+        setStatus(FE_BIT, false);
+        if (getStatus(RDRF_BIT)) {
+            setStatus(OVRN_BIT, true);
+        } else {
+            receiveData = eightDataBits ? data : (byte) (data & 0x7F);
+            setStatus(RDRF_BIT, true);
+        }
+        if (receiveInterruptEnabled) {
+            setStatus(IRQ_BIT, true);
+        }
+    }
+
+    /**
+     * Replaces both the receive and transmit bit clocks when the ACIA is
+     * in transaction-level mode. The only work done per clock is to count
+     * down the remaining time of a frame in flight, all of the shifting,
+     * framing and parity work is skipped. Receiving is driven entirely by
+     * the peer calling receiveCharacter().
+     */
+    public void transactionClockFired() {
+        if (frameTicksRemaining > 0) {
+            if (--frameTicksRemaining == 0 && !frameIsBreak) {
+                transactionPeer.receiveCharacter(frameData);
+            }
+            return;
+        }
+        if (sendBREAK) {
+            // Two full characters with all start/stop/parity bits, nothing
+            // is delivered to the peer.
+            frameIsBreak = true;
+            frameTicksRemaining = baudDivisor * 20;
+            sendBREAK = false;
+        } else if (!getStatus(TDRE_BIT)) {
+            // Move the data to the (virtual) shift register and start
+            // timing the frame.
+            frameIsBreak = false;
+            frameData = eightDataBits ? transmitData : (byte) (transmitData & 0x7F);
+            frameTicksRemaining = baudDivisor * frameBits();
+            setStatus(TDRE_BIT, true);
+            if (transmitInterruptEnabled) {
+                setStatus(IRQ_BIT, true);
+            }
+        }
+    }
+
     public void bothClocksFired(Transition transition) {
         receiveClockFired();
         transmitClockFired();
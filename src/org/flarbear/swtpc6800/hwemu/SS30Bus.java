@@ -49,7 +49,7 @@ import org.flarbear.swtpc6800.hwemu.SignalState.Transition;
  *
  * @author Flar
  */
-public class SS30Bus {
+public class SS30Bus implements BusState.Source {
     public enum Line {
         UD0(1),
         UD1(),
@@ -386,6 +386,11 @@ public class SS30Bus {
         }
     }
 
+    @Override
+    public void addListener(BusState.Listener listener) {
+        shared.addListener(listener);
+    }
+
     public byte getData() {
         return (byte) (shared.curLines(slot) >> Line.D0.index);
     }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.hwemu;
+
+import org.flarbear.swtpc6800.simulator.DiskImage;
+import org.flarbear.swtpc6800.simulator.FD1771;
+import org.flarbear.swtpc6800.simulator.VirtualClock;
+
+/**
+ * A DC-1 floppy disk controller on the emulated SS-30 bus.
+ *
+ * The FD1771 answers when the card's slot is selected, with RS0 and RS1
+ * picking the register. On a motherboard with the DC-1 modification UD0
+ * is driven high whenever slot 5 is selected, and the card latches the
+ * drive number from the data lines on those writes. The controller and
+ * its disk images are the same ones the simulator uses. Disk time is
+ * kept by counting Phi2 cycles.
+ *
+ * @author Flar
+ */
+public class SWTPc_DC_1_emu extends SS30Card {
+    public SWTPc_DC_1_emu() {
+        this.controller = new FD1771();
+        this.clock = new VirtualClock();
+        controller.connectClock(clock);
+    }
+
+    private final FD1771 controller;
+    private final VirtualClock clock;
+
+    private SS30Bus busState;
+
+    public FD1771 getController() {
+        return controller;
+    }
+
+    public void insert(int drive, DiskImage disk) {
+        controller.insert(drive, disk);
+    }
+
+    public DiskImage eject(int drive) {
+        return controller.eject(drive);
+    }
+
+    public void setNoRotationalDelay(boolean noDelay) {
+        controller.setNoRotationalDelay(noDelay);
+    }
+
+    @Override
+    public void connect(SS30Bus busState) {
+        if (this.busState != null) {
+            throw new IllegalStateException("DC-1 already installed on MP-B");
+        }
+        this.busState = busState;
+        busState.Phi2Rising().addListener(this::busClock);
+    }
+
+    private void busClock(SignalState.Transition transition) {
+        clock.advance(1);
+        if (busState.isFalling(SS30Bus.Line.RESET)) {
+            // RESET is active low
+            controller.reset();
+            return;
+        }
+        boolean read = busState.isHigh(SS30Bus.Line.R_W);
+        if (busState.isHigh(SS30Bus.Line.BoardSelect)) {
+            int reg = (busState.isHigh(SS30Bus.Line.RS1) ? 2 : 0)
+                    | (busState.isHigh(SS30Bus.Line.RS0) ? 1 : 0);
+            if (read) {
+                busState.setData(controller.readRegister(reg));
+            } else {
+                controller.writeRegister(reg, busState.getData());
+            }
+        } else if (busState.isHigh(SS30Bus.Line.UD0)) {
+            if (read) {
+                busState.setData((byte) controller.getSelectedDrive());
+            } else {
+                controller.selectDrive(busState.getData() & 3);
+            }
+        }
+    }
+}
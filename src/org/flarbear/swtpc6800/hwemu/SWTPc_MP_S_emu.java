@@ -50,6 +50,32 @@ public class SWTPc_MP_S_emu extends SS30Card {
         baudTrigger.addListener(this::clockOut);
     }
 
+    /**
+     * Connect the ACIA on this card at the transaction level so that whole
+     * characters are handed to the peer after the computed character time
+     * rather than being clocked out bit by bit on the baud line.
+     */
+    public void connectTransactional(MC6850_emu.CharacterSink peer) {
+        Acia.connectTransactional(peer);
+    }
+
+    /**
+     * The sink that an emulated peer should use to deliver whole characters
+     * to this card when the link is running at the transaction level.
+     */
+    public MC6850_emu.CharacterSink getTransactionalInput() {
+        return Acia::receiveCharacter;
+    }
+
+    /**
+     * Connect two emulated MP-S cards to each other at the transaction
+     * level in both directions.
+     */
+    public void connectTransactional(SWTPc_MP_S_emu peer) {
+        connectTransactional(peer.getTransactionalInput());
+        peer.connectTransactional(getTransactionalInput());
+    }
+
     private void busClock(Transition transition) {
         Byte data = Acia.enableFired(transition);
         if (data != null) {
@@ -58,6 +84,10 @@ public class SWTPc_MP_S_emu extends SS30Card {
     }
 
     private void clockOut(Transition transition) {
+        if (Acia.isTransactional()) {
+            Acia.transactionClockFired();
+            return;
+        }
         if (CO_Listener != null) {
             CO_Listener.signalFired(transition);
         }
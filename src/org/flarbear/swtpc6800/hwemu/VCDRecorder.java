@@ -0,0 +1,275 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.hwemu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongSupplier;
+
+/**
+ * Streams the state of a bus to a Value Change Dump (VCD) file which can
+ * be opened in a waveform viewer such as GTKWave.
+ *
+ * The recorder listens to the bus and, whenever new lines are pushed,
+ * compares the packed line state against the previously recorded state.
+ * Only the lines selected by the mask which actually changed are written,
+ * and a timestamp is only written when at least one of them changed, so
+ * a quiet bus costs one XOR and one compare per push.
+ *
+ * Each push of the bus lines counts as one time step. The time steps are
+ * scaled by the nanosecond period given to the constructor so that the
+ * viewer shows approximately real time.
+ *
+ * Recording can be delayed until a start Trigger sees a matching state
+ * on the bus, for example a specific address with VMA high, and can be
+ * ended by a stop Trigger.
+ *
+ * @author Flar
+ */
+public class VCDRecorder implements BusState.Listener, Closeable {
+    /**
+     * The MP-A pushes the SS-50 lines 4 times per processor cycle of
+     * roughly 1113ns (phi1 and phi2 leading and trailing edges).
+     */
+    public static final int SS50_PUSH_NS = 278;
+
+    /**
+     * A condition on the packed line state of a bus.
+     */
+    @FunctionalInterface
+    public interface Trigger {
+        public boolean fires(long lines);
+
+        public static Trigger SS50AddressWithVMA(char address) {
+            final long mask = SS50Bus.AddressMask((char) 0xFFFF) | SS50Bus.Line.VMA.bit;
+            final long value = SS50Bus.AddressMask(address) | SS50Bus.Line.VMA.bit;
+            return (lines) -> (lines & mask) == value;
+        }
+
+        public static Trigger linesMatch(long mask, long value) {
+            return (lines) -> (lines & mask) == value;
+        }
+    }
+
+    public static VCDRecorder forSS50(SS50Bus bus, Path file, long mask) throws IOException {
+        String names[] = new String[64];
+        for (SS50Bus.Line line : SS50Bus.Line.values()) {
+            if (line.bit != 0) {
+                names[line.index] = line.name();
+            }
+        }
+        VCDRecorder recorder = new VCDRecorder(bus::currentLines, names, mask,
+                                               openChannel(file), "ss50", SS50_PUSH_NS);
+        bus.addListener(recorder);
+        return recorder;
+    }
+
+    public static VCDRecorder forSS30(SS30Bus bus, Path file, int mask, int pushNanos) throws IOException {
+        String names[] = new String[64];
+        for (SS30Bus.Line line : SS30Bus.Line.values()) {
+            if (line.bit != 0) {
+                names[line.index] = line.name();
+            }
+        }
+        VCDRecorder recorder = new VCDRecorder(() -> bus.currentLines() & 0xFFFFFFFFL, names,
+                                               mask & 0xFFFFFFFFL,
+                                               openChannel(file), "ss30", pushNanos);
+        bus.addListener(recorder);
+        return recorder;
+    }
+
+    private static WritableByteChannel openChannel(Path file) throws IOException {
+        return FileChannel.open(file,
+                                StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE,
+                                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Enough room for a timestamp plus a change record for all 64 lines
+    private static final int FLUSH_THRESHOLD = 64 * 4 + 32;
+
+    public VCDRecorder(LongSupplier lineSource, String names[], long mask,
+                       WritableByteChannel channel, String scope, int pushNanos)
+    {
+        if (names.length > 64) {
+            throw new IllegalArgumentException("At most 64 lines can be recorded");
+        }
+        long namedMask = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                namedMask |= (1L << i);
+            }
+        }
+        this.lineSource = lineSource;
+        this.names = names.clone();
+        this.mask = mask & namedMask;
+        this.channel = channel;
+        this.scope = scope;
+        this.pushNanos = pushNanos;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private final LongSupplier lineSource;
+    private final String names[];
+    private final long mask;
+    private final WritableByteChannel channel;
+    private final String scope;
+    private final int pushNanos;
+    private final ByteBuffer buffer;
+
+    private Trigger startTrigger;
+    private Trigger stopTrigger;
+
+    private long step;
+    private long lastLines;
+    private boolean started;
+    private boolean stopped;
+    private IOException failure;
+
+    public void setStartTrigger(Trigger trigger) {
+        if (started) {
+            throw new IllegalStateException("Recording has already started");
+        }
+        this.startTrigger = trigger;
+    }
+
+    public void setStopTrigger(Trigger trigger) {
+        this.stopTrigger = trigger;
+    }
+
+    public boolean isRecording() {
+        return started && !stopped;
+    }
+
+    @Override
+    public void busStateChanged() {
+        step++;
+        if (stopped) {
+            return;
+        }
+        long lines = lineSource.getAsLong();
+        try {
+            if (!started) {
+                if (startTrigger != null && !startTrigger.fires(lines)) {
+                    return;
+                }
+                started = true;
+                writeHeader(lines);
+            } else {
+                long changed = (lines ^ lastLines) & mask;
+                if (changed != 0) {
+                    writeChanges(lines, changed);
+                }
+            }
+            lastLines = lines;
+            if (stopTrigger != null && stopTrigger.fires(lines)) {
+                stopped = true;
+                drain();
+            }
+        } catch (IOException e) {
+            failure = e;
+            stopped = true;
+        }
+    }
+
+    private void writeHeader(long lines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("$version SWTPc 6800 hwemu bus recorder $end\n");
+        sb.append("$timescale 1ns $end\n");
+        sb.append("$scope module ").append(scope).append(" $end\n");
+        for (int i = 0; i < names.length; i++) {
+            if ((mask & (1L << i)) != 0) {
+                sb.append("$var wire 1 ").append((char) identifier(i)).append(' ')
+                  .append(names[i]).append(" $end\n");
+            }
+        }
+        sb.append("$upscope $end\n");
+        sb.append("$enddefinitions $end\n");
+        buffer.put(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        putTimestamp();
+        buffer.put((byte) '$').put((byte) 'd').put((byte) 'u').put((byte) 'm').put((byte) 'p')
+              .put((byte) 'v').put((byte) 'a').put((byte) 'r').put((byte) 's').put((byte) '\n');
+        putLines(lines, mask);
+        buffer.put((byte) '$').put((byte) 'e').put((byte) 'n').put((byte) 'd').put((byte) '\n');
+        if (buffer.remaining() < FLUSH_THRESHOLD) {
+            drain();
+        }
+    }
+
+    private void writeChanges(long lines, long changed) throws IOException {
+        putTimestamp();
+        putLines(lines, changed);
+        if (buffer.remaining() < FLUSH_THRESHOLD) {
+            drain();
+        }
+    }
+
+    private void putTimestamp() {
+        buffer.put((byte) '#');
+        long t = step * pushNanos;
+        if (t == 0) {
+            buffer.put((byte) '0');
+        } else {
+            int start = buffer.position();
+            while (t > 0) {
+                buffer.put((byte) ('0' + (int) (t % 10)));
+                t /= 10;
+            }
+            // The digits were produced least significant first
+            int end = buffer.position() - 1;
+            while (start < end) {
+                byte tmp = buffer.get(start);
+                buffer.put(start++, buffer.get(end));
+                buffer.put(end--, tmp);
+            }
+        }
+        buffer.put((byte) '\n');
+    }
+
+    private void putLines(long lines, long which) {
+        while (which != 0) {
+            int i = Long.numberOfTrailingZeros(which);
+            which &= which - 1;
+            buffer.put(((lines >> i) & 1) != 0 ? (byte) '1' : (byte) '0');
+            buffer.put(identifier(i));
+            buffer.put((byte) '\n');
+        }
+    }
+
+    private static byte identifier(int index) {
+        // VCD identifiers are printable ASCII starting at '!'
+        return (byte) ('!' + index);
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopped = true;
+        try {
+            if (failure == null) {
+                drain();
+            }
+        } finally {
+            channel.close();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shows a CT64Screen on an ANSI terminal attached to the host's stdio.
+ *
+ * The bridge remembers what it last put on the host terminal and, at most
+ * once per frame, sends only what is needed to turn that into the current
+ * screen. Like curses it picks whichever cursor motion is shortest (an
+ * absolute position, relative moves, a carriage return or just rewriting
+ * the characters that are already there) and it mirrors CT-64 scrolls
+ * with a host scroll region instead of redrawing every row. Output that
+ * arrives faster than the frame rate is simply folded into the next frame,
+ * so a slow link only ever sees the latest screen.
+ *
+ * Bytes typed on the host go to the keyboard queue, or to the device the
+ * screen is connected to if no queue was supplied. Typing ^\ or the end
+ * of the host's input detaches the bridge, which waitForDetach() reports
+ * so that the caller can decide whether to exit.
+ */
+public class AnsiTerminal implements CT64Screen.Listener {
+    public static final int DEFAULT_FRAMES_PER_SECOND = 30;
+
+    private static final int SCRCOLS = CT64Screen.SCRCOLS;
+    private static final int SCRROWS = CT64Screen.SCRROWS;
+    private static final byte ESC = 0x1b;
+    private static final int QUIT_KEY = 0x1c;
+
+    private final CT64Screen theScreen;
+    private final InputStream in;
+    private final OutputStream out;
+    private final long frameNanos;
+
+    private ByteRing keyboard;
+    private boolean upperCaseLock = true;
+
+    // Guarded by the lock on theScreen
+    private boolean dirty;
+    private int pendingScrolls;
+
+    // Only touched by the render thread
+    private final byte current[] = new byte[SCRROWS * SCRCOLS];
+    private final byte shown[] = new byte[SCRROWS * SCRCOLS];
+    private final ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    private int hostRow;
+    private int hostCol;
+
+    private volatile Thread renderThread;
+    private Thread inputThread;
+    private boolean active;
+    private boolean detached;
+    private String savedTtyMode;
+
+    public AnsiTerminal(CT64Screen screen, InputStream in, OutputStream out) {
+        this(screen, in, out, DEFAULT_FRAMES_PER_SECOND);
+    }
+
+    public AnsiTerminal(CT64Screen screen, InputStream in, OutputStream out,
+                        int framesPerSecond)
+    {
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("frame rate must be positive");
+        }
+        this.theScreen = screen;
+        this.in = in;
+        this.out = out;
+        this.frameNanos = 1000000000L / framesPerSecond;
+    }
+
+    /**
+     * Send keystrokes through a lock-free queue, such as one opened with
+     * SWTPc_MP_S.openInputQueue(), rather than through the screen's
+     * serial connection.
+     */
+    public void connectKeyboard(ByteRing queue) {
+        this.keyboard = queue;
+    }
+
+    public void setUpperCaseLock(boolean lock) {
+        this.upperCaseLock = lock;
+    }
+
+    public synchronized void start() {
+        if (renderThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        active = true;
+        enterRawMode();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::restore));
+        for (int i = 0; i < shown.length; i++) {
+            shown[i] = ' ';
+        }
+        // Clear the host screen and home the cursor
+        try {
+            out.write("\u001b[H\u001b[2J".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (IOException e) {
+        }
+        hostRow = hostCol = 0;
+        synchronized (theScreen) {
+            theScreen.addListener(this);
+            dirty = true;
+            pendingScrolls = 0;
+        }
+        renderThread = new Thread(this::renderLoop, "CT-64 ANSI renderer");
+        renderThread.setDaemon(true);
+        renderThread.start();
+        // Not a daemon, the bridge keeps the process alive until ^\ or EOF
+        inputThread = new Thread(this::inputLoop, "CT-64 ANSI keyboard");
+        inputThread.start();
+    }
+
+    public synchronized void stop() {
+        Thread t = renderThread;
+        if (t == null) {
+            return;
+        }
+        renderThread = null;
+        LockSupport.unpark(t);
+        theScreen.removeListener(this);
+        restore();
+    }
+
+    @Override
+    public void cellsChanged(int row, long columns) {
+        wake();
+    }
+
+    @Override
+    public void scrolled() {
+        pendingScrolls++;
+        wake();
+    }
+
+    @Override
+    public void cursorMoved(int oldpos, int newpos) {
+        wake();
+    }
+
+    private void wake() {
+        if (!dirty) {
+            dirty = true;
+            Thread t = renderThread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    private void renderLoop() {
+        Thread me = Thread.currentThread();
+        long nextFrame = System.nanoTime();
+        while (renderThread == me) {
+            long now = System.nanoTime();
+            if (now < nextFrame) {
+                LockSupport.parkNanos(nextFrame - now);
+                continue;
+            }
+            int scrolls;
+            int cursor;
+            synchronized (theScreen) {
+                if (!dirty) {
+                    scrolls = -1;
+                    cursor = 0;
+                } else {
+                    dirty = false;
+                    scrolls = pendingScrolls;
+                    pendingScrolls = 0;
+                    for (int r = 0; r < SCRROWS; r++) {
+                        theScreen.copyRow(r, current, r * SCRCOLS);
+                    }
+                    cursor = theScreen.getCursorPos();
+                }
+            }
+            if (scrolls < 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            renderFrame(scrolls, cursor);
+            nextFrame = System.nanoTime() + frameNanos;
+        }
+    }
+
+    private void renderFrame(int scrolls, int cursor) {
+        frame.reset();
+        // Hide the cursor while it jumps around
+        escape("[?25l");
+        int empty = frame.size();
+        if (scrolls > 0 && scrolls < SCRROWS) {
+            scrollHost(scrolls);
+        }
+        for (int r = 0; r < SCRROWS; r++) {
+            int rowstart = r * SCRCOLS;
+            for (int c = 0; c < SCRCOLS; c++) {
+                byte ch = current[rowstart + c];
+                if (ch != shown[rowstart + c]) {
+                    moveTo(r, c);
+                    put(ch);
+                    shown[rowstart + c] = ch;
+                }
+            }
+        }
+        moveTo(cursor / SCRCOLS, cursor % SCRCOLS);
+        if (frame.size() == empty) {
+            return;
+        }
+        escape("[?25h");
+        try {
+            frame.writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            renderThread = null;
+        }
+    }
+
+    private void scrollHost(int n) {
+        // Scroll only the top SCRROWS rows of the host terminal
+        escape("[1;" + SCRROWS + "r");
+        absoluteMove(SCRROWS - 1, 0);
+        for (int i = 0; i < n; i++) {
+            frame.write('\n');
+        }
+        // Resetting the scroll region homes the cursor
+        escape("[r");
+        hostRow = hostCol = 0;
+        System.arraycopy(shown, n * SCRCOLS, shown, 0, (SCRROWS - n) * SCRCOLS);
+        for (int i = (SCRROWS - n) * SCRCOLS; i < shown.length; i++) {
+            shown[i] = ' ';
+        }
+    }
+
+    private void put(byte ch) {
+        frame.write((ch >= ' ' && ch < 0x7f) ? ch : '.');
+        if (++hostCol >= SCRCOLS) {
+            // The host may or may not have wrapped, don't guess
+            hostCol = -1;
+        }
+    }
+
+    private void moveTo(int row, int col) {
+        if (row == hostRow && col == hostCol) {
+            return;
+        }
+        if (hostCol < 0) {
+            absoluteMove(row, col);
+            return;
+        }
+        String abs = absoluteSequence(row, col);
+        // Relative: vertical first, then horizontal
+        int dr = row - hostRow;
+        String vertical = (dr == 0) ? ""
+                : (dr > 0) ? ((dr == 1 && savedTtyMode != null) ? "\n" : csi(dr, 'B'))
+                : csi(-dr, 'A');
+        int dc = col - hostCol;
+        int rewriteCost = Integer.MAX_VALUE;
+        String horizontal;
+        if (dc == 0) {
+            horizontal = "";
+        } else if (col == 0) {
+            horizontal = "\r";
+        } else if (dc < 0) {
+            horizontal = (-dc <= 3) ? "\b\b\b".substring(0, -dc) : csi(-dc, 'D');
+        } else {
+            horizontal = csi(dc, 'C');
+            // Characters the host already shows can be written again
+            rewriteCost = dc;
+        }
+        int relCost = vertical.length() + Math.min(horizontal.length(), rewriteCost);
+        if (abs.length() <= relCost) {
+            emit(abs);
+            hostRow = row;
+            hostCol = col;
+            return;
+        }
+        emit(vertical);
+        hostRow = row;
+        if (rewriteCost < horizontal.length()) {
+            int rowstart = row * SCRCOLS;
+            while (hostCol < col) {
+                put(shown[rowstart + hostCol]);
+            }
+        } else {
+            emit(horizontal);
+            hostCol = col;
+        }
+    }
+
+    private void absoluteMove(int row, int col) {
+        emit(absoluteSequence(row, col));
+        hostRow = row;
+        hostCol = col;
+    }
+
+    private static String absoluteSequence(int row, int col) {
+        if (row == 0 && col == 0) {
+            return "\u001b[H";
+        }
+        return "\u001b[" + (row + 1) + ";" + (col + 1) + "H";
+    }
+
+    private static String csi(int n, char cmd) {
+        return (n == 1) ? "\u001b[" + cmd : "\u001b[" + n + cmd;
+    }
+
+    private void escape(String seq) {
+        frame.write(ESC);
+        emit(seq);
+    }
+
+    private void emit(String s) {
+        byte b[] = s.getBytes(StandardCharsets.US_ASCII);
+        frame.write(b, 0, b.length);
+    }
+
+    private void inputLoop() {
+        try {
+            int ch;
+            while ((ch = in.read()) >= 0) {
+                if (ch == QUIT_KEY) {
+                    break;
+                }
+                if (ch == 0x0a) {
+                    ch = 0x0d;
+                } else if (ch == 0x7f) {
+                    ch = 0x08;
+                }
+                if (upperCaseLock) {
+                    ch = Character.toUpperCase(ch);
+                }
+                if (keyboard != null) {
+                    keyboard.put((byte) ch);
+                } else {
+                    RS232Device serialOut = theScreen.getSerialOut();
+                    if (serialOut != null) {
+                        serialOut.sendTo((byte) ch);
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+        }
+        stop();
+        synchronized (this) {
+            detached = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until ^\ is typed or the host's input ends.
+     */
+    public synchronized void waitForDetach() throws InterruptedException {
+        while (!detached) {
+            wait();
+        }
+    }
+
+    private void enterRawMode() {
+        if (System.console() == null) {
+            return;
+        }
+        savedTtyMode = stty("-g");
+        if (savedTtyMode != null) {
+            stty("raw", "-echo");
+        }
+    }
+
+    private synchronized void restore() {
+        if (!active) {
+            return;
+        }
+        active = false;
+        String mode = savedTtyMode;
+        savedTtyMode = null;
+        try {
+            // Leave the host cursor below the emulated screen
+            out.write(("\u001b[?25h\u001b[" + (SCRROWS + 1) + ";1H\r\n")
+                      .getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        } catch (IOException e) {
+        }
+        if (mode != null) {
+            stty(mode);
+        }
+    }
+
+    private static String stty(String... args) {
+        String cmd[] = new String[args.length + 1];
+        cmd[0] = "stty";
+        System.arraycopy(args, 0, cmd, 1, args.length);
+        try {
+            Process p = new ProcessBuilder(cmd)
+                    .redirectInput(new File("/dev/tty"))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            String result = new String(p.getInputStream().readAllBytes(),
+                                       StandardCharsets.US_ASCII).trim();
+            return (p.waitFor() == 0) ? result : null;
+        } catch (IOException | InterruptedException e) {
+            return null;
+        }
+    }
+}
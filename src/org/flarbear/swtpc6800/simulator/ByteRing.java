@@ -0,0 +1,113 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer queue of bytes.
+ *
+ * Exactly one thread may call offer() and put() and exactly one (other)
+ * thread may call poll(). Neither side takes a lock; each side only
+ * writes its own index and publishes it with an ordered store, so a
+ * byte written into the buffer is visible before the index that covers
+ * it.
+ */
+public final class ByteRing {
+    private static final long FULL_PARK_NANOS = 100000L;
+
+    private final byte buffer[];
+    private final int mask;
+
+    // Next slot to be read, only written by the consumer
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to be written, only written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    // Producer side copy of head to avoid reading it on every offer
+    private long headCache;
+    // Everything before this index should be skipped by the consumer
+    private volatile long discardTo;
+
+    /**
+     * Creates a ring holding at least capacity bytes, rounded up to a
+     * power of 2.
+     */
+    public ByteRing(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("bad capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        buffer = new byte[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Producer side: adds the byte if there is room and returns false
+     * otherwise.
+     */
+    public boolean offer(byte data) {
+        long t = tail.get();
+        if (t - headCache >= buffer.length) {
+            headCache = head.get();
+            if (t - headCache >= buffer.length) {
+                return false;
+            }
+        }
+        buffer[(int) t & mask] = data;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Producer side: adds the byte, parking briefly while the ring is
+     * full. Must not be called from the consumer thread.
+     */
+    public void put(byte data) throws InterruptedException {
+        while (!offer(data)) {
+            LockSupport.parkNanos(FULL_PARK_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Producer side: asks the consumer to drop everything queued so far.
+     */
+    public void discard() {
+        discardTo = tail.get();
+    }
+
+    /**
+     * Consumer side: returns the next byte as an unsigned value, or -1
+     * if the ring is empty.
+     */
+    public int poll() {
+        long h = head.get();
+        long d = discardTo;
+        if (d > h) {
+            h = d;
+            head.lazySet(h);
+        }
+        if (h >= tail.get()) {
+            return -1;
+        }
+        int ret = buffer[(int) h & mask] & 0xff;
+        head.lazySet(h + 1);
+        return ret;
+    }
+
+    public boolean isEmpty() {
+        return Math.max(head.get(), discardTo) >= tail.get();
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.Arrays;
+
+/**
+ * The screen memory and control code handling of a CT-64 terminal with
+ * no display attached.
+ *
+ * The characters written to it are interpreted the same way the CT-64
+ * does and kept in a 64x16 buffer. Anything that wants to show the
+ * screen (the AWT terminal, a host terminal bridge) registers a Listener
+ * and reads the cells back when it is told they changed. No AWT classes
+ * are used so it can run on a headless server.
+ *
+ * The rows are stored as a ring starting at topRow so that scrolling
+ * does not have to move the rest of the screen. All access is
+ * synchronized on the screen and listeners are called with that lock
+ * held, so a view can take the same lock to read a consistent snapshot.
+ */
+public class CT64Screen implements RS232Device {
+    public static final int SCRCOLS = 64;
+    public static final int SCRROWS = 16;
+
+    public interface Listener {
+        /**
+         * The cells in the given row for each bit set in columns (bit 0
+         * being column 0) were changed.
+         */
+        public void cellsChanged(int row, long columns);
+
+        /**
+         * Every row moved up by one and the old top row wrapped around
+         * to become the bottom row, which is then cleared from the cursor
+         * onward.
+         */
+        public void scrolled();
+
+        public void cursorMoved(int oldpos, int newpos);
+    }
+
+    /**
+     * The tape controls that the CT-64 operates in response to the
+     * control codes 0x11 to 0x14.
+     */
+    public interface CassetteControl {
+        public void readOn();
+        public void readOff();
+        public void punchOn();
+        public void punchOff();
+    }
+
+    private final byte screen[];
+    private int topRow;
+    private int cursorpos;
+
+    private boolean showCtrl;
+    private RS232Device serialOut;
+    private CassetteControl theCassette;
+    private Listener listeners[] = new Listener[0];
+
+    public CT64Screen() {
+        screen = new byte[SCRROWS * SCRCOLS];
+        clearscreen();
+    }
+
+    public synchronized void addListener(Listener l) {
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = l;
+    }
+
+    public synchronized void removeListener(Listener l) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == l) {
+                Listener newlisteners[] = new Listener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newlisteners, 0, i);
+                System.arraycopy(listeners, i + 1, newlisteners, i, newlisteners.length - i);
+                listeners = newlisteners;
+                return;
+            }
+        }
+    }
+
+    public void setShowControl(boolean show) {
+        this.showCtrl = show;
+    }
+
+    public boolean isShowingControl() {
+        return showCtrl;
+    }
+
+    public void connectCassetteControl(CassetteControl cass) {
+        this.theCassette = cass;
+    }
+
+    /**
+     * Returns the device that keystrokes for this terminal should be sent to.
+     */
+    public RS232Device getSerialOut() {
+        return serialOut;
+    }
+
+    @Override
+    public void connectTo(RS232Device otherdevice) {
+        this.serialOut = otherdevice;
+    }
+
+    @Override
+    public void waitForCTS() {
+    }
+
+    @Override
+    public synchronized void sendTo(byte data) {
+        // Insert data into screen...
+        data &= 0x7f;
+        if (showCtrl || data >= ' ') {
+            fireCellsChanged(cursorpos / SCRCOLS, 1L << (cursorpos % SCRCOLS));
+            screen[index(cursorpos)] = data;
+            if (cursorpos + 1 == screen.length) {
+                moveCursor(cursorpos + 1 - SCRCOLS);
+                scroll();
+            } else {
+                moveCursor(cursorpos + 1);
+            }
+        } else {
+            switch (data) {
+                case 0x08:
+                    backSpace();
+                    break;
+                case 0x0a:
+                    newLine();
+                    break;
+                case 0x0d:
+                    carriageReturn();
+                    break;
+                case 0x10:
+                    homeCursor();
+                    break;
+                case 0x11:
+                    if (theCassette != null) {
+                        theCassette.readOn();
+                    }
+                    break;
+                case 0x12:
+                    if (theCassette != null) {
+                        theCassette.punchOn();
+                    }
+                    break;
+                case 0x13:
+                    if (theCassette != null) {
+                        theCassette.readOff();
+                    }
+                    break;
+                case 0x14:
+                    if (theCassette != null) {
+                        theCassette.punchOff();
+                    }
+                    break;
+                case 0x15:
+                    clearEOL();
+                    break;
+                case 0x16:
+                    clearEOS();
+                    break;
+            }
+        }
+    }
+
+    public synchronized int getCursorPos() {
+        return cursorpos;
+    }
+
+    /**
+     * Returns the character (0 to 127) at the given row and column.
+     */
+    public synchronized int charAt(int row, int col) {
+        return screen[index(row * SCRCOLS + col)];
+    }
+
+    /**
+     * Copies one row of characters into dst starting at offset.
+     */
+    public synchronized void copyRow(int row, byte dst[], int offset) {
+        System.arraycopy(screen, ((topRow + row) % SCRROWS) * SCRCOLS, dst, offset, SCRCOLS);
+    }
+
+    /**
+     * Returns the text of the row with trailing spaces removed.
+     */
+    public synchronized String getRowText(int row) {
+        int start = ((topRow + row) % SCRROWS) * SCRCOLS;
+        int end = start + SCRCOLS;
+        while (end > start && screen[end - 1] == ' ') {
+            end--;
+        }
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            sb.append((char) screen[i]);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int r = 0; r < SCRROWS; r++) {
+            sb.append(getRowText(r)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private int index(int pos) {
+        int i = pos + topRow * SCRCOLS;
+        return (i >= screen.length) ? i - screen.length : i;
+    }
+
+    private void moveCursor(int newpos) {
+        int oldpos = cursorpos;
+        cursorpos = newpos;
+        if (oldpos != newpos) {
+            for (Listener l : listeners) {
+                l.cursorMoved(oldpos, newpos);
+            }
+        }
+    }
+
+    private void fireCellsChanged(int row, long columns) {
+        for (Listener l : listeners) {
+            l.cellsChanged(row, columns);
+        }
+    }
+
+    private void fireAllChanged() {
+        for (int r = 0; r < SCRROWS; r++) {
+            fireCellsChanged(r, -1L);
+        }
+    }
+
+    public final synchronized void clearscreen() {
+        Arrays.fill(screen, (byte) ' ');
+        topRow = 0;
+        moveCursor(0);
+        fireAllChanged();
+    }
+
+    public synchronized void backSpace() {
+        if (cursorpos > 0) {
+            moveCursor(cursorpos - 1);
+        }
+    }
+
+    public synchronized void carriageReturn() {
+        moveCursor((cursorpos / SCRCOLS) * SCRCOLS);
+    }
+
+    public synchronized void newLine() {
+        if (cursorpos + SCRCOLS < screen.length) {
+            moveCursor(cursorpos + SCRCOLS);
+        } else {
+            scroll();
+        }
+    }
+
+    public synchronized void scroll() {
+        // The old top row becomes the bottom row and is then cleared from
+        // the cursor onward.
+        topRow = (topRow + 1) % SCRROWS;
+        for (Listener l : listeners) {
+            l.scrolled();
+        }
+        clearEOL();
+    }
+
+    public synchronized void homeCursor() {
+        moveCursor(0);
+    }
+
+    public synchronized void clearEOL() {
+        int pos = index(cursorpos);
+        Arrays.fill(screen, pos, pos + SCRCOLS - (pos % SCRCOLS), (byte) ' ');
+        fireCellsChanged(cursorpos / SCRCOLS, -1L << (cursorpos % SCRCOLS));
+    }
+
+    public synchronized void clearEOS() {
+        for (int pos = cursorpos; pos < screen.length; pos++) {
+            screen[index(pos)] = ' ';
+        }
+        fireCellsChanged(cursorpos / SCRCOLS, -1L << (cursorpos % SCRCOLS));
+        for (int r = cursorpos / SCRCOLS + 1; r < SCRROWS; r++) {
+            fireCellsChanged(r, -1L);
+        }
+    }
+}
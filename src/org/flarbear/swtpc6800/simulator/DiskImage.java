@@ -0,0 +1,228 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A floppy disk stored as a flat image file, every sector of every track
+ * in order.
+ *
+ * The file is mapped into memory, so reading a sector is a copy out of
+ * the host's page cache. Sectors that are written are kept in a small
+ * write-back cache, least recently used first, and are only copied into
+ * the mapping when they are pushed out of the cache or when the image is
+ * flushed. A guest that rewrites its directory sector for every file it
+ * touches therefore does not dirty the host file each time. flush() also
+ * forces the mapping out to the file.
+ *
+ * Sectors are numbered from firstSector as they are on the disk, which
+ * for FLEX mini floppies is 1.
+ */
+public final class DiskImage {
+    public static final int DEFAULT_TRACKS = 35;
+    public static final int DEFAULT_SECTORS_PER_TRACK = 10;
+    public static final int DEFAULT_SECTOR_SIZE = 256;
+    public static final int DEFAULT_FIRST_SECTOR = 1;
+    public static final int DEFAULT_CACHE_SECTORS = 64;
+
+    // What a freshly formatted sector contains
+    private static final byte FORMAT_FILL = (byte) 0xE5;
+
+    private final Path file;
+    private final MappedByteBuffer map;
+    private final boolean readOnly;
+    private final int tracks;
+    private final int sectorsPerTrack;
+    private final int sectorSize;
+    private final int firstSector;
+    private final int cacheSectors;
+
+    private final LinkedHashMap<Integer, byte[]> dirty;
+
+    /**
+     * Opens an image, working out the number of tracks from its size.
+     */
+    public static DiskImage open(Path file, boolean readOnly) throws IOException {
+        long size = Files.size(file);
+        long trackSize = (long) DEFAULT_SECTORS_PER_TRACK * DEFAULT_SECTOR_SIZE;
+        if (size == 0 || size % trackSize != 0) {
+            throw new IOException("Not a " + DEFAULT_SECTORS_PER_TRACK + " x "
+                                  + DEFAULT_SECTOR_SIZE + " byte sector disk image: " + file);
+        }
+        return new DiskImage(file, readOnly, (int) (size / trackSize),
+                             DEFAULT_SECTORS_PER_TRACK, DEFAULT_SECTOR_SIZE,
+                             DEFAULT_FIRST_SECTOR, DEFAULT_CACHE_SECTORS);
+    }
+
+    /**
+     * Creates a new image file that looks like a freshly formatted disk,
+     * replacing any file that is already there.
+     */
+    public static DiskImage create(Path file, int tracks, int sectorsPerTrack,
+                                   int sectorSize) throws IOException
+    {
+        byte fill[] = new byte[sectorSize];
+        Arrays.fill(fill, FORMAT_FILL);
+        try (FileChannel fc = FileChannel.open(file,
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.WRITE))
+        {
+            for (int i = 0; i < tracks * sectorsPerTrack; i++) {
+                ByteBuffer buf = ByteBuffer.wrap(fill);
+                while (buf.hasRemaining()) {
+                    fc.write(buf);
+                }
+            }
+        }
+        return new DiskImage(file, false, tracks, sectorsPerTrack, sectorSize,
+                             DEFAULT_FIRST_SECTOR, DEFAULT_CACHE_SECTORS);
+    }
+
+    public DiskImage(Path file, boolean readOnly, int tracks, int sectorsPerTrack,
+                     int sectorSize, int firstSector, int cacheSectors)
+        throws IOException
+    {
+        if (tracks <= 0 || sectorsPerTrack <= 0 || cacheSectors < 0) {
+            throw new IllegalArgumentException("bad disk geometry");
+        }
+        if (sectorSize != 128 && sectorSize != 256 && sectorSize != 512 && sectorSize != 1024) {
+            throw new IllegalArgumentException("sector size must be 128, 256, 512 or 1024");
+        }
+        this.file = file;
+        this.readOnly = readOnly;
+        this.tracks = tracks;
+        this.sectorsPerTrack = sectorsPerTrack;
+        this.sectorSize = sectorSize;
+        this.firstSector = firstSector;
+        this.cacheSectors = cacheSectors;
+        long size = (long) tracks * sectorsPerTrack * sectorSize;
+        try (FileChannel fc = readOnly
+                ? FileChannel.open(file, StandardOpenOption.READ)
+                : FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            if (fc.size() < size) {
+                throw new IOException("Disk image is too short: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            map = fc.map(readOnly ? FileChannel.MapMode.READ_ONLY
+                                  : FileChannel.MapMode.READ_WRITE,
+                         0, size);
+        }
+        dirty = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public int getTracks() {
+        return tracks;
+    }
+
+    public int getSectorsPerTrack() {
+        return sectorsPerTrack;
+    }
+
+    public int getSectorSize() {
+        return sectorSize;
+    }
+
+    public int getFirstSector() {
+        return firstSector;
+    }
+
+    public boolean hasSector(int track, int sector) {
+        return track >= 0 && track < tracks &&
+               sector >= firstSector && sector < firstSector + sectorsPerTrack;
+    }
+
+    private int index(int track, int sector) {
+        if (!hasSector(track, sector)) {
+            throw new IllegalArgumentException("no sector " + sector + " on track " + track);
+        }
+        return track * sectorsPerTrack + (sector - firstSector);
+    }
+
+    /**
+     * Copies a sector into dst at offset.
+     */
+    public synchronized void readSector(int track, int sector, byte dst[], int offset) {
+        int index = index(track, sector);
+        byte cached[] = dirty.get(index);
+        if (cached != null) {
+            System.arraycopy(cached, 0, dst, offset, sectorSize);
+        } else {
+            map.get(index * sectorSize, dst, offset, sectorSize);
+        }
+    }
+
+    /**
+     * Replaces a sector with sectorSize bytes of src from offset.
+     *
+     * @throws IllegalStateException if the image is read only
+     */
+    public synchronized void writeSector(int track, int sector, byte src[], int offset) {
+        if (readOnly) {
+            throw new IllegalStateException("Disk image is read only");
+        }
+        int index = index(track, sector);
+        byte cached[] = dirty.get(index);
+        if (cached == null) {
+            if (cacheSectors == 0) {
+                map.put(index * sectorSize, src, offset, sectorSize);
+                return;
+            }
+            if (dirty.size() >= cacheSectors) {
+                // Reuse the least recently used buffer for this sector
+                Iterator<Map.Entry<Integer, byte[]>> it = dirty.entrySet().iterator();
+                Map.Entry<Integer, byte[]> eldest = it.next();
+                map.put(eldest.getKey() * sectorSize, eldest.getValue());
+                cached = eldest.getValue();
+                it.remove();
+            } else {
+                cached = new byte[sectorSize];
+            }
+            dirty.put(index, cached);
+        }
+        System.arraycopy(src, offset, cached, 0, sectorSize);
+    }
+
+    /**
+     * The number of written sectors that have not reached the file yet.
+     */
+    public synchronized int getDirtySectorCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Writes every cached sector back and forces the image out to the file.
+     */
+    public synchronized void flush() {
+        if (readOnly) {
+            return;
+        }
+        for (Map.Entry<Integer, byte[]> e : dirty.entrySet()) {
+            map.put(e.getKey() * sectorSize, e.getValue());
+        }
+        dirty.clear();
+        map.force();
+    }
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+/**
+ * The Western Digital FD1771 floppy disk controller used on the SWTPc
+ * DC-1, working on DiskImage drives rather than real media.
+ *
+ * The four registers are numbered as the DC-1 decodes them: 0 is the
+ * command register when written and the status register when read,
+ * then the track, sector and data registers. All of the Type I (restore,
+ * seek, step), Type II (read and write sector, single or multiple), Type
+ * III (read address, read and write track) and Type IV (force interrupt)
+ * commands are supported. Write track picks the sector IDs and data out
+ * of the stream the guest writes, so FLEX can format a disk.
+ *
+ * Normally the controller keeps disk time against a VirtualClock: steps
+ * take the programmed step rate, a sector is found when it comes around
+ * under the head at 300 RPM and bytes move at 125 kbit/s. With no
+ * rotational delay every command is ready as soon as it is issued and
+ * the transfer runs as fast as the guest can move the bytes, which is
+ * useful for disk heavy jobs where the real timing doesn't matter. Time
+ * is only compared when the guest looks at the status, nothing is
+ * scheduled on the clock.
+ */
+public class FD1771 {
+    public static final int STATUS_BUSY           = (1 << 0);
+    public static final int STATUS_DRQ            = (1 << 1);  // Type II and III
+    public static final int STATUS_INDEX          = (1 << 1);  // Type I
+    public static final int STATUS_LOST_DATA      = (1 << 2);  // Type II and III
+    public static final int STATUS_TRACK0         = (1 << 2);  // Type I
+    public static final int STATUS_CRC_ERROR      = (1 << 3);
+    public static final int STATUS_NOT_FOUND      = (1 << 4);  // Record not found or seek error
+    public static final int STATUS_HEAD_LOADED    = (1 << 5);  // Type I
+    public static final int STATUS_WRITE_PROTECT  = (1 << 6);
+    public static final int STATUS_NOT_READY      = (1 << 7);
+
+    public static final int REGISTER_COMMAND = 0;
+    public static final int REGISTER_TRACK   = 1;
+    public static final int REGISTER_SECTOR  = 2;
+    public static final int REGISTER_DATA    = 3;
+
+    public static final int NUM_DRIVES = 4;
+
+    // 5 1/4 inch drives turn at 300 RPM and hold 3125 bytes per track
+    private static final long REVOLUTION_CYCLES = VirtualClock.cyclesForMillis(200);
+    private static final int TRACK_BYTES = 3125;
+    private static final long BYTE_CYCLES = REVOLUTION_CYCLES / TRACK_BYTES;
+    private static final long INDEX_PULSE_CYCLES = VirtualClock.cyclesForMillis(4);
+    private static final int STEP_MILLIS[] = { 6, 6, 10, 20 };
+    private static final long SETTLE_CYCLES = VirtualClock.cyclesForMillis(10);
+
+    private enum Transfer {
+        NONE,
+        READ_SECTOR,
+        WRITE_SECTOR,
+        READ_ADDRESS,
+        READ_TRACK,
+        WRITE_TRACK,
+    }
+
+    private final DiskImage drives[] = new DiskImage[NUM_DRIVES];
+    private final int headTrack[] = new int[NUM_DRIVES];
+    private int selected;
+
+    private VirtualClock clock;
+    private boolean noRotationalDelay;
+
+    private int status;
+    private int track;
+    private int sector;
+    private byte data;
+    private boolean typeI = true;
+    private int stepDirection = 1;
+
+    // The command in progress
+    private Transfer transfer = Transfer.NONE;
+    private boolean multiple;
+    private long readyCycle;
+    private byte buffer[] = new byte[TRACK_BYTES];
+    private int bufferPos;
+    private int bufferLength;
+
+    // Write track parsing
+    private int formatState;
+    private int formatTrack;
+    private int formatSector;
+    private int formatCount;
+
+    // Stands in for the index pulse when there is no disk time
+    private int indexToggle;
+
+    public void connectClock(VirtualClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Completes every command as soon as it is issued instead of waiting
+     * for the disk to turn.
+     */
+    public synchronized void setNoRotationalDelay(boolean noDelay) {
+        this.noRotationalDelay = noDelay;
+    }
+
+    public synchronized boolean isNoRotationalDelay() {
+        return noRotationalDelay;
+    }
+
+    public synchronized void insert(int drive, DiskImage disk) {
+        if (drives[drive] != null) {
+            drives[drive].flush();
+        }
+        drives[drive] = disk;
+    }
+
+    /**
+     * Takes the disk out of a drive, flushing anything written to it.
+     */
+    public synchronized DiskImage eject(int drive) {
+        DiskImage disk = drives[drive];
+        drives[drive] = null;
+        if (disk != null) {
+            disk.flush();
+            if (drive == selected && transfer != Transfer.NONE) {
+                finish(STATUS_NOT_READY);
+            }
+        }
+        return disk;
+    }
+
+    public synchronized DiskImage getDisk(int drive) {
+        return drives[drive];
+    }
+
+    public synchronized void selectDrive(int drive) {
+        this.selected = drive & (NUM_DRIVES - 1);
+    }
+
+    public synchronized int getSelectedDrive() {
+        return selected;
+    }
+
+    public synchronized boolean isBusy() {
+        return (status & STATUS_BUSY) != 0 && (transfer != Transfer.NONE || now() < readyCycle);
+    }
+
+    /**
+     * Writes every cached sector of every drive back to its image file.
+     */
+    public synchronized void flush() {
+        for (DiskImage disk : drives) {
+            if (disk != null) {
+                disk.flush();
+            }
+        }
+    }
+
+    public synchronized void reset() {
+        transfer = Transfer.NONE;
+        status = 0;
+        typeI = true;
+        sector = 1;
+        flush();
+        // A reset restores the heads to track 0
+        command((byte) 0x03);
+    }
+
+    private long now() {
+        return (clock == null) ? 0 : clock.now();
+    }
+
+    private boolean timed() {
+        return clock != null && !noRotationalDelay;
+    }
+
+    public synchronized byte readRegister(int reg) {
+        switch (reg & 3) {
+            case REGISTER_COMMAND:
+                return (byte) readStatus();
+            case REGISTER_TRACK:
+                return (byte) track;
+            case REGISTER_SECTOR:
+                return (byte) sector;
+            default:
+                return readData();
+        }
+    }
+
+    public synchronized void writeRegister(int reg, byte value) {
+        switch (reg & 3) {
+            case REGISTER_COMMAND:
+                command(value);
+                break;
+            case REGISTER_TRACK:
+                if (!isBusy()) {
+                    track = value & 0xff;
+                }
+                break;
+            case REGISTER_SECTOR:
+                if (!isBusy()) {
+                    sector = value & 0xff;
+                }
+                break;
+            default:
+                writeData(value);
+                break;
+        }
+    }
+
+    private int readStatus() {
+        DiskImage disk = drives[selected];
+        int ret = status;
+        if (typeI) {
+            if (now() >= readyCycle) {
+                ret &= ~STATUS_BUSY;
+            }
+            if (disk == null) {
+                ret |= STATUS_NOT_READY;
+            } else {
+                if (disk.isReadOnly()) {
+                    ret |= STATUS_WRITE_PROTECT;
+                }
+                if (indexPulse()) {
+                    ret |= STATUS_INDEX;
+                }
+            }
+            if (headTrack[selected] == 0) {
+                ret |= STATUS_TRACK0;
+            }
+        } else {
+            if (transfer != Transfer.NONE && now() >= readyCycle) {
+                ret |= STATUS_DRQ;
+            }
+            if (disk == null) {
+                ret |= STATUS_NOT_READY;
+            }
+        }
+        return ret;
+    }
+
+    private boolean indexPulse() {
+        if (timed()) {
+            return (clock.now() % REVOLUTION_CYCLES) < INDEX_PULSE_CYCLES;
+        }
+        // Guests that time the disk by counting index pulses still see them
+        return (++indexToggle & 0x3f) == 0;
+    }
+
+    private void command(byte cmd) {
+        int c = cmd & 0xff;
+        if ((c & 0xf0) == 0xd0) {
+            // Force interrupt, stop whatever is going on
+            transfer = Transfer.NONE;
+            status &= ~STATUS_BUSY;
+            typeI = true;
+            readyCycle = 0;
+            return;
+        }
+        if (isBusy()) {
+            return;
+        }
+        if ((c & 0x80) == 0) {
+            typeI = true;
+            seekCommand(c);
+            return;
+        }
+        typeI = false;
+        status = STATUS_BUSY;
+        DiskImage disk = drives[selected];
+        if (disk == null) {
+            finish(STATUS_NOT_READY);
+            return;
+        }
+        switch (c & 0xf0) {
+            case 0x80:
+            case 0x90:
+                multiple = (c & 0x10) != 0;
+                startSector(disk, Transfer.READ_SECTOR);
+                break;
+            case 0xa0:
+            case 0xb0:
+                multiple = (c & 0x10) != 0;
+                if (disk.isReadOnly()) {
+                    finish(STATUS_WRITE_PROTECT);
+                    return;
+                }
+                startSector(disk, Transfer.WRITE_SECTOR);
+                break;
+            case 0xc0:
+                startReadAddress(disk);
+                break;
+            case 0xe0:
+                startReadTrack(disk);
+                break;
+            case 0xf0:
+                if (disk.isReadOnly()) {
+                    finish(STATUS_WRITE_PROTECT);
+                    return;
+                }
+                startWriteTrack();
+                break;
+        }
+    }
+
+    private void seekCommand(int c) {
+        int drive = selected;
+        int from = headTrack[drive];
+        int steps;
+        boolean verify = (c & 0x04) != 0;
+        boolean update = true;
+        switch (c & 0xe0) {
+            case 0x00:
+                if ((c & 0x10) == 0) {
+                    // Restore
+                    track = 0;
+                    steps = from;
+                    headTrack[drive] = 0;
+                } else {
+                    // Seek to the track in the data register
+                    int target = data & 0xff;
+                    stepDirection = (target >= track) ? 1 : -1;
+                    steps = Math.abs(target - track);
+                    track = target;
+                    headTrack[drive] = Math.max(0, from + stepDirection * steps);
+                }
+                break;
+            case 0x20:
+                update = (c & 0x10) != 0;
+                steps = step(drive, stepDirection, update);
+                break;
+            case 0x40:
+                update = (c & 0x10) != 0;
+                stepDirection = 1;
+                steps = step(drive, 1, update);
+                break;
+            default:
+                update = (c & 0x10) != 0;
+                stepDirection = -1;
+                steps = step(drive, -1, update);
+                break;
+        }
+        status = STATUS_BUSY | STATUS_HEAD_LOADED;
+        DiskImage disk = drives[drive];
+        if (disk != null && headTrack[drive] >= disk.getTracks()) {
+            // Ran the head off the end of the media
+            headTrack[drive] = disk.getTracks() - 1;
+        }
+        if (verify && (disk == null || headTrack[drive] != track)) {
+            status |= STATUS_NOT_FOUND;
+        }
+        readyCycle = 0;
+        if (timed()) {
+            long time = steps * VirtualClock.cyclesForMillis(STEP_MILLIS[c & 3]);
+            if (verify) {
+                time += SETTLE_CYCLES;
+            }
+            readyCycle = clock.now() + time;
+        }
+    }
+
+    private int step(int drive, int direction, boolean update) {
+        int from = headTrack[drive];
+        headTrack[drive] = Math.max(0, from + direction);
+        if (update) {
+            track = (track + direction) & 0xff;
+        }
+        return 1;
+    }
+
+    private void startSector(DiskImage disk, Transfer kind) {
+        int head = headTrack[selected];
+        if (track != head || !disk.hasSector(head, sector)) {
+            finish(STATUS_NOT_FOUND);
+            return;
+        }
+        transfer = kind;
+        bufferLength = disk.getSectorSize();
+        bufferPos = 0;
+        if (kind == Transfer.READ_SECTOR) {
+            disk.readSector(head, sector, buffer, 0);
+        }
+        readyCycle = arrival(disk, sector - disk.getFirstSector());
+    }
+
+    private void startReadAddress(DiskImage disk) {
+        int head = headTrack[selected];
+        int n = disk.getSectorsPerTrack();
+        // The next ID field to come around under the head
+        int next = timed()
+                ? (int) ((clock.now() % REVOLUTION_CYCLES) * n / REVOLUTION_CYCLES + 1) % n
+                : 0;
+        int size = disk.getSectorSize();
+        buffer[0] = (byte) head;
+        buffer[1] = 0;
+        buffer[2] = (byte) (disk.getFirstSector() + next);
+        buffer[3] = (byte) (size == 128 ? 0 : size == 256 ? 1 : size == 512 ? 2 : 3);
+        buffer[4] = 0;
+        buffer[5] = 0;
+        transfer = Transfer.READ_ADDRESS;
+        bufferPos = 0;
+        bufferLength = 6;
+        // The FD1771 leaves the track address in the sector register
+        sector = head;
+        readyCycle = arrival(disk, next);
+    }
+
+    private void startReadTrack(DiskImage disk) {
+        int head = headTrack[selected];
+        int size = disk.getSectorSize();
+        int n = Math.min(disk.getSectorsPerTrack(), TRACK_BYTES / size);
+        for (int i = 0; i < n; i++) {
+            disk.readSector(head, disk.getFirstSector() + i, buffer, i * size);
+        }
+        transfer = Transfer.READ_TRACK;
+        bufferPos = 0;
+        bufferLength = n * size;
+        readyCycle = arrival(disk, 0);
+    }
+
+    private void startWriteTrack() {
+        transfer = Transfer.WRITE_TRACK;
+        bufferPos = 0;
+        bufferLength = TRACK_BYTES;
+        formatState = 0;
+        formatSector = -1;
+        readyCycle = timed() ? clock.now() + timeToIndex() : 0;
+    }
+
+    private long timeToIndex() {
+        return REVOLUTION_CYCLES - clock.now() % REVOLUTION_CYCLES;
+    }
+
+    /**
+     * The cycle at which the given sector position on the track comes
+     * around under the head.
+     */
+    private long arrival(DiskImage disk, int position) {
+        if (!timed()) {
+            return 0;
+        }
+        long now = clock.now();
+        long at = position * REVOLUTION_CYCLES / disk.getSectorsPerTrack();
+        long wait = (at - now % REVOLUTION_CYCLES + REVOLUTION_CYCLES) % REVOLUTION_CYCLES;
+        return now + wait;
+    }
+
+    private void finish(int errors) {
+        transfer = Transfer.NONE;
+        status = (status & ~STATUS_BUSY) | errors;
+        readyCycle = 0;
+    }
+
+    private byte readData() {
+        switch (transfer) {
+            case READ_SECTOR:
+            case READ_ADDRESS:
+            case READ_TRACK:
+                break;
+            default:
+                return data;
+        }
+        data = buffer[bufferPos++];
+        if (timed()) {
+            readyCycle = Math.max(readyCycle, clock.now()) + BYTE_CYCLES;
+        }
+        if (bufferPos >= bufferLength) {
+            if (transfer == Transfer.READ_SECTOR && multiple) {
+                nextSector();
+            } else {
+                finish(0);
+            }
+        }
+        return data;
+    }
+
+    private void writeData(byte value) {
+        data = value;
+        switch (transfer) {
+            case WRITE_SECTOR:
+                buffer[bufferPos++] = value;
+                if (bufferPos >= bufferLength) {
+                    DiskImage disk = drives[selected];
+                    disk.writeSector(headTrack[selected], sector, buffer, 0);
+                    if (multiple) {
+                        nextSector();
+                    } else {
+                        finish(0);
+                    }
+                }
+                break;
+            case WRITE_TRACK:
+                format(value);
+                if (++bufferPos >= bufferLength) {
+                    finish(0);
+                }
+                break;
+            default:
+                return;
+        }
+        if (timed()) {
+            readyCycle = Math.max(readyCycle, clock.now()) + BYTE_CYCLES;
+        }
+    }
+
+    private void nextSector() {
+        sector++;
+        DiskImage disk = drives[selected];
+        if (!disk.hasSector(headTrack[selected], sector)) {
+            // Multiple sector commands end by running off the track
+            finish(STATUS_NOT_FOUND);
+            return;
+        }
+        startSector(disk, transfer);
+    }
+
+    /**
+     * Picks the sector IDs (after an 0xFE address mark) and the sector
+     * data (after an 0xFB data mark) out of a track being formatted.
+     */
+    private void format(byte value) {
+        int b = value & 0xff;
+        DiskImage disk = drives[selected];
+        switch (formatState) {
+            case 0:
+                if (b == 0xfe) {
+                    formatState = 1;
+                } else if (b == 0xfb && formatSector >= 0) {
+                    formatState = 5;
+                    formatCount = 0;
+                }
+                break;
+            case 1:
+                formatTrack = b;
+                formatState = 2;
+                break;
+            case 2:
+                // Side number
+                formatState = 3;
+                break;
+            case 3:
+                formatSector = b;
+                formatState = 4;
+                break;
+            case 4:
+                // Length code, the image has a fixed sector size
+                formatState = 0;
+                if (formatTrack != headTrack[selected] ||
+                    !disk.hasSector(formatTrack, formatSector))
+                {
+                    formatSector = -1;
+                }
+                break;
+            case 5:
+                buffer[formatCount++] = value;
+                if (formatCount == disk.getSectorSize()) {
+                    disk.writeSector(formatTrack, formatSector, buffer, 0);
+                    formatSector = -1;
+                    formatState = 0;
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+/**
+ * A processor and a full 64K of RAM on one card, for workloads that only
+ * need to compute.
+ *
+ * The processor is wired straight to the memory instead of to the SS-50
+ * bus, so every access is a reference into the page table of its
+ * MemoryDevice8x16 with no slot decoding (and stores check whether the
+ * page is shared with a fork and mark it dirty for a RewindBuffer).
+ * The card still sits in a main slot so that power, reset and interrupts
+ * reach the processor the same way they do through an MP-A, but nothing
+ * else on the bus, including the I/O slots, is visible to the program.
+ * The reset vector at $FFFE is just another pair of RAM locations and
+ * has to be stored before the system is powered on.
+ */
+public class FlatMemoryCard extends SS50Card {
+    private final MemoryDevice8x16 ram;
+    private final byte pages[][];
+    private final boolean shared[];
+    private final boolean dirty[];
+    private final Motorola6800 processor;
+
+    public FlatMemoryCard() {
+        this(new MemoryDevice8x16((char) 0, 0x10000));
+    }
+
+    private FlatMemoryCard(MemoryDevice8x16 ram) {
+        this.ram = ram;
+        pages = ram.pages;
+        shared = ram.shared;
+        dirty = ram.dirty;
+        processor = new Motorola6800();
+        processor.connectTo(this);
+    }
+
+    @Override
+    public SS50Card fork() {
+        return new FlatMemoryCard(ram.fork());
+    }
+
+    @Override
+    public Motorola6800 getProcessor() {
+        return processor;
+    }
+
+    @Override
+    public MemoryDevice8x16[] getRam() {
+        return new MemoryDevice8x16[] { ram };
+    }
+
+    @Override
+    public Object saveState() {
+        return processor.saveState();
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        processor.restoreState(state);
+    }
+
+    @Override
+    public void connectTo(SS50Bus bus) {
+        super.connectTo(bus);
+        processor.connectClock(bus.getClock());
+    }
+
+    @Override
+    public void powerOn() {
+        processor.powerOn();
+    }
+
+    @Override
+    public void powerOff() {
+        processor.powerOff();
+    }
+
+    @Override
+    public void raiseIRQ() {
+        processor.raiseIRQ();
+    }
+
+    @Override
+    public void lowerIRQ() {
+        processor.lowerIRQ();
+    }
+
+    @Override
+    public void tripNMI() {
+        processor.tripNMI();
+    }
+
+    @Override
+    public void raiseRESET() {
+        processor.raiseRESET();
+    }
+
+    @Override
+    public void lowerRESET() {
+        processor.lowerRESET();
+    }
+
+    @Override
+    public void raiseManualReset() {
+        theBus.raiseRESET();
+    }
+
+    @Override
+    public void lowerManualReset() {
+        theBus.lowerRESET();
+    }
+
+    @Override
+    public boolean maps(char addr) {
+        return true;
+    }
+
+    @Override
+    public byte load(char addr) {
+        return pages[addr >> MemoryDevice8x16.PAGE_SHIFT][addr & MemoryDevice8x16.PAGE_MASK];
+    }
+
+    @Override
+    public void store(char addr, byte data) {
+        int p = addr >> MemoryDevice8x16.PAGE_SHIFT;
+        if (shared[p]) {
+            ram.unshare(p);
+        }
+        pages[p][addr & MemoryDevice8x16.PAGE_MASK] = data;
+        dirty[p] = true;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Where a machine spent its time inside one ROM or tape image, as the
+ * blocks of addresses that were executed and the number of instructions
+ * executed in each, keyed by the checksum of the image (see
+ * SRecordImage.getChecksum()).
+ *
+ * Profiles are gathered from the counts of a processor that has
+ * profiling turned on, kept between runs by a ProfileCache, and used by
+ * warmUp() to run the hot code of an image before the machine gets to
+ * it. The interpreter has nothing of its own to warm up, every opcode
+ * is decoded from a table, but the JVM compiles the parts of it that a
+ * program uses as the program runs, and until it has done so the
+ * machine runs several times slower. Running the blocks that were hot
+ * last time on a scratch copy of the machine, on another thread while
+ * the rest of the emulator is starting or a tape is still loading,
+ * gets that done before the program needs it.
+ *
+ * Only the MAX_BLOCKS blocks with the highest counts are kept.
+ */
+public final class HotProfile {
+    public static final int MAX_BLOCKS = 64;
+    public static final long DEFAULT_WARMUP_CYCLES = 5_000_000L;
+
+    // About half a minute of machine time, enough to see a program loaded
+    // and settled into its main loop
+    public static final long DEFAULT_PROFILE_CYCLES = 30_000_000L;
+
+    // Executed addresses this close together belong to the same block,
+    // which covers the operand bytes of the instructions in between
+    private static final int BLOCK_GAP = 3;
+
+    // Enough for a block to go round its loops a few times
+    private static final long MIN_BLOCK_CYCLES = 10_000L;
+
+    // How long warmUp() lets the code run before checking that it has not
+    // wandered off out of the profile
+    private static final long CHECK_CYCLES = 2_000L;
+
+    private final long checksum;
+    private final int starts[];
+    private final int ends[];
+    private final long counts[];
+
+    private HotProfile(long checksum, int starts[], int ends[], long counts[]) {
+        this.checksum = checksum;
+        this.starts = starts;
+        this.ends = ends;
+        this.counts = counts;
+    }
+
+    /**
+     * The profile of an image from the counts of a processor (see
+     * Motorola6800.getExecutionCounts()), looking only at the addresses
+     * the image occupies when it is loaded at base. The counts are for
+     * whatever was at those addresses, which is only the image if
+     * nothing else was loaded over it.
+     */
+    public static HotProfile collect(SRecordImage image, int base, long executionCounts[]) {
+        List<long[]> blocks = new ArrayList<>();
+        for (int r = 0; r < image.getRangeCount(); r++) {
+            int lo = base + image.getRangeStart(r);
+            int hi = Math.min(lo + image.getRangeLength(r), executionCounts.length);
+            long block[] = null;
+            for (int addr = lo; addr < hi; addr++) {
+                long n = executionCounts[addr];
+                if (n == 0) {
+                    continue;
+                }
+                if (block != null && addr - block[1] <= BLOCK_GAP) {
+                    block[1] = addr + 1;
+                    block[2] += n;
+                } else {
+                    block = new long[] { addr, addr + 1, n };
+                    blocks.add(block);
+                }
+            }
+        }
+        return make(image.getChecksum(), blocks);
+    }
+
+    /**
+     * A profile with the counts of both, whose blocks are merged where
+     * they overlap.
+     *
+     * @throws IllegalArgumentException if they are not for the same image
+     */
+    public HotProfile merge(HotProfile other) {
+        if (other.checksum != checksum) {
+            throw new IllegalArgumentException("profiles are for different images");
+        }
+        List<long[]> blocks = new ArrayList<>();
+        for (HotProfile p : new HotProfile[] { this, other }) {
+            for (int i = 0; i < p.starts.length; i++) {
+                blocks.add(new long[] { p.starts[i], p.ends[i], p.counts[i] });
+            }
+        }
+        blocks.sort(Comparator.comparingLong(b -> b[0]));
+        List<long[]> merged = new ArrayList<>();
+        long prev[] = null;
+        for (long b[] : blocks) {
+            if (prev != null && b[0] - prev[1] <= BLOCK_GAP) {
+                prev[1] = Math.max(prev[1], b[1]);
+                prev[2] += b[2];
+            } else {
+                prev = b;
+                merged.add(b);
+            }
+        }
+        return make(checksum, merged);
+    }
+
+    // Keeps the hottest blocks, in address order
+    private static HotProfile make(long checksum, List<long[]> blocks) {
+        if (blocks.size() > MAX_BLOCKS) {
+            blocks.sort(Comparator.comparingLong((long b[]) -> b[2]).reversed());
+            blocks = new ArrayList<>(blocks.subList(0, MAX_BLOCKS));
+            blocks.sort(Comparator.comparingLong(b -> b[0]));
+        }
+        int n = blocks.size();
+        int starts[] = new int[n];
+        int ends[] = new int[n];
+        long counts[] = new long[n];
+        for (int i = 0; i < n; i++) {
+            long b[] = blocks.get(i);
+            starts[i] = (int) b[0];
+            ends[i] = (int) b[1];
+            counts[i] = b[2];
+        }
+        return new HotProfile(checksum, starts, ends, counts);
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public int getBlockCount() {
+        return starts.length;
+    }
+
+    public int getBlockStart(int block) {
+        return starts[block];
+    }
+
+    /**
+     * The address just past the last instruction counted in the block.
+     */
+    public int getBlockEnd(int block) {
+        return ends[block];
+    }
+
+    public long getExecutionCount(int block) {
+        return counts[block];
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (long n : counts) {
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Runs the blocks of the profile on the machine, starting at the
+     * start of each and giving each its share of the cycles according to
+     * its count. The machine should be a scratch copy holding the image,
+     * since the registers are whatever they happen to be, so where the
+     * code goes from there and what it stores is anybody's guess. It is
+     * sent back to the start of the block whenever it turns up outside
+     * the profile, and illegal instructions are not reported.
+     */
+    public void warmUp(Machine scratch, long cycles) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return;
+        }
+        scratch.powerOn();
+        Motorola6800 processor = scratch.getProcessor();
+        processor.setReportIllegal(false);
+        for (int i = 0; i < starts.length; i++) {
+            long share = (long) (cycles * ((double) counts[i] / total));
+            long left = Math.max(MIN_BLOCK_CYCLES, share);
+            processor.jumpTo((char) starts[i]);
+            while (left > 0) {
+                long ran = scratch.runFor(Math.min(left, CHECK_CYCLES));
+                if (ran == 0) {
+                    // Stopped at a breakpoint
+                    break;
+                }
+                left -= ran;
+                if (!contains(processor.getPC())) {
+                    processor.jumpTo((char) starts[i]);
+                }
+            }
+        }
+    }
+
+    private boolean contains(int addr) {
+        for (int i = 0; i < starts.length; i++) {
+            if (addr >= starts[i] && addr < ends[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A machine to run warmUp() on, with the same cards and memory as the
+     * system. It is a fork of the system (see MachineSnapshot) if the
+     * system is not powered on yet and all of its cards can be forked,
+     * and otherwise a FlatMemoryCard holding a copy of what the system's
+     * memory reads as, which is all that can be had of a machine that is
+     * running. The image is stored into it at base wherever there is RAM.
+     * It profiles for as long as the system has left to, so that the
+     * warm-up runs the same loop (see Motorola6800.runSlice()) as the
+     * system will.
+     */
+    static Machine scratchFor(SWTPc6800 system, SRecordImage image, int base) {
+        Machine scratch = null;
+        boolean forked = false;
+        if (!system.isPoweredOn()) {
+            try {
+                scratch = new MachineSnapshot(system, -1, true, false).fork();
+                forked = true;
+            } catch (IllegalStateException e) {
+                // A card that cannot be forked, so fall back to a copy
+            }
+        }
+        if (scratch == null) {
+            scratch = new MachineBuilder().flatMemory().realTime(false).build();
+            for (int addr = 0; addr < 0x10000; addr++) {
+                // Reading the registers in the I/O page has side effects
+                if ((addr >> 8) != 0x80) {
+                    scratch.store(addr, system.peek((char) addr));
+                }
+            }
+        }
+        long profileCycles = system.getProcessor().getProfileCyclesLeft();
+        if (profileCycles > 0) {
+            scratch.getProcessor().profileFor(profileCycles);
+        }
+        byte mem[] = new byte[0x10000];
+        image.copyTo(mem, -base);
+        for (int r = 0; r < image.getRangeCount(); r++) {
+            int start = base + image.getRangeStart(r);
+            int end = Math.min(start + image.getRangeLength(r), mem.length);
+            for (int addr = start; addr < end; addr++) {
+                // A fork ignores stores to its ROM, a copy has to be told
+                if (forked || isRam(system, (char) addr)) {
+                    scratch.store(addr, mem[addr]);
+                }
+            }
+        }
+        return scratch;
+    }
+
+    private static boolean isRam(SWTPc6800 system, char addr) {
+        for (int i = 0; i < SWTPc6800.NUM_MAIN_SLOTS; i++) {
+            SS50Card c = system.getMainCard(i);
+            if (c != null) {
+                for (MemoryDevice8x16 ram : c.getRam()) {
+                    if (ram.maps(addr)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    void write(DataOutputStream dos) throws IOException {
+        dos.writeLong(checksum);
+        dos.writeInt(starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            dos.writeShort(starts[i]);
+            dos.writeInt(ends[i]);
+            dos.writeLong(counts[i]);
+        }
+    }
+
+    static HotProfile read(DataInputStream dis) throws IOException {
+        long checksum = dis.readLong();
+        int n = dis.readInt();
+        if (n < 0 || n > MAX_BLOCKS) {
+            throw new IOException("Bad block count in profile");
+        }
+        int starts[] = new int[n];
+        int ends[] = new int[n];
+        long counts[] = new long[n];
+        for (int i = 0; i < n; i++) {
+            starts[i] = dis.readUnsignedShort();
+            ends[i] = dis.readInt();
+            counts[i] = dis.readLong();
+            if (ends[i] <= starts[i] || ends[i] > 0x10000 || counts[i] < 0) {
+                throw new IOException("Bad block in profile");
+            }
+        }
+        return new HotProfile(checksum, starts, ends, counts);
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes every input that reaches a machine from outside to a stream,
+ * stamped with the clock cycle at which the machine saw it, so that an
+ * InputReplayer can feed the same inputs to a freshly built machine at
+ * the same points and reproduce the session exactly.
+ *
+ * Characters are recorded when the MP-S receiver takes them, on the
+ * processor thread, rather than when they are typed, so the stamp is
+ * exact no matter how they were queued. The reset button and interrupt
+ * lines are stamped when they are signalled, which is only exact when
+ * the machine runs on a SimulationLoop (or a Machine) where they are
+ * handled between slices. A machine with its own processor thread can
+ * still be recorded but will not replay exactly.
+ *
+ * The stream starts with the magic "SWIR", a version byte and the cycle
+ * recording started at. Each input is then a byte holding the type (see
+ * SWTPc6800.InputListener) in the upper 4 bits and the I/O slot in the
+ * lower 4, the number of cycles since the previous input as an unsigned
+ * LEB128 number, and for characters the character itself. A typed key
+ * usually takes 4 or 5 bytes. close() writes an END input stamped with
+ * the cycle recording stopped at.
+ */
+public class InputRecorder implements SWTPc6800.InputListener {
+    static final byte MAGIC[] = { 'S', 'W', 'I', 'R' };
+    static final int VERSION = 1;
+
+    private final SWTPc6800 system;
+    private final VirtualClock clock;
+    private final OutputStream out;
+    private long lastCycle;
+    private long count;
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * Writes the header and starts listening to the machine.
+     */
+    public InputRecorder(SWTPc6800 system, OutputStream out) throws IOException {
+        this.system = system;
+        this.clock = system.getClock();
+        this.out = new BufferedOutputStream(out);
+        this.lastCycle = clock.now();
+        this.out.write(MAGIC);
+        this.out.write(VERSION);
+        writeNumber(lastCycle);
+        system.setInputListener(this);
+    }
+
+    @Override
+    public synchronized void input(int type, int slot, byte data) {
+        if (closed || failure != null) {
+            return;
+        }
+        try {
+            writeInput(type, slot);
+            if (type == KEY || type == TAPE || type == SERIAL) {
+                out.write(data);
+            }
+            count++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void writeInput(int type, int slot) throws IOException {
+        long now = clock.now();
+        out.write((type << 4) | (slot & 0xf));
+        writeNumber(Math.max(0, now - lastCycle));
+        lastCycle = Math.max(lastCycle, now);
+    }
+
+    private void writeNumber(long n) throws IOException {
+        while ((n & ~0x7fL) != 0) {
+            out.write((int) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        out.write((int) n);
+    }
+
+    /**
+     * The number of inputs recorded so far.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Stops listening, writes the END input and closes the stream.
+     *
+     * @throws IOException if anything could not be written, including
+     *         inputs that were recorded earlier
+     */
+    public void close() throws IOException {
+        // Not while holding our lock, the serial ports call us with theirs
+        system.setInputListener(null);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (failure == null) {
+                    writeInput(END, 0);
+                }
+            } finally {
+                out.close();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
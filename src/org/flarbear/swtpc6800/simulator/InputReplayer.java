@@ -0,0 +1,206 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds the inputs written by an InputRecorder back to a machine at the
+ * cycles they were recorded at.
+ *
+ * The machine has to be built the same way as the one that was recorded,
+ * be at or before the cycle recording started, and run on a
+ * SimulationLoop or a Machine, since each input is delivered by a
+ * VirtualClock event between instructions. Nothing else should feed it
+ * input while it replays. With the loop out of real time, or with
+ * Machine.runFor(), an hour of typing replays as fast as the processor
+ * can be emulated.
+ *
+ * The log is read one input at a time as the clock reaches each one, so
+ * it can be as long as it likes.
+ */
+public class InputReplayer {
+    private final SWTPc6800 system;
+    private final VirtualClock clock;
+    private final InputStream in;
+    private final long startCycle;
+    private long nextCycle;
+    private volatile boolean finished;
+    private long count;
+    private IOException failure;
+
+    /**
+     * Reads the header of the log.
+     *
+     * @throws IOException if it is not a log an InputRecorder wrote
+     */
+    public InputReplayer(SWTPc6800 system, InputStream in) throws IOException {
+        this.system = system;
+        this.clock = system.getClock();
+        this.in = new BufferedInputStream(in);
+        for (byte b : InputRecorder.MAGIC) {
+            if (this.in.read() != b) {
+                throw new IOException("Not an input log");
+            }
+        }
+        if (this.in.read() != InputRecorder.VERSION) {
+            throw new IOException("Unsupported input log version");
+        }
+        startCycle = readNumber();
+        nextCycle = startCycle;
+    }
+
+    /**
+     * The cycle the recording started at.
+     */
+    public long getStartCycle() {
+        return startCycle;
+    }
+
+    /**
+     * Schedules the first input, or delivers it straight away if it was
+     * recorded at the current cycle, as the reset from powering on a
+     * Machine is.
+     *
+     * @throws IllegalStateException if the machine is already past the
+     *         start of the recording or runs on its own thread
+     */
+    public void start() {
+        if (clock.now() > startCycle) {
+            throw new IllegalStateException("Machine is past the start of the recording");
+        }
+        if (!clock.isDeterministic()) {
+            throw new IllegalStateException("Replay needs a machine on a SimulationLoop");
+        }
+        scheduleNext();
+    }
+
+    /**
+     * Delivers the inputs that are due now and schedules the next one.
+     */
+    private void scheduleNext() {
+        try {
+            while (!finished) {
+                int header = in.read();
+                if (header < 0) {
+                    throw new EOFException("Input log ends without an END");
+                }
+                nextCycle += readNumber();
+                int type = header >> 4;
+                int slot = header & 0xf;
+                int data = 0;
+                if (type == SWTPc6800.InputListener.KEY ||
+                    type == SWTPc6800.InputListener.TAPE ||
+                    type == SWTPc6800.InputListener.SERIAL)
+                {
+                    data = in.read();
+                    if (data < 0) {
+                        throw new EOFException("Input log ends in the middle of an input");
+                    }
+                }
+                if (nextCycle > clock.now()) {
+                    byte d = (byte) data;
+                    clock.schedule(nextCycle, () -> {
+                        deliver(type, slot, d);
+                        scheduleNext();
+                    });
+                    return;
+                }
+                deliver(type, slot, (byte) data);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                finished = true;
+            }
+        }
+    }
+
+    private void deliver(int type, int slot, byte data) {
+        switch (type) {
+            case SWTPc6800.InputListener.END:
+                synchronized (this) {
+                    finished = true;
+                }
+                return;
+            case SWTPc6800.InputListener.KEY:
+            case SWTPc6800.InputListener.TAPE:
+            case SWTPc6800.InputListener.SERIAL:
+                ((SWTPc_MP_S) system.getIOCard(slot)).sendTo(data);
+                break;
+            case SWTPc6800.InputListener.RESET:
+                system.tripManualReset();
+                break;
+            case SWTPc6800.InputListener.IRQ_RAISE:
+                system.raiseIRQ();
+                break;
+            case SWTPc6800.InputListener.IRQ_LOWER:
+                system.lowerIRQ();
+                break;
+            case SWTPc6800.InputListener.NMI:
+                system.tripNMI();
+                break;
+            default:
+                synchronized (this) {
+                    failure = new IOException("Unknown input type " + type);
+                    finished = true;
+                }
+                return;
+        }
+        synchronized (this) {
+            count++;
+        }
+    }
+
+    private long readNumber() throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Input log ends in the middle of a number");
+            }
+            n |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("Bad number in input log");
+    }
+
+    /**
+     * Whether the END of the log (or a problem reading it) has been
+     * reached.
+     */
+    public synchronized boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * The cycle of the last input scheduled so far, which once the
+     * replay is finished is the cycle recording stopped at.
+     */
+    public synchronized long getLastCycle() {
+        return nextCycle;
+    }
+
+    /**
+     * The number of inputs delivered so far.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @throws IOException if the log could not be read to its END
+     */
+    public synchronized void checkError() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
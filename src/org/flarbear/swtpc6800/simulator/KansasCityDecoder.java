@@ -0,0 +1,279 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the bytes back out of a Kansas City Standard recording in a WAV
+ * file, such as an archived AC-30 cassette or one written by the
+ * KansasCityEncoder.
+ *
+ * The file is read a block at a time and each block is decoded before
+ * the next one is read, so memory use does not depend on the length of
+ * the tape. Tones are told apart by the time between zero crossings: a
+ * cycle shorter than one of 1600 Hz is taken as part of a 2400 Hz (1)
+ * bit and anything longer as part of a 1200 Hz (0) bit. The crossings
+ * are found after removing the DC level of the signal and filtering out
+ * anything well above the tones, and use a hysteresis that follows the
+ * signal level, so that hiss and offset on old tapes do not add false
+ * crossings. Each sample is only looked at once, so a tape decodes
+ * thousands of times faster than it would play.
+ *
+ * 8 and 16 bit PCM files at any sample rate are accepted. Only the first
+ * channel of a stereo file is used.
+ */
+public final class KansasCityDecoder extends InputStream {
+    private static final int BLOCK_SIZE = 65536;
+
+    private final FileChannel channel;
+    private final ByteBuffer block;
+    private final int sampleRate;
+    private final int channels;
+    private final int bytesPerSample;
+    private final long dataEnd;
+    private long readPos;
+
+    // Tone detection
+    private final int shortCycle;
+    private final double samplesPerBit;
+    private long sampleIndex;
+    private long lastCrossing;
+    private int lastHalfCycle;
+    private boolean high;
+    private int peak;
+    private int dcLevel;
+    private final int smoothing;
+    private int smoothed;
+    private int currentBit = 1;
+
+    // Framing: -1 is waiting for a start bit, 0 checks the start bit,
+    // 1 to 8 are the data bits and 9 is the stop bit
+    private int bitNumber = -1;
+    private double nextBitSample;
+    private int shifter;
+    private int framingErrors;
+
+    // Bytes decoded from the current block
+    private byte decoded[] = new byte[256];
+    private int decodedPos;
+    private int decodedLength;
+    private boolean eof;
+
+    public KansasCityDecoder(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer hdr = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(hdr, 0);
+            if (hdr.getInt(0) != 0x46464952 || hdr.getInt(8) != 0x45564157) {  // RIFF, WAVE
+                throw new IOException("Not a WAV file: " + file);
+            }
+            long pos = 12;
+            int format = 0, nchannels = 0, rate = 0, bits = 0;
+            long dataStart = -1, dataLength = 0;
+            ByteBuffer chunk = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            while (dataStart < 0 && pos + 8 <= channel.size()) {
+                chunk.clear().limit(8);
+                readFully(chunk, pos);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xffffffffL;
+                if (id == 0x20746d66) {  // "fmt "
+                    chunk.clear();
+                    readFully(chunk, pos + 8);
+                    format = chunk.getShort(0);
+                    nchannels = chunk.getShort(2);
+                    rate = chunk.getInt(4);
+                    bits = chunk.getShort(14);
+                } else if (id == 0x61746164) {  // "data"
+                    dataStart = pos + 8;
+                    dataLength = size;
+                }
+                pos += 8 + size + (size & 1);
+            }
+            if (format != 1 || (bits != 8 && bits != 16) || nchannels < 1 || rate < 4800) {
+                throw new IOException("Unsupported WAV format: " + file);
+            }
+            if (dataStart < 0) {
+                throw new IOException("No audio data: " + file);
+            }
+            this.sampleRate = rate;
+            this.channels = nchannels;
+            this.bytesPerSample = bits / 8;
+            this.readPos = dataStart;
+            // Recordings that were cut short often claim more data than they have
+            this.dataEnd = Math.min(dataStart + dataLength, channel.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        int frameSize = channels * bytesPerSample;
+        block = ByteBuffer.allocateDirect(BLOCK_SIZE - BLOCK_SIZE % frameSize)
+                          .order(ByteOrder.LITTLE_ENDIAN);
+        shortCycle = sampleRate / 1600;
+        // A one pole low pass at twice the highest tone, in 16.16 fixed point
+        smoothing = (int) (65536 * (1 - Math.exp(-2 * Math.PI * 4800 / sampleRate)));
+        samplesPerBit = (double) sampleRate / KansasCityEncoder.BAUD_RATE;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * The number of characters so far that did not end with a stop bit.
+     * They are dropped rather than passed on.
+     */
+    public int getFramingErrors() {
+        return framingErrors;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return decoded[decodedPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, decodedLength - decodedPos);
+        System.arraycopy(decoded, decodedPos, b, off, n);
+        decodedPos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return decodedLength - decodedPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        eof = true;
+        channel.close();
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0) {
+                throw new IOException("Truncated WAV file");
+            }
+            pos += n;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        while (decodedPos >= decodedLength) {
+            if (eof) {
+                return false;
+            }
+            decodedPos = decodedLength = 0;
+            decodeBlock();
+        }
+        return true;
+    }
+
+    private void decodeBlock() throws IOException {
+        block.clear();
+        long remaining = dataEnd - readPos;
+        if (remaining < block.capacity()) {
+            block.limit((int) Math.max(remaining, 0));
+        }
+        int n = block.hasRemaining() ? channel.read(block, readPos) : -1;
+        if (n <= 0) {
+            eof = true;
+            return;
+        }
+        readPos += n;
+        block.flip();
+        int frameSize = channels * bytesPerSample;
+        int frames = block.remaining() / frameSize;
+        for (int i = 0; i < frames; i++) {
+            int p = i * frameSize;
+            int s = (bytesPerSample == 1)
+                    ? ((block.get(p) & 0xff) - 128) << 8
+                    : block.getShort(p);
+            sample(s);
+        }
+    }
+
+    private void sample(int s) {
+        long index = sampleIndex++;
+        // Follow any DC offset so that the crossings stay centered
+        dcLevel += (s - dcLevel) >> 8;
+        smoothed += (int) (((long) (s - dcLevel - smoothed) * smoothing) >> 16);
+        s = smoothed;
+        int mag = Math.abs(s);
+        if (mag > peak) {
+            peak = mag;
+        } else {
+            peak -= (peak >> 12) + 1;
+            if (peak < 0) {
+                peak = 0;
+            }
+        }
+        int hysteresis = peak >> 3;
+        if (high ? s < -hysteresis : s > hysteresis) {
+            high = !high;
+            int halfCycle = (int) (index - lastCrossing);
+            lastCrossing = index;
+            // Timing whole cycles cancels out any lopsidedness between
+            // the positive and negative halves of the wave
+            currentBit = (halfCycle + lastHalfCycle <= shortCycle) ? 1 : 0;
+            lastHalfCycle = halfCycle;
+            if (bitNumber < 0 && currentBit == 0) {
+                // The start bit began where this half cycle did
+                bitNumber = 0;
+                nextBitSample = index - halfCycle + samplesPerBit / 2;
+            }
+        }
+        if (bitNumber >= 0 && index >= nextBitSample) {
+            bit(currentBit);
+            nextBitSample += samplesPerBit;
+        }
+    }
+
+    private void bit(int value) {
+        if (bitNumber == 0) {
+            if (value != 0) {
+                // Just a glitch in the leader
+                bitNumber = -1;
+                return;
+            }
+            shifter = 0;
+        } else if (bitNumber <= 8) {
+            shifter |= value << (bitNumber - 1);
+        } else {
+            if (value == 1) {
+                if (decodedLength == decoded.length) {
+                    byte newdecoded[] = new byte[decoded.length * 2];
+                    System.arraycopy(decoded, 0, newdecoded, 0, decodedLength);
+                    decoded = newdecoded;
+                }
+                decoded[decodedLength++] = (byte) shifter;
+            } else {
+                framingErrors++;
+            }
+            // The second stop bit is just more time waiting for a start bit
+            bitNumber = -1;
+            return;
+        }
+        bitNumber++;
+    }
+}
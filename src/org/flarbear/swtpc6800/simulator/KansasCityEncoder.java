@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records punched bytes as Kansas City Standard audio in a WAV file, the
+ * way the AC-30 recorded them onto cassette.
+ *
+ * Each byte is sent at 300 baud as a start bit, 8 data bits (low bit
+ * first) and 2 stop bits. A 0 bit is 4 cycles of 1200 Hz and a 1 bit is
+ * 8 cycles of 2400 Hz, and the tape starts and ends with a stretch of
+ * 2400 Hz leader. The samples are 8 bit mono PCM and are written through
+ * a TapeRecorder, so the punch never waits on the disk and the memory
+ * used does not grow with the length of the recording. The sizes in the
+ * WAV header are filled in when the encoder is closed.
+ */
+public final class KansasCityEncoder implements Closeable {
+    public static final int BAUD_RATE = 300;
+    public static final int ZERO_FREQUENCY = 1200;
+    public static final int ONE_FREQUENCY = 2400;
+    public static final int DEFAULT_SAMPLE_RATE = 22050;
+    public static final int DEFAULT_LEADER_MILLIS = 2000;
+
+    static final int HEADER_SIZE = 44;
+
+    private static final int AMPLITUDE = 100;
+    private static final int SINE_STEPS = 256;
+    private static final byte SINE[] = new byte[SINE_STEPS];
+    static {
+        for (int i = 0; i < SINE_STEPS; i++) {
+            SINE[i] = (byte) (128 + Math.round(AMPLITUDE * Math.sin(2 * Math.PI * i / SINE_STEPS)));
+        }
+    }
+
+    private final Path file;
+    private final TapeRecorder recorder;
+    private final int sampleRate;
+    private final int leaderBits;
+
+    // The samples for one byte frame, refilled for every byte
+    private final byte frame[];
+    private long bitsWritten;
+    private long samplesWritten;
+    private boolean closed;
+
+    public KansasCityEncoder(Path file) throws IOException {
+        this(file, DEFAULT_SAMPLE_RATE, DEFAULT_LEADER_MILLIS);
+    }
+
+    public KansasCityEncoder(Path file, int sampleRate, int leaderMillis) throws IOException {
+        if (sampleRate < ONE_FREQUENCY * 4) {
+            throw new IllegalArgumentException("sample rate too low: " + sampleRate);
+        }
+        if (leaderMillis < 0) {
+            throw new IllegalArgumentException("leader cannot be negative");
+        }
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.leaderBits = (int) ((long) leaderMillis * BAUD_RATE / 1000);
+        this.frame = new byte[(sampleRate / BAUD_RATE + 2) * 11];
+        this.recorder = new TapeRecorder(file, false);
+        byte header[] = new byte[HEADER_SIZE];
+        writeHeader(ByteBuffer.wrap(header), 0);
+        recorder.write(header, 0, header.length);
+        leader();
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public synchronized void write(byte data) {
+        if (closed) {
+            return;
+        }
+        int n = 0;
+        n = bit(0, n);
+        for (int i = 0; i < 8; i++) {
+            n = bit((data >> i) & 1, n);
+        }
+        n = bit(1, n);
+        n = bit(1, n);
+        recorder.write(frame, 0, n);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            leader();
+            closed = true;
+        }
+        recorder.close();
+        // Now that the length is known go back and fix up the header
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(header, samplesWritten);
+        header.flip();
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) {
+                fc.write(header, header.position());
+            }
+        }
+    }
+
+    private void leader() {
+        for (int i = 0; i < leaderBits; i += 8) {
+            int n = 0;
+            for (int b = 0; b < 8 && i + b < leaderBits; b++) {
+                n = bit(1, n);
+            }
+            recorder.write(frame, 0, n);
+        }
+    }
+
+    /**
+     * Appends the samples for one bit to frame at n and returns the new
+     * end. The number of samples per bit is rounded so that the bits
+     * never drift from the baud rate even when it does not divide the
+     * sample rate.
+     */
+    private int bit(int value, int n) {
+        long start = bitsWritten * sampleRate / BAUD_RATE;
+        long end = ++bitsWritten * sampleRate / BAUD_RATE;
+        int count = (int) (end - start);
+        int cycles = (value == 0 ? ZERO_FREQUENCY : ONE_FREQUENCY) / BAUD_RATE;
+        for (int i = 0; i < count; i++) {
+            frame[n++] = SINE[(int) ((long) i * cycles * SINE_STEPS / count) % SINE_STEPS];
+        }
+        samplesWritten += count;
+        return n;
+    }
+
+    private void writeHeader(ByteBuffer buf, long samples) {
+        int dataSize = (int) Math.min(samples, Integer.MAX_VALUE - HEADER_SIZE);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(new byte[] { 'R', 'I', 'F', 'F' });
+        buf.putInt(HEADER_SIZE - 8 + dataSize);
+        buf.put(new byte[] { 'W', 'A', 'V', 'E', 'f', 'm', 't', ' ' });
+        buf.putInt(16);
+        buf.putShort((short) 1);             // PCM
+        buf.putShort((short) 1);             // mono
+        buf.putInt(sampleRate);
+        buf.putInt(sampleRate);              // bytes per second
+        buf.putShort((short) 1);             // bytes per frame
+        buf.putShort((short) 8);             // bits per sample
+        buf.put(new byte[] { 'd', 'a', 't', 'a' });
+        buf.putInt(dataSize);
+    }
+}
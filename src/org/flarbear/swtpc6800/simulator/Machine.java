@@ -0,0 +1,409 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * A handle on an SWTPc6800 for programs that embed the emulator, as
+ * built by MachineBuilder.
+ *
+ * The machine runs on a deterministic clock and can be driven either by
+ * runFor() and runUntil() on the calling thread, which never wait on the
+ * wall clock, or by start() and stop() which run it on a SimulationLoop
+ * of its own. It is powered on and reset the first time it is run.
+ *
+ * If the machine has a serial port, getInput() feeds characters to it
+ * as though they were typed and getOutput() reads back what the program
+ * sent. Output is buffered without limit until it is read, so nothing
+ * the program does blocks on the reader.
+ */
+public class Machine {
+    public static final int INPUT_CAPACITY = 4096;
+
+    private final SWTPc6800 system;
+    private final VirtualClock clock;
+    private final SimulationLoop loop;
+    private final SWTPc_MP_S serialPort;
+    private final boolean flowControlledInput;
+    private final boolean realTime;
+    private final SerialOutput output;
+    private final SerialInput input;
+    private boolean running;
+
+    Machine(SWTPc6800 system, SWTPc_MP_S serialPort,
+            boolean flowControlledInput, boolean realTime)
+    {
+        this.system = system;
+        this.clock = system.getClock();
+        this.loop = new SimulationLoop();
+        this.serialPort = serialPort;
+        this.flowControlledInput = flowControlledInput;
+        this.realTime = realTime;
+        loop.setRealTime(realTime);
+        loop.add(system);
+        if (serialPort != null) {
+            output = new SerialOutput();
+            input = new SerialInput(serialPort.openInputQueue(INPUT_CAPACITY, flowControlledInput));
+            serialPort.connectTo(output);
+        } else {
+            output = null;
+            input = null;
+        }
+    }
+
+    public SWTPc6800 getSystem() {
+        return system;
+    }
+
+    public Motorola6800 getProcessor() {
+        return system.getProcessor();
+    }
+
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    /**
+     * The number of cycles the machine has run for.
+     */
+    public long getCycles() {
+        return clock.now();
+    }
+
+    /**
+     * Reads memory as the processor would see it.
+     */
+    public byte load(int addr) {
+        return system.load((char) addr);
+    }
+
+    public void store(int addr, byte data) {
+        system.store((char) addr, data);
+    }
+
+    /**
+     * Powers the machine on and presses the reset button, which start(),
+     * runFor() and runUntil() do automatically the first time.
+     */
+    public synchronized void powerOn() {
+        if (!system.isPoweredOn()) {
+            system.powerOn();
+            system.tripManualReset();
+        }
+    }
+
+    public synchronized void powerOff() {
+        checkStopped();
+        system.powerOff();
+    }
+
+    /**
+     * Presses the reset button.
+     */
+    public synchronized void reset() {
+        if (running) {
+            loop.invokeLater(system::tripManualReset);
+        } else {
+            system.tripManualReset();
+        }
+    }
+
+    /**
+     * Runs the machine in the background until stop() is called.
+     */
+    public synchronized void start() {
+        checkStopped();
+        powerOn();
+        running = true;
+        loop.start();
+    }
+
+    /**
+     * Stops the background loop and waits for it to finish its slice.
+     */
+    public synchronized void stop() {
+        if (running) {
+            loop.stopAndWait();
+            running = false;
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Freezes the state of the machine so that copies of it can be forked
+     * off cheaply, see MachineSnapshot. The machine must be stopped.
+     *
+     * @throws IllegalStateException if it is running or has a card that
+     *         cannot be forked
+     */
+    public synchronized MachineSnapshot snapshot() {
+        checkStopped();
+        int serialSlot = -1;
+        for (int i = 0; i < SWTPc6800.NUM_IO_SLOTS; i++) {
+            if (serialPort != null && system.getIOCard(i) == serialPort) {
+                serialSlot = i;
+            }
+        }
+        return new MachineSnapshot(system, serialSlot, flowControlledInput, realTime);
+    }
+
+    private void checkStopped() {
+        if (running) {
+            throw new IllegalStateException("Machine is running in the background");
+        }
+    }
+
+    /**
+     * Runs the machine on the calling thread for at least the given
+     * number of cycles, finishing the last instruction, or until the
+     * processor stops at a breakpoint. If the processor has nothing to do
+     * (it is waiting for an interrupt that nothing has scheduled) the
+     * time just passes.
+     *
+     * @return the number of cycles that actually elapsed
+     */
+    public synchronized long runFor(long cycles) {
+        checkStopped();
+        powerOn();
+        long start = clock.now();
+        long end = start + cycles;
+        long now;
+        while ((now = clock.now()) < end) {
+            int slice = (int) Math.min(end - now, SimulationLoop.SLICE_CYCLES);
+            if (system.runSlice(slice)) {
+                continue;
+            }
+            if (system.isStoppedAtBreakpoint()) {
+                break;
+            }
+            if (!clock.advanceToNextEvent()) {
+                clock.advance((int) Math.min(end - clock.now(), Integer.MAX_VALUE));
+            }
+        }
+        return clock.now() - start;
+    }
+
+    /**
+     * Runs the machine on the calling thread one instruction at a time
+     * until the condition is true, maxCycles have gone by or the
+     * processor stops at a breakpoint. The condition is tested before
+     * every instruction, so this is much slower than runFor(), which
+     * together with a breakpoint is the fast way to run to an address.
+     *
+     * @return whether the condition became true
+     */
+    public synchronized boolean runUntil(Predicate<Machine> condition, long maxCycles) {
+        checkStopped();
+        powerOn();
+        long end = clock.now() + maxCycles;
+        while (clock.now() < end) {
+            if (condition.test(this)) {
+                return true;
+            }
+            if (!system.runSlice(1) &&
+                (system.isStoppedAtBreakpoint() || !clock.advanceToNextEvent()))
+            {
+                break;
+            }
+        }
+        return condition.test(this);
+    }
+
+    /**
+     * Stops the processor in front of the instruction at addr, see
+     * Motorola6800.setBreakpoint(). A background run leaves the machine
+     * frozen there until resume() is called.
+     */
+    public void setBreakpoint(int addr) {
+        getProcessor().setBreakpoint(addr);
+    }
+
+    /**
+     * Stops at addr only when the condition is true.
+     */
+    public void setBreakpoint(int addr, Predicate<Machine> condition) {
+        getProcessor().setBreakpoint(addr, p -> condition.test(this));
+    }
+
+    public void clearBreakpoint(int addr) {
+        getProcessor().clearBreakpoint(addr);
+    }
+
+    public boolean isStoppedAtBreakpoint() {
+        return system.isStoppedAtBreakpoint();
+    }
+
+    public void resume() {
+        getProcessor().resume();
+    }
+
+    /**
+     * Plays back a log written by an InputRecorder from a machine built
+     * the same way, as fast as the host allows, and stops at the cycle
+     * the recording stopped at. The machine must not have run yet.
+     *
+     * @return the number of inputs replayed
+     */
+    public synchronized long replay(InputStream log) throws IOException {
+        checkStopped();
+        InputReplayer replayer = new InputReplayer(system, log);
+        powerOn();
+        replayer.start();
+        while (!replayer.isFinished()) {
+            long next = replayer.getLastCycle();
+            runFor(Math.max(1, next - clock.now()));
+            if (system.isStoppedAtBreakpoint()) {
+                break;
+            }
+        }
+        replayer.checkError();
+        return replayer.getCount();
+    }
+
+    /**
+     * See SWTPc6800.addWatchpoint().
+     */
+    public void addWatchpoint(Watchpoint w) {
+        system.addWatchpoint(w);
+    }
+
+    public void removeWatchpoint(Watchpoint w) {
+        system.removeWatchpoint(w);
+    }
+
+    private void checkSerial() {
+        if (output == null) {
+            throw new IllegalStateException("Machine has no serial port");
+        }
+    }
+
+    /**
+     * A stream of the characters the machine sends. read() waits for
+     * them, which only makes sense if the machine is running in the
+     * background; otherwise use available() or readOutput().
+     */
+    public InputStream getOutput() {
+        checkSerial();
+        return output;
+    }
+
+    /**
+     * Takes everything the machine has sent so far, as 7 bit ASCII.
+     */
+    public String readOutput() {
+        checkSerial();
+        return output.drain();
+    }
+
+    /**
+     * A stream that types into the machine. Characters are held until
+     * the program asks for one, either by enabling the receiver or, if
+     * the machine was built without MachineBuilder.flowControlledInput(),
+     * by reading the previous one. It must only be written from one
+     * thread, and blocks when INPUT_CAPACITY characters are waiting to
+     * be read, so a thread that also runs the machine with runFor()
+     * should not get that far ahead of it.
+     */
+    public OutputStream getInput() {
+        checkSerial();
+        return input;
+    }
+
+    /**
+     * Types the characters of the text, see getInput().
+     */
+    public void type(String text) {
+        checkSerial();
+        try {
+            for (int i = 0; i < text.length(); i++) {
+                input.write(text.charAt(i));
+            }
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class SerialOutput extends InputStream implements RS232Device {
+        private byte buf[] = new byte[256];
+        private int head;
+        private int tail;
+
+        @Override
+        public synchronized void sendTo(byte data) {
+            if (tail == buf.length) {
+                if (head > buf.length / 2) {
+                    System.arraycopy(buf, head, buf, 0, tail - head);
+                } else {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                    System.arraycopy(buf, head, buf, 0, tail - head);
+                }
+                tail -= head;
+                head = 0;
+            }
+            buf[tail++] = data;
+            notifyAll();
+        }
+
+        @Override
+        public void connectTo(RS232Device otherdevice) {
+        }
+
+        @Override
+        public void waitForCTS() {
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            while (head == tail) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return buf[head++] & 0xff;
+        }
+
+        @Override
+        public synchronized int available() {
+            return tail - head;
+        }
+
+        synchronized String drain() {
+            char chars[] = new char[tail - head];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) (buf[head + i] & 0x7f);
+            }
+            head = tail = 0;
+            return new String(chars);
+        }
+    }
+
+    private static final class SerialInput extends OutputStream {
+        private final ByteRing queue;
+
+        SerialInput(ByteRing queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void write(int b) throws InterruptedIOException {
+            try {
+                queue.put((byte) b);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
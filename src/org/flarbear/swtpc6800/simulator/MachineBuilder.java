@@ -0,0 +1,282 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assembles an SWTPc6800 from a description of its cards.
+ *
+ * <pre>
+ *     Machine m = new MachineBuilder()
+ *         .processor()
+ *         .memory(0x0000, 16)
+ *         .serial()
+ *         .build();
+ * </pre>
+ *
+ * Memory is made out of MP-M and MP-8M cards, which are put in main
+ * slots 2 through 6 and then 0 in the order they are asked for, while
+ * the MP-A always goes in slot 1. Cards can also be installed in a
+ * specific slot with card() and ioCard().
+ *
+ * flatMemory() builds the smallest possible machine instead, a processor
+ * with 64K of RAM and no address decoding (see FlatMemoryCard), which
+ * cannot have any other cards.
+ *
+ * Images passed to load() are stored through the bus once the cards are
+ * installed, so they only land where there is RAM.
+ */
+public class MachineBuilder {
+    private static final int MEMORY_SLOT_ORDER[] = { 2, 3, 4, 5, 6, 0 };
+
+    private final SS50Card mainCards[] = new SS50Card[SWTPc6800.NUM_MAIN_SLOTS];
+    private final SS30Card ioCards[] = new SS30Card[SWTPc6800.NUM_IO_SLOTS];
+    private final List<SS50Card> memoryCards = new ArrayList<>();
+    private final List<SRecordImage> images = new ArrayList<>();
+    private final List<DiskImage> disks = new ArrayList<>();
+    private boolean flat;
+    private boolean fastDisk;
+    private boolean flowControlledInput = true;
+    private boolean realTime = true;
+    private int resetVector = -1;
+    private int serialSlot = -1;
+
+    /**
+     * The machine that SWTPc6800.makeStandardSystem() has always built,
+     * an MP-A with SWTBUG, 12K of RAM at $0000 and an MP-S in I/O slot 1.
+     */
+    public static MachineBuilder standard() {
+        return new MachineBuilder()
+            .processor()
+            .memory(0x0000, 4)
+            .memory(0x1000, 4)
+            .memory(0x2000, 4)
+            .serial();
+    }
+
+    /**
+     * An MP-A with the standard SWTBUG ROM in slot 1.
+     */
+    public MachineBuilder processor() {
+        return card(new SWTPc_MP_A(), 1);
+    }
+
+    /**
+     * An MP-A with a different monitor ROM in slot 1, see SWTPc_MP_A.
+     */
+    public MachineBuilder processor(SRecordImage monitor) {
+        return card(new SWTPc_MP_A(monitor), 1);
+    }
+
+    /**
+     * RAM starting at base, which must be on a 4K boundary unless the
+     * size is 1K or 2K (a partly populated MP-M). Sizes of 4K or more
+     * must be a multiple of 4K and use as many cards as it takes.
+     */
+    public MachineBuilder memory(int base, int kbytes) {
+        if (base < 0 || base > 0xFFFF || base + kbytes * 1024 > 0x10000) {
+            throw new IllegalArgumentException("memory does not fit in 64K");
+        }
+        if (kbytes == 1 || kbytes == 2) {
+            memoryCards.add(new SWTPc_MP_M((char) base, kbytes));
+            return this;
+        }
+        if (kbytes <= 0 || (kbytes % 4) != 0) {
+            throw new IllegalArgumentException("memory must be 1K, 2K or a multiple of 4K");
+        }
+        while (kbytes >= 8) {
+            memoryCards.add(new SWTPc_MP_8M((char) base));
+            base += 8 * 1024;
+            kbytes -= 8;
+        }
+        if (kbytes == 4) {
+            memoryCards.add(new SWTPc_MP_M((char) base, 4));
+        }
+        return this;
+    }
+
+    /**
+     * A processor with all 64K as RAM and no decoding, see FlatMemoryCard.
+     */
+    public MachineBuilder flatMemory() {
+        flat = true;
+        return this;
+    }
+
+    public MachineBuilder card(SS50Card card, int slot) {
+        if (mainCards[slot] != null) {
+            throw new IllegalStateException("Slot " + slot + " already has a card");
+        }
+        mainCards[slot] = card;
+        return this;
+    }
+
+    public MachineBuilder ioCard(SS30Card card, int slot) {
+        if (ioCards[slot] != null) {
+            throw new IllegalStateException("I/O slot " + slot + " already has a card");
+        }
+        ioCards[slot] = card;
+        return this;
+    }
+
+    /**
+     * An MP-S in I/O slot 1, which is where SWTBUG looks for its terminal.
+     */
+    public MachineBuilder serial() {
+        return serial(1);
+    }
+
+    /**
+     * An MP-S in the given I/O slot, which becomes the machine's input
+     * and output streams.
+     */
+    public MachineBuilder serial(int slot) {
+        ioCard(new SWTPc_MP_S(), slot);
+        serialSlot = slot;
+        return this;
+    }
+
+    /**
+     * Puts the image in the next drive of a DC-1 in I/O slots 5 and 6.
+     */
+    public MachineBuilder disk(DiskImage image) {
+        if (disks.size() >= FD1771.NUM_DRIVES) {
+            throw new IllegalStateException("The DC-1 only has " + FD1771.NUM_DRIVES + " drives");
+        }
+        disks.add(image);
+        return this;
+    }
+
+    /**
+     * See FD1771.setNoRotationalDelay().
+     */
+    public MachineBuilder fastDisk(boolean fastDisk) {
+        this.fastDisk = fastDisk;
+        return this;
+    }
+
+    public MachineBuilder load(SRecordImage image) {
+        images.add(image);
+        return this;
+    }
+
+    /**
+     * Stores addr at $FFFE once the images are loaded. This is only
+     * useful when there is RAM there, as with flatMemory().
+     */
+    public MachineBuilder resetVector(int addr) {
+        if (addr < 0 || addr > 0xFFFF) {
+            throw new IllegalArgumentException("bad address: " + addr);
+        }
+        resetVector = addr;
+        return this;
+    }
+
+    /**
+     * Whether Machine.getInput() waits for the program to enable the
+     * receiver before handing it a character, as SWTBUG does before it
+     * reads a key and which is the default. SWTBUG discards anything
+     * received while the receiver is disabled, so typing ahead would
+     * otherwise be lost. Programs that read the port by polling the
+     * status without enabling the receiver, such as MITS BASIC, need
+     * this turned off, and then each character is delivered as soon as
+     * the previous one has been read.
+     */
+    public MachineBuilder flowControlledInput(boolean flowControlled) {
+        this.flowControlledInput = flowControlled;
+        return this;
+    }
+
+    /**
+     * Whether Machine.start() keeps the machine to real time, which it
+     * does by default. runFor() and runUntil() never wait.
+     */
+    public MachineBuilder realTime(boolean realTime) {
+        this.realTime = realTime;
+        return this;
+    }
+
+    /**
+     * Builds the system without attaching it to anything, so it can run
+     * on its own processor thread or be added to a SimulationLoop.
+     */
+    public SWTPc6800 buildSystem() {
+        SWTPc6800 system = new SWTPc6800();
+        if (flat) {
+            for (SS50Card c : mainCards) {
+                if (c != null) {
+                    throw new IllegalStateException("Flat memory cannot have other cards");
+                }
+            }
+            for (SS30Card c : ioCards) {
+                if (c != null) {
+                    throw new IllegalStateException("Flat memory cannot have I/O cards");
+                }
+            }
+            if (!memoryCards.isEmpty() || !disks.isEmpty()) {
+                throw new IllegalStateException("Flat memory cannot have other cards");
+            }
+            system.installcard(new FlatMemoryCard(), 1);
+        } else {
+            int next = 0;
+            for (SS50Card c : memoryCards) {
+                while (next < MEMORY_SLOT_ORDER.length && mainCards[MEMORY_SLOT_ORDER[next]] != null) {
+                    next++;
+                }
+                if (next >= MEMORY_SLOT_ORDER.length) {
+                    throw new IllegalStateException("Not enough slots for the memory");
+                }
+                system.installcard(c, MEMORY_SLOT_ORDER[next++]);
+            }
+            for (int i = 0; i < mainCards.length; i++) {
+                if (mainCards[i] != null) {
+                    system.installcard(mainCards[i], i);
+                }
+            }
+            if (!disks.isEmpty()) {
+                SWTPc_DC_1 controller = new SWTPc_DC_1();
+                controller.setNoRotationalDelay(fastDisk);
+                for (int i = 0; i < disks.size(); i++) {
+                    controller.insert(i, disks.get(i));
+                }
+                ioCard(controller.getDriveSelect(), 5);
+                ioCard(controller, 6);
+            }
+            for (int i = 0; i < ioCards.length; i++) {
+                if (ioCards[i] != null) {
+                    system.installcard(ioCards[i], i);
+                }
+            }
+        }
+        byte mem[] = new byte[0x10000];
+        for (SRecordImage image : images) {
+            image.copyTo(mem, 0);
+            for (int r = 0; r < image.getRangeCount(); r++) {
+                int start = image.getRangeStart(r);
+                int end = Math.min(start + image.getRangeLength(r), mem.length);
+                for (int a = start; a < end; a++) {
+                    system.store((char) a, mem[a]);
+                }
+            }
+        }
+        if (resetVector >= 0) {
+            system.store(Motorola6800.RESET_JUMP_ADDR, (byte) (resetVector >> 8));
+            system.store((char) (Motorola6800.RESET_JUMP_ADDR + 1), (byte) resetVector);
+        }
+        return system;
+    }
+
+    /**
+     * Builds the system and a Machine to drive it. The builder should
+     * not be used again afterwards since the cards now belong to it.
+     */
+    public Machine build() {
+        SWTPc6800 system = buildSystem();
+        SWTPc_MP_S serialPort = (serialSlot < 0) ? null : (SWTPc_MP_S) system.getIOCard(serialSlot);
+        return new Machine(system, serialPort, flowControlledInput, realTime);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+/**
+ * A frozen copy of a machine from which any number of independent
+ * machines can be forked, each carrying on from where the snapshot was
+ * taken.
+ *
+ * <pre>
+ *     Machine booted = MachineBuilder.standard().build();
+ *     booted.runUntil(...);   // load BASIC, etc.
+ *     MachineSnapshot snap = booted.snapshot();
+ *     Machine job = snap.fork();
+ * </pre>
+ *
+ * Taking the snapshot forks every card once into a template that is
+ * never run (see SS50Card.fork()), which also marks the RAM pages of the
+ * original machine as shared. Each fork() forks the templates again and
+ * reuses the bus decode table of the original rather than building its
+ * own. All of them share the RAM pages that were there when the
+ * snapshot was taken, copy-on-write, so a fork costs its cards, their
+ * page tables and the pages it goes on to write, and the machine the
+ * snapshot was taken from carries on unaffected.
+ *
+ * Forks get the registers of the processor and the cards and the cycle
+ * count of the clock. They do not get events already scheduled on the
+ * clock, breakpoints, watchpoints, input listeners, characters still
+ * queued for a serial port or anything attached to a card from outside,
+ * such as a terminal or a PIA peripheral. A machine with a card that
+ * cannot be forked, such as a DC-1 which would have to share its disks,
+ * cannot be snapshotted.
+ */
+public class MachineSnapshot {
+    private final SS50Card mainCards[] = new SS50Card[SWTPc6800.NUM_MAIN_SLOTS];
+    private final SS30Card ioCards[] = new SS30Card[SWTPc6800.NUM_IO_SLOTS];
+    private final Object mainStates[] = new Object[SWTPc6800.NUM_MAIN_SLOTS];
+    private final Object ioStates[] = new Object[SWTPc6800.NUM_IO_SLOTS];
+    private final int decodeLayout[];
+    private final boolean poweron;
+    private final long cycle;
+    private final int serialSlot;
+    private final boolean flowControlledInput;
+    private final boolean realTime;
+
+    /**
+     * The machine must be stopped, see Machine.snapshot().
+     *
+     * @throws IllegalStateException if a card cannot be forked
+     */
+    MachineSnapshot(SWTPc6800 system, int serialSlot,
+                    boolean flowControlledInput, boolean realTime)
+    {
+        for (int i = 0; i < mainCards.length; i++) {
+            SS50Card c = system.getMainCard(i);
+            if (c != null) {
+                mainCards[i] = c.fork();
+                if (mainCards[i] == null) {
+                    throw new IllegalStateException("The card in slot " + i + " cannot be forked");
+                }
+                mainStates[i] = c.saveState();
+            }
+        }
+        for (int i = 0; i < ioCards.length; i++) {
+            SS30Card c = system.getIOCard(i);
+            if (c != null) {
+                ioCards[i] = c.fork();
+                if (ioCards[i] == null) {
+                    throw new IllegalStateException("The card in I/O slot " + i + " cannot be forked");
+                }
+                ioStates[i] = c.saveState();
+            }
+        }
+        this.decodeLayout = system.getDecodeLayout();
+        this.poweron = system.isPoweredOn();
+        this.cycle = system.getClock().now();
+        this.serialSlot = serialSlot;
+        this.flowControlledInput = flowControlledInput;
+        this.realTime = realTime;
+    }
+
+    /**
+     * The clock cycle the snapshot was taken at, which forks start from.
+     */
+    public long getCycle() {
+        return cycle;
+    }
+
+    /**
+     * A new machine in the state the snapshot was taken in. The
+     * templates never store into their pages, so forking only reads
+     * them (see MemoryDevice8x16.fork()) and forks can be made from any
+     * number of threads at once, and run on threads of their own.
+     */
+    public Machine fork() {
+        SWTPc6800 system = new SWTPc6800();
+        SS50Card cards[] = new SS50Card[mainCards.length];
+        for (int i = 0; i < mainCards.length; i++) {
+            if (mainCards[i] != null) {
+                cards[i] = mainCards[i].fork();
+            }
+        }
+        system.installcards(cards, decodeLayout);
+        for (int i = 0; i < ioCards.length; i++) {
+            if (ioCards[i] != null) {
+                system.installcard(ioCards[i].fork(), i);
+            }
+        }
+        SWTPc_MP_S serialPort = (serialSlot < 0) ? null : (SWTPc_MP_S) system.getIOCard(serialSlot);
+        Machine machine = new Machine(system, serialPort, flowControlledInput, realTime);
+        if (poweron) {
+            // The power on reset is undone by the saved registers
+            system.powerOn();
+            for (int i = 0; i < mainCards.length; i++) {
+                if (mainStates[i] != null) {
+                    system.getMainCard(i).restoreState(mainStates[i]);
+                }
+            }
+            for (int i = 0; i < ioCards.length; i++) {
+                if (ioStates[i] != null) {
+                    system.getIOCard(i).restoreState(ioStates[i]);
+                }
+            }
+        }
+        system.getClock().rewindTo(cycle);
+        return machine;
+    }
+}
@@ -4,11 +4,32 @@
 
 package org.flarbear.swtpc6800.simulator;
 
+import java.util.Arrays;
+
+/**
+ * A block of memory on a card.
+ *
+ * The memory is kept as an array of 256 byte pages. Stores mark the page
+ * they land in as dirty, which is how a RewindBuffer finds the pages that
+ * have changed since its last checkpoint without comparing the memory.
+ *
+ * A device made by fork() starts out sharing every page with the device
+ * it was forked from, and whichever of them next stores into a shared
+ * page first takes a copy of its own, so a fork only costs the pages it
+ * writes.
+ */
 public class MemoryDevice8x16 {
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE = (1 << PAGE_SHIFT);
+    static final int PAGE_MASK = (PAGE_SIZE - 1);
+
     char base;
     char addrmask;
     char end;
-    byte mem[];
+    final int len;
+    final byte pages[][];
+    final boolean shared[];
+    final boolean dirty[];
 
     public MemoryDevice8x16(char base, int len) {
         this(base, (char) 0xFFFF, len);
@@ -24,7 +45,135 @@ public class MemoryDevice8x16 {
         this.base = base;
         this.addrmask = addrmask;
         this.end = (char) (base + len - 1);
-        this.mem = new byte[len];
+        this.len = len;
+        int numpages = (len + PAGE_SIZE - 1) >> PAGE_SHIFT;
+        this.pages = new byte[numpages][];
+        for (int p = 0; p < numpages; p++) {
+            pages[p] = new byte[Math.min(PAGE_SIZE, len - (p << PAGE_SHIFT))];
+        }
+        this.shared = new boolean[numpages];
+        this.dirty = new boolean[numpages];
+    }
+
+    /**
+     * Shares every page of the other device, see fork().
+     */
+    protected MemoryDevice8x16(MemoryDevice8x16 from) {
+        this.base = from.base;
+        this.addrmask = from.addrmask;
+        this.end = from.end;
+        this.len = from.len;
+        this.pages = from.pages.clone();
+        this.shared = new boolean[pages.length];
+        this.dirty = new boolean[pages.length];
+        Arrays.fill(shared, true);
+        // Only the pages the other device still has to itself are written,
+        // so a device whose pages are all shared is only read
+        for (int p = 0; p < pages.length; p++) {
+            if (!from.shared[p]) {
+                from.shared[p] = true;
+            }
+        }
+    }
+
+    /**
+     * A device at the same addresses with the same contents, sharing
+     * this device's pages until either of them stores into one.
+     *
+     * Forking marks the pages of this device as shared, so it must not
+     * be in use on another thread while it is forked. The exception is a
+     * device whose pages are all shared already, such as one made by
+     * fork() that has not been stored into since, which forking only
+     * reads, so any number of threads can fork it at once.
+     */
+    public MemoryDevice8x16 fork() {
+        return new MemoryDevice8x16(this);
+    }
+
+    public char getBase() {
+        return base;
+    }
+
+    public int size() {
+        return len;
+    }
+
+    /**
+     * The number of pages, counted from the base of the device, the last
+     * of which may be short.
+     */
+    public int getPageCount() {
+        return pages.length;
+    }
+
+    /**
+     * The number of pages this device has its own copy of rather than
+     * sharing with a device it was forked from or to.
+     */
+    public int getPrivatePageCount() {
+        int n = 0;
+        for (boolean s : shared) {
+            if (!s) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    public boolean isPageDirty(int page) {
+        return dirty[page];
+    }
+
+    public void clearDirtyPages() {
+        Arrays.fill(dirty, false);
+    }
+
+    /**
+     * Copies a page, which is shorter than PAGE_SIZE if it is the last
+     * page of a device that is not a whole number of pages.
+     */
+    public byte[] readPage(int page) {
+        return pages[page].clone();
+    }
+
+    /**
+     * Puts back a page saved by readPage(), without marking it dirty.
+     */
+    public void writePage(int page, byte data[]) {
+        if (shared[page]) {
+            pages[page] = data.clone();
+            shared[page] = false;
+        } else {
+            System.arraycopy(data, 0, pages[page], 0, data.length);
+        }
+    }
+
+    /**
+     * Takes a private copy of a shared page before it is stored into.
+     */
+    final void unshare(int page) {
+        pages[page] = pages[page].clone();
+        shared[page] = false;
+    }
+
+    /**
+     * The whole contents as one array, indexed from the base.
+     */
+    byte[] toArray() {
+        byte data[] = new byte[len];
+        for (int p = 0; p < pages.length; p++) {
+            System.arraycopy(pages[p], 0, data, p << PAGE_SHIFT, pages[p].length);
+        }
+        return data;
+    }
+
+    /**
+     * Replaces the whole contents, without marking anything dirty.
+     */
+    void fromArray(byte data[]) {
+        for (int p = 0; p < pages.length; p++) {
+            writePage(p, Arrays.copyOfRange(data, p << PAGE_SHIFT, (p << PAGE_SHIFT) + pages[p].length));
+        }
     }
 
     public boolean maps(char addr) {
@@ -35,7 +184,8 @@ public class MemoryDevice8x16 {
     public byte load(char addr) {
         addr &= addrmask;
         if (addr >= base && addr <= end) {
-            return mem[addr - base];
+            int off = addr - base;
+            return pages[off >> PAGE_SHIFT][off & PAGE_MASK];
         }
         return 0;
     }
@@ -43,7 +193,13 @@ public class MemoryDevice8x16 {
     public void store(char addr, byte data) {
         addr &= addrmask;
         if (addr >= base && addr <= end) {
-            mem[addr - base] = data;
+            int off = addr - base;
+            int p = off >> PAGE_SHIFT;
+            if (shared[p]) {
+                unshare(p);
+            }
+            pages[p][off & PAGE_MASK] = data;
+            dirty[p] = true;
         }
     }
 }
@@ -4,6 +4,10 @@
 
 package org.flarbear.swtpc6800.simulator;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Predicate;
+
 @SuppressWarnings("PointlessBitwiseExpression")
 public class Motorola6800
     implements Runnable
@@ -12,6 +16,7 @@ public class Motorola6800
     public static final boolean STATS = false;
 
     Bus8x16 theBus;
+    private VirtualClock theClock;
 
     private Thread executor;
     private boolean HALTraised;
@@ -19,6 +24,9 @@ public class Motorola6800
     private boolean NMIraised;
     private boolean IRQraised;
     private boolean isRunning;
+    private boolean isPowered;
+    private boolean runsOnLoop;
+    private boolean waitingForInterrupt;
 
     private char PCreg;
     private char SPreg;
@@ -29,6 +37,36 @@ public class Motorola6800
     private byte accA;
     private byte accB;
 
+    // Execution breakpoints, one bit per address. None of this is looked
+    // at while breakpointCount is 0, see runSlice().
+    private long breakpoints[];
+    private int breakpointCount;
+    private HashMap<Integer, Predicate<Motorola6800>> breakConditions;
+    private boolean stoppedAtBreakpoint;
+    private int resumeAddr = -1;
+    private BreakpointListener breakpointListeners[] = new BreakpointListener[0];
+
+    // The number of instructions executed at each address while
+    // profiling, see setProfiling(). Like the breakpoints, none of this
+    // is looked at while profiling is false. A window set by profileFor()
+    // ends at profileEndCycle and keeps the counts.
+    private long executionCounts[];
+    private boolean profiling;
+    private long profileEndCycle = Long.MAX_VALUE;
+
+    // Cleared for a HotProfile warm-up, which runs code from wherever it
+    // likes and is bound to wander into data
+    private boolean reportIllegal = true;
+
+    public interface BreakpointListener {
+        /**
+         * Called on the thread running the processor, with the processor
+         * locked, when it stops at a breakpoint before executing the
+         * instruction at pc. The listener may call resume() to carry on.
+         */
+        public void breakpointHit(Motorola6800 processor, char pc);
+    }
+
     public static final int SHIFT_C = 0;    // Carry
     public static final int SHIFT_V = 1;    // Overflow
     public static final int SHIFT_Z = 2;    // Zero
@@ -69,6 +107,233 @@ public class Motorola6800
         this.theBus = bus;
     }
 
+    public synchronized final void connectClock(VirtualClock clock) {
+        this.theClock = clock;
+    }
+
+    // The registers can be read from another thread, but are only
+    // guaranteed to be consistent while the processor is stopped or
+    // when read from the thread that runs it.
+
+    public char getPC() {
+        return PCreg;
+    }
+
+    public char getSP() {
+        return SPreg;
+    }
+
+    public char getIX() {
+        return IXreg;
+    }
+
+    public byte getA() {
+        return accA;
+    }
+
+    public byte getB() {
+        return accB;
+    }
+
+    public byte getCC() {
+        return ccode;
+    }
+
+    public synchronized void setBreakpoint(int addr) {
+        setBreakpoint(addr, null);
+    }
+
+    /**
+     * Sets a breakpoint that only stops the processor if the condition
+     * is true when the instruction at addr is about to execute. The
+     * condition is run on the processor thread with the processor locked.
+     */
+    public synchronized void setBreakpoint(int addr, Predicate<Motorola6800> condition) {
+        if (addr < 0 || addr > 0xFFFF) {
+            throw new IllegalArgumentException("bad address: " + addr);
+        }
+        if (breakpoints == null) {
+            breakpoints = new long[0x10000 / 64];
+        }
+        if ((breakpoints[addr >> 6] & (1L << addr)) == 0) {
+            breakpoints[addr >> 6] |= (1L << addr);
+            breakpointCount++;
+        }
+        if (condition != null) {
+            if (breakConditions == null) {
+                breakConditions = new HashMap<>();
+            }
+            breakConditions.put(addr, condition);
+        } else if (breakConditions != null) {
+            breakConditions.remove(addr);
+        }
+    }
+
+    public synchronized void clearBreakpoint(int addr) {
+        if (hasBreakpoint(addr)) {
+            breakpoints[addr >> 6] &= ~(1L << addr);
+            breakpointCount--;
+            if (breakConditions != null) {
+                breakConditions.remove(addr);
+            }
+        }
+    }
+
+    public synchronized void clearAllBreakpoints() {
+        if (breakpoints != null) {
+            Arrays.fill(breakpoints, 0L);
+        }
+        breakpointCount = 0;
+        breakConditions = null;
+    }
+
+    public synchronized boolean hasBreakpoint(int addr) {
+        return breakpoints != null && addr >= 0 && addr <= 0xFFFF &&
+               (breakpoints[addr >> 6] & (1L << addr)) != 0;
+    }
+
+    public synchronized boolean isStoppedAtBreakpoint() {
+        return stoppedAtBreakpoint;
+    }
+
+    /**
+     * Lets a processor that stopped at a breakpoint carry on, starting
+     * with the instruction it stopped in front of.
+     */
+    public synchronized void resume() {
+        if (stoppedAtBreakpoint) {
+            stoppedAtBreakpoint = false;
+            resumeAddr = PCreg;
+            notifyAll();
+        }
+    }
+
+    public synchronized void addBreakpointListener(BreakpointListener l) {
+        int n = breakpointListeners.length;
+        BreakpointListener newListeners[] = Arrays.copyOf(breakpointListeners, n + 1);
+        newListeners[n] = l;
+        breakpointListeners = newListeners;
+    }
+
+    public synchronized void removeBreakpointListener(BreakpointListener l) {
+        for (int i = 0; i < breakpointListeners.length; i++) {
+            if (breakpointListeners[i] == l) {
+                BreakpointListener newListeners[] = new BreakpointListener[breakpointListeners.length - 1];
+                System.arraycopy(breakpointListeners, 0, newListeners, 0, i);
+                System.arraycopy(breakpointListeners, i + 1, newListeners, i, newListeners.length - i);
+                breakpointListeners = newListeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decides whether the processor should stop in front of the next
+     * instruction, and if so tells the listeners.
+     */
+    private boolean checkBreakpoint() {
+        char pc = PCreg;
+        int skip = resumeAddr;
+        resumeAddr = -1;
+        if ((breakpoints[pc >> 6] & (1L << pc)) == 0 || pc == skip) {
+            return false;
+        }
+        Predicate<Motorola6800> condition = (breakConditions == null) ? null : breakConditions.get((int) pc);
+        if (condition != null && !condition.test(this)) {
+            return false;
+        }
+        stoppedAtBreakpoint = true;
+        for (BreakpointListener l : breakpointListeners) {
+            l.breakpointHit(this, pc);
+        }
+        return stoppedAtBreakpoint;
+    }
+
+    /**
+     * Starts or stops counting how many times the instruction at each
+     * address is executed, for a HotProfile. Turning it on again keeps
+     * the counts so far. Like breakpoints, profiling slows the processor
+     * down a little while it is on and not at all while it is off.
+     */
+    public synchronized void setProfiling(boolean profiling) {
+        if (!profiling) {
+            executionCounts = null;
+        } else if (executionCounts == null) {
+            executionCounts = new long[0x10000];
+        }
+        this.profiling = profiling;
+        profileEndCycle = Long.MAX_VALUE;
+    }
+
+    /**
+     * Turns profiling on for the given number of cycles on the clock,
+     * after which the processor goes back to running at full speed and
+     * the counts are kept. Asking again starts a new window.
+     */
+    public synchronized void profileFor(long cycles) {
+        if (cycles < 0) {
+            throw new IllegalArgumentException("cycles cannot be negative");
+        }
+        setProfiling(true);
+        long now = (theClock == null) ? 0 : theClock.now();
+        profileEndCycle = (cycles >= Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + cycles;
+    }
+
+    /**
+     * How many more cycles the processor is profiling for, Long.MAX_VALUE
+     * if there is no end to it or 0 if it is not profiling.
+     */
+    synchronized long getProfileCyclesLeft() {
+        if (!profiling) {
+            return 0;
+        }
+        if (profileEndCycle == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        long now = (theClock == null) ? 0 : theClock.now();
+        return Math.max(0, profileEndCycle - now);
+    }
+
+    // Counts the instruction about to be executed, or ends the window
+    // set by profileFor()
+    private void countInstruction() {
+        if (theClock != null && theClock.now() >= profileEndCycle) {
+            profiling = false;
+        } else {
+            executionCounts[PCreg]++;
+        }
+    }
+
+    /**
+     * A copy of the counts gathered since profiling was turned on, indexed
+     * by address, or null if it has not been turned on or has been turned
+     * off with setProfiling(false).
+     */
+    public synchronized long[] getExecutionCounts() {
+        return (executionCounts == null) ? null : executionCounts.clone();
+    }
+
+    /**
+     * Sends the processor off to an address, as a HotProfile warm-up does.
+     */
+    synchronized void jumpTo(char addr) {
+        PCreg = addr;
+        waitingForInterrupt = false;
+    }
+
+    /**
+     * Whether illegal instructions are reported on System.err.
+     */
+    synchronized void setReportIllegal(boolean report) {
+        reportIllegal = report;
+    }
+
+    private void tick(int cycles) {
+        if (theClock != null) {
+            theClock.advance(cycles);
+        }
+    }
+
     private byte load8(char addr) {
         return theBus.load(addr);
     }
@@ -90,16 +355,37 @@ public class Motorola6800
         theBus.store(addr, L);
     }
 
+    /**
+     * Have the processor be driven by calls to runSlice() from a
+     * SimulationLoop rather than from its own executor thread.
+     * This must be done before the processor is powered on.
+     */
+    public synchronized void attachToLoop() {
+        if (isPowered) {
+            throw new IllegalStateException("Cannot change execution mode while powered on");
+        }
+        if (theClock == null) {
+            throw new IllegalStateException("A clock is required to run on a loop");
+        }
+        runsOnLoop = true;
+    }
+
     public synchronized void powerOn() {
-        executor = new Thread(this);
-        executor.setPriority(Thread.MIN_PRIORITY);
+        isPowered = true;
+        waitingForInterrupt = false;
+        if (!runsOnLoop) {
+            executor = new Thread(this);
+            executor.setPriority(Thread.MIN_PRIORITY);
+        }
         IRQraised = NMIraised = RESETraised = false;
+        stoppedAtBreakpoint = false;
         ccode |= COND_I;
         PCreg = load16(RESET_JUMP_ADDR);
         notifyAll();
     }
 
     public synchronized void powerOff() {
+        isPowered = false;
         executor = null;
         notifyAll();
     }
@@ -129,7 +415,9 @@ public class Motorola6800
 
     public synchronized void lowerRESET() {
         RESETraised = false;
-        if (!executor.isAlive()) {
+        waitingForInterrupt = false;
+        stoppedAtBreakpoint = false;
+        if (executor != null && !executor.isAlive()) {
             executor.start();
         }
         notifyAll();
@@ -148,7 +436,7 @@ public class Motorola6800
     }
 
     private synchronized boolean handleControlLines() {
-        while (RESETraised || HALTraised) {
+        while (RESETraised || HALTraised || stoppedAtBreakpoint) {
             isRunning = false;
             notifyAll();
             try {
@@ -159,11 +447,110 @@ public class Motorola6800
             }
             isRunning = true;
         }
+        serviceInterrupts();
+        if (breakpointCount != 0 && checkBreakpoint()) {
+            return false;
+        }
+        if (profiling) {
+            countInstruction();
+        }
+        return true;
+    }
+
+    private void serviceInterrupts() {
         if (NMIraised) {
             NMIraised = false;
             handleInterrupt(NMI_JUMP_ADDR);
+            tick(INTERRUPT_CYCLES);
         } else if (IRQraised && (ccode & COND_I) == 0) {
             handleInterrupt(IRQ_JUMP_ADDR);
+            tick(INTERRUPT_CYCLES);
+        }
+    }
+
+    private boolean interruptPending() {
+        return NMIraised || (IRQraised && (ccode & COND_I) == 0);
+    }
+
+    /**
+     * Execute instructions on the calling thread until the indicated
+     * number of cycles have elapsed on the VirtualClock. This is how a
+     * SimulationLoop drives a processor that has been attached to it.
+     *
+     * While no breakpoints are set the instructions run without any
+     * check for them at all. Otherwise the slice runs through
+     * runSliceChecked() instead, so a breakpoint set from another thread
+     * takes effect at the start of the next slice.
+     *
+     * @return false if the processor cannot make any progress, because
+     *         it is powered off, held in reset, halted or stopped at a
+     *         breakpoint, or is waiting for an interrupt and there is
+     *         nothing scheduled on the clock that could deliver one
+     */
+    public synchronized boolean runSlice(int cycles) {
+        if (!runsOnLoop) {
+            throw new IllegalStateException("Processor runs on its own thread");
+        }
+        if (stoppedAtBreakpoint) {
+            return false;
+        }
+        long end = theClock.now() + cycles;
+        if (isCheckingInstructions()) {
+            return runSliceChecked(end);
+        }
+        while (theClock.now() < end) {
+            if (!isPowered || RESETraised || HALTraised) {
+                return false;
+            }
+            if (waitingForInterrupt) {
+                if (!interruptPending()) {
+                    if (!theClock.advanceToNextEvent()) {
+                        return false;
+                    }
+                    continue;
+                }
+                waitingForInterrupt = false;
+            }
+            serviceInterrupts();
+            tick(executeInstruction());
+        }
+        return true;
+    }
+
+    /**
+     * Whether runSlice() has to look at every instruction, because there
+     * are breakpoints set or the processor is profiling.
+     */
+    boolean isCheckingInstructions() {
+        return breakpointCount != 0 || profiling;
+    }
+
+    /**
+     * The loop in runSlice(), checking for a breakpoint in front of every
+     * instruction and counting the instructions while profiling.
+     */
+    private boolean runSliceChecked(long end) {
+        while (theClock.now() < end) {
+            if (!isPowered || RESETraised || HALTraised) {
+                return false;
+            }
+            if (waitingForInterrupt) {
+                if (!interruptPending()) {
+                    if (!theClock.advanceToNextEvent()) {
+                        return false;
+                    }
+                    continue;
+                }
+                waitingForInterrupt = false;
+            }
+            serviceInterrupts();
+            if (breakpointCount != 0 && checkBreakpoint()) {
+                return false;
+            }
+            if (profiling) {
+                countInstruction();
+            }
+            tick(executeInstruction());
         }
         return true;
     }
@@ -767,6 +1154,44 @@ public class Motorola6800
 
         byte accA;
         byte accB;
+
+        boolean IRQraised;
+        boolean NMIraised;
+        boolean waitingForInterrupt;
+    }
+
+    /**
+     * Captures the registers and pending interrupts for a checkpoint.
+     * The processor must not be running an instruction on another thread.
+     */
+    public synchronized Object saveState() {
+        State state = new State();
+        state.PCreg = PCreg;
+        state.SPreg = SPreg;
+        state.ccode = ccode;
+        state.IXreg = IXreg;
+        state.accA = accA;
+        state.accB = accB;
+        state.IRQraised = IRQraised;
+        state.NMIraised = NMIraised;
+        state.waitingForInterrupt = waitingForInterrupt;
+        return state;
+    }
+
+    public synchronized void restoreState(Object saved) {
+        State state = (State) saved;
+        PCreg = state.PCreg;
+        SPreg = state.SPreg;
+        ccode = state.ccode;
+        IXreg = state.IXreg;
+        accA = state.accA;
+        accB = state.accB;
+        IRQraised = state.IRQraised;
+        NMIraised = state.NMIraised;
+        waitingForInterrupt = state.waitingForInterrupt;
+        stoppedAtBreakpoint = false;
+        resumeAddr = -1;
+        notifyAll();
     }
 
     void test(State state, byte mem[]) {
@@ -903,7 +1328,17 @@ public class Motorola6800
     }
 
     private synchronized void opWaitForInterrupt(int flags) {
+        if (runsOnLoop) {
+            // runSlice() takes care of idling until the interrupt arrives
+            waitingForInterrupt = true;
+            return;
+        }
         while (!NMIraised && ((ccode & COND_I) != 0 || !IRQraised)) {
+            // Nothing will happen on this thread until an interrupt, so
+            // let virtual time skip ahead to whatever is scheduled next.
+            if (theClock != null && theClock.advanceToNextEvent()) {
+                continue;
+            }
             try {
                 wait();
             } catch (InterruptedException e) {
@@ -1008,7 +1443,7 @@ public class Motorola6800
         notifyAll();
     }
 
-    private void executeInstruction() {
+    private int executeInstruction() {
         if (DEBUG > 0) {
             System.out.print("PC:"+hex(PCreg,4)+
                              "  SP:"+hex(SPreg,4)+
@@ -1037,7 +1472,9 @@ public class Motorola6800
         switch (flags & OP_MASK) {
             case OP_ILLEGAL:
             default:
-                System.err.println("Illegal Instruction at " + hex(PCreg - 1, 4));
+                if (reportIllegal) {
+                    System.err.println("Illegal Instruction at " + hex(PCreg - 1, 4));
+                }
                 break;
             case OP_NOP:
                 break;
@@ -1120,6 +1557,7 @@ public class Motorola6800
                 opModifyCC(flags);
                 break;
         }
+        return INSTRUCTION_CYCLES[opcode & 0xff];
     }
 
     @Override
@@ -1128,11 +1566,36 @@ public class Motorola6800
         isRunning = true;
         while (executor == me) {
             if (handleControlLines()) {
-                executeInstruction();
+                tick(executeInstruction());
             }
         }
     }
 
+    // Cycles taken by the interrupt sequence to stack the registers
+    // and fetch the vector.
+    private static final int INTERRUPT_CYCLES = 12;
+
+    // Cycle counts from the MC6800 programming manual, the illegal
+    // opcodes are counted as 2 cycles.
+    private static final byte INSTRUCTION_CYCLES[] = {
+        /* $00 */ 2, 2, 2, 2, 2, 2, 2, 2,   4, 4, 2, 2, 2, 2, 2, 2,
+        /* $10 */ 2, 2, 2, 2, 2, 2, 2, 2,   2, 2, 2, 2, 2, 2, 2, 2,
+        /* $20 */ 4, 4, 4, 4, 4, 4, 4, 4,   4, 4, 4, 4, 4, 4, 4, 4,
+        /* $30 */ 4, 4, 4, 4, 4, 4, 4, 4,   2, 5, 2,10, 2, 2, 9,12,
+        /* $40 */ 2, 2, 2, 2, 2, 2, 2, 2,   2, 2, 2, 2, 2, 2, 2, 2,
+        /* $50 */ 2, 2, 2, 2, 2, 2, 2, 2,   2, 2, 2, 2, 2, 2, 2, 2,
+        /* $60 */ 7, 2, 2, 7, 7, 2, 7, 7,   7, 7, 7, 2, 7, 7, 4, 7,
+        /* $70 */ 6, 2, 2, 6, 6, 2, 6, 6,   6, 6, 6, 2, 6, 6, 3, 6,
+        /* $80 */ 2, 2, 2, 2, 2, 2, 2, 2,   2, 2, 2, 2, 3, 8, 3, 2,
+        /* $90 */ 3, 3, 3, 2, 3, 3, 3, 4,   3, 3, 3, 3, 4, 2, 4, 5,
+        /* $A0 */ 5, 5, 5, 2, 5, 5, 5, 6,   5, 5, 5, 5, 6, 8, 6, 7,
+        /* $B0 */ 4, 4, 4, 2, 4, 4, 4, 5,   4, 4, 4, 4, 5, 9, 5, 6,
+        /* $C0 */ 2, 2, 2, 2, 2, 2, 2, 2,   2, 2, 2, 2, 2, 2, 3, 2,
+        /* $D0 */ 3, 3, 3, 2, 3, 3, 3, 4,   3, 3, 3, 3, 2, 2, 4, 5,
+        /* $E0 */ 5, 5, 5, 2, 5, 5, 5, 6,   5, 5, 5, 5, 2, 2, 6, 7,
+        /* $F0 */ 4, 4, 4, 2, 4, 4, 4, 5,   4, 4, 4, 4, 2, 2, 5, 6,
+    };
+
     private static final int INSTRUCTION_FLAGS[] = {
         /* $00 */ OP_ILLEGAL,
         /* $01 */ (OP_NOP),
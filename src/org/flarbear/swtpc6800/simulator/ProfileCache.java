@@ -0,0 +1,256 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HotProfiles kept from one run of the emulator to the next, keyed by
+ * the checksum of the ROM or tape image they describe.
+ *
+ * The profiles are kept in hot-profiles.bin in the cache directory,
+ * next to the tape index (see TapeLibrary), unless another file is
+ * given. The file only holds a few
+ * KB per image and is rewritten by save(). Like the tape index it is
+ * only an optimization, so a missing or damaged file is treated as
+ * empty and a file that cannot be written is ignored.
+ *
+ * track() is the usual way in. It profiles the machine for a while (see
+ * setProfileCycles()), after which it runs at full speed again, starts
+ * warming up the image on a background thread if there is a
+ * profile for it from an earlier run, and remembers the image so that
+ * collect() (or the hook installed by saveOnExit()) can fold this run's
+ * counts back into the cache.
+ */
+public class ProfileCache {
+    private static final int CACHE_MAGIC = 0x484F5450;  // "HOTP"
+    private static final int CACHE_VERSION = 1;
+
+    private static ProfileCache theCache;
+
+    private static final class Tracked {
+        final SWTPc6800 system;
+        final SRecordImage image;
+        final int base;
+
+        Tracked(SWTPc6800 system, SRecordImage image, int base) {
+            this.system = system;
+            this.image = image;
+            this.base = base;
+        }
+    }
+
+    private final File file;
+    private final Map<Long, HotProfile> profiles = new HashMap<>();
+    private final List<Tracked> tracked = new ArrayList<>();
+    private long warmUpCycles = HotProfile.DEFAULT_WARMUP_CYCLES;
+    private long profileCycles = HotProfile.DEFAULT_PROFILE_CYCLES;
+    private boolean saveOnExit;
+
+    /**
+     * The cache in the default file, shared by everything in the JVM.
+     */
+    public static synchronized ProfileCache getDefault() {
+        if (theCache == null) {
+            theCache = new ProfileCache(defaultFile());
+        }
+        return theCache;
+    }
+
+    /**
+     * Reads the profiles from the file, which may be null to keep them in
+     * memory only.
+     */
+    public ProfileCache(File file) {
+        this.file = file;
+        read();
+    }
+
+    private static File defaultFile() {
+        File dir = SRecordImage.cacheDir();
+        return (dir == null) ? null : new File(dir, "hot-profiles.bin");
+    }
+
+    /**
+     * The profile of the image with the given checksum, or null if none
+     * has been collected.
+     */
+    public synchronized HotProfile get(long checksum) {
+        return profiles.get(checksum);
+    }
+
+    public HotProfile get(SRecordImage image) {
+        return get(image.getChecksum());
+    }
+
+    /**
+     * Merges the profile with the one already kept for its image.
+     */
+    public synchronized void add(HotProfile profile) {
+        if (profile.getBlockCount() == 0) {
+            return;
+        }
+        HotProfile old = profiles.get(profile.getChecksum());
+        profiles.put(profile.getChecksum(), (old == null) ? profile : old.merge(profile));
+    }
+
+    /**
+     * How many cycles track() spends warming up each image.
+     */
+    public synchronized void setWarmUpCycles(long cycles) {
+        if (cycles < 0) {
+            throw new IllegalArgumentException("cycles cannot be negative");
+        }
+        this.warmUpCycles = cycles;
+    }
+
+    /**
+     * How many cycles track() profiles the machine for, see
+     * Motorola6800.profileFor().
+     */
+    public synchronized void setProfileCycles(long cycles) {
+        if (cycles < 0) {
+            throw new IllegalArgumentException("cycles cannot be negative");
+        }
+        this.profileCycles = cycles;
+    }
+
+    /**
+     * Profiles the image, which is or will be loaded into the system at
+     * base, and warms up its hot code from an earlier run on a scratch
+     * copy of the system (see HotProfile.warmUp()) on a daemon thread.
+     * Tracking an image that is already tracked for the system only
+     * warms it up again.
+     *
+     * @return the warm-up thread, already started, or null if there is
+     *         no profile for the image yet
+     */
+    public Thread track(SWTPc6800 system, SRecordImage image, int base) {
+        Motorola6800 processor = system.getProcessor();
+        if (processor == null) {
+            throw new IllegalStateException("The system has no processor to profile");
+        }
+        HotProfile profile;
+        long cycles;
+        long profiling;
+        synchronized (this) {
+            boolean known = false;
+            for (Tracked t : tracked) {
+                if (t.system == system && t.base == base &&
+                    t.image.getChecksum() == image.getChecksum())
+                {
+                    known = true;
+                }
+            }
+            if (!known) {
+                tracked.add(new Tracked(system, image, base));
+            }
+            profile = get(image.getChecksum());
+            cycles = warmUpCycles;
+            profiling = profileCycles;
+        }
+        processor.profileFor(profiling);
+        if (profile == null || cycles == 0) {
+            return null;
+        }
+        // The scratch machine has to be made before the system moves on
+        Machine scratch = HotProfile.scratchFor(system, image, base);
+        Thread t = new Thread(() -> profile.warmUp(scratch, cycles), "Profile warm up");
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Adds the counts that the processors of the tracked systems have
+     * gathered within each tracked image to the cache. The counts are
+     * not cleared, so this should only be done once at the end of a run.
+     */
+    public synchronized void collect() {
+        Map<SWTPc6800, long[]> counts = new HashMap<>();
+        for (Tracked t : tracked) {
+            long c[] = counts.computeIfAbsent(t.system, s -> s.getProcessor().getExecutionCounts());
+            if (c != null) {
+                add(HotProfile.collect(t.image, t.base, c));
+            }
+        }
+    }
+
+    /**
+     * Calls collect() and save() when the JVM exits.
+     */
+    public synchronized void saveOnExit() {
+        if (!saveOnExit) {
+            saveOnExit = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                collect();
+                save();
+            }));
+        }
+    }
+
+    private synchronized void read() {
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(
+                 new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (dis.readInt() != CACHE_MAGIC || dis.readInt() != CACHE_VERSION) {
+                return;
+            }
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                HotProfile p = HotProfile.read(dis);
+                profiles.put(p.getChecksum(), p);
+            }
+        } catch (IOException e) {
+            // A damaged cache starts over
+            profiles.clear();
+        }
+    }
+
+    public synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        File tmp = null;
+        try {
+            File dir = file.getAbsoluteFile().getParentFile();
+            Files.createDirectories(dir.toPath());
+            tmp = File.createTempFile("hot-profiles", ".tmp", dir);
+            try (DataOutputStream dos = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                dos.writeInt(CACHE_MAGIC);
+                dos.writeInt(CACHE_VERSION);
+                dos.writeInt(profiles.size());
+                for (HotProfile p : profiles.values()) {
+                    p.write(dos);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // The cache is only an optimization, but a half written
+            // file should not be left behind for every run that fails
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -8,4 +8,12 @@ public interface RS232Device {
     public void sendTo(byte data);
     public void connectTo(RS232Device otherdevice);
     public void waitForCTS();
+
+    /**
+     * A non-blocking version of waitForCTS() for senders that are driven
+     * by the VirtualClock and cannot block the processor thread.
+     */
+    public default boolean isClearToSend() {
+        return true;
+    }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps a history of checkpoints of a machine so that it can be put back
+ * the way it was a few seconds ago.
+ *
+ * A checkpoint holds the registers of the processor and of every card
+ * that can save them, plus a copy of each page of RAM that was written
+ * since the previous checkpoint, found from the dirty bits that
+ * MemoryDevice8x16 keeps. A checkpoint of a machine that is mostly
+ * sitting in a loop is therefore only a few pages. The buffer also keeps
+ * one full copy of the RAM as it was at the oldest checkpoint, and when
+ * the checkpoints add up to more than the memory budget the oldest ones
+ * are folded into that copy and forgotten.
+ *
+ * Rewinding only has to put back the pages that have been written since
+ * the checkpoint, each from the nearest checkpoint at or before it that
+ * has a copy, so it takes time in proportion to how much the program has
+ * changed rather than to the size of the memory. The clock is set back
+ * to the checkpoint's cycle and the later checkpoints are discarded.
+ *
+ * Checkpoints are taken by a VirtualClock event, so they always fall
+ * between instructions. checkpoint() and the rewind methods must be
+ * called while the machine is stopped or on the thread that runs it,
+ * for instance from a breakpoint listener or SimulationLoop.invokeLater().
+ * Cards must all be installed before the buffer is created.
+ *
+ * Disk images, tapes and anything else outside the machine are not
+ * rewound, nor are events that devices have already scheduled on the
+ * clock.
+ */
+public class RewindBuffer {
+    public static final long DEFAULT_INTERVAL_CYCLES = VirtualClock.CYCLES_PER_SECOND / 10;
+    public static final long DEFAULT_BUDGET_BYTES = 8L << 20;
+
+    // A rough charge for the registers and bookkeeping of a checkpoint
+    private static final int CHECKPOINT_OVERHEAD = 256;
+
+    private static final class Checkpoint {
+        long cycle;
+        Object mainStates[];
+        Object ioStates[];
+        // The pages written since the previous checkpoint, as
+        // (device << 16 | page) in increasing order, and their contents
+        int keys[];
+        byte pages[][];
+        long bytes;
+
+        byte[] find(int key) {
+            int i = Arrays.binarySearch(keys, key);
+            return (i < 0) ? null : pages[i];
+        }
+    }
+
+    private final SWTPc6800 system;
+    private final VirtualClock clock;
+    private final long interval;
+    private final long budget;
+    private final MemoryDevice8x16 ram[];
+    private final byte base[][][];
+
+    private final ArrayList<Checkpoint> checkpoints = new ArrayList<>();
+    private long bytesUsed;
+    private boolean running;
+    private int generation;
+
+    public RewindBuffer(SWTPc6800 system) {
+        this(system, DEFAULT_INTERVAL_CYCLES, DEFAULT_BUDGET_BYTES);
+    }
+
+    /**
+     * Creates the buffer and takes the first checkpoint.
+     *
+     * @param intervalCycles how often start() takes checkpoints
+     * @param budgetBytes how much page data to keep before forgetting
+     *                    the oldest checkpoints, not counting the full
+     *                    copy of the RAM
+     */
+    public RewindBuffer(SWTPc6800 system, long intervalCycles, long budgetBytes) {
+        if (intervalCycles <= 0 || budgetBytes <= 0) {
+            throw new IllegalArgumentException("interval and budget must be positive");
+        }
+        this.system = system;
+        this.clock = system.getClock();
+        this.interval = intervalCycles;
+        this.budget = budgetBytes;
+        ArrayList<MemoryDevice8x16> devices = new ArrayList<>();
+        for (int i = 0; i < SWTPc6800.NUM_MAIN_SLOTS; i++) {
+            SS50Card c = system.getMainCard(i);
+            if (c != null) {
+                devices.addAll(Arrays.asList(c.getRam()));
+            }
+        }
+        this.ram = devices.toArray(new MemoryDevice8x16[0]);
+        this.base = new byte[ram.length][][];
+        for (int d = 0; d < ram.length; d++) {
+            MemoryDevice8x16 dev = ram[d];
+            base[d] = new byte[dev.getPageCount()][];
+            for (int p = 0; p < base[d].length; p++) {
+                base[d][p] = dev.readPage(p);
+            }
+            dev.clearDirtyPages();
+        }
+        checkpoint();
+    }
+
+    /**
+     * Takes a checkpoint every interval cycles until stop() is called.
+     */
+    public synchronized void start() {
+        if (!running) {
+            running = true;
+            schedule();
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        generation++;
+    }
+
+    private void schedule() {
+        int gen = generation;
+        clock.scheduleIn(interval, () -> tick(gen));
+    }
+
+    private synchronized void tick(int gen) {
+        // Events from before a rewind or stop() are stale
+        if (running && gen == generation) {
+            checkpoint();
+            schedule();
+        }
+    }
+
+    public synchronized void checkpoint() {
+        ArrayList<byte[]> pages = new ArrayList<>();
+        int keys[] = new int[16];
+        int n = 0;
+        for (int d = 0; d < ram.length; d++) {
+            MemoryDevice8x16 dev = ram[d];
+            for (int p = 0; p < dev.getPageCount(); p++) {
+                if (dev.isPageDirty(p)) {
+                    if (n == keys.length) {
+                        keys = Arrays.copyOf(keys, n * 2);
+                    }
+                    keys[n++] = (d << 16) | p;
+                    pages.add(dev.readPage(p));
+                }
+            }
+            dev.clearDirtyPages();
+        }
+        Checkpoint cp = new Checkpoint();
+        cp.cycle = clock.now();
+        cp.keys = Arrays.copyOf(keys, n);
+        cp.pages = pages.toArray(new byte[0][]);
+        cp.mainStates = new Object[SWTPc6800.NUM_MAIN_SLOTS];
+        for (int i = 0; i < cp.mainStates.length; i++) {
+            SS50Card c = system.getMainCard(i);
+            cp.mainStates[i] = (c == null) ? null : c.saveState();
+        }
+        cp.ioStates = new Object[SWTPc6800.NUM_IO_SLOTS];
+        for (int i = 0; i < cp.ioStates.length; i++) {
+            SS30Card c = system.getIOCard(i);
+            cp.ioStates[i] = (c == null) ? null : c.saveState();
+        }
+        cp.bytes = CHECKPOINT_OVERHEAD;
+        for (byte page[] : cp.pages) {
+            cp.bytes += page.length;
+        }
+        checkpoints.add(cp);
+        bytesUsed += cp.bytes;
+        while (bytesUsed > budget && checkpoints.size() > 1) {
+            dropOldest();
+        }
+    }
+
+    /**
+     * Forgets the oldest checkpoint by folding the pages of the next one
+     * into the full copy, which then matches the new oldest checkpoint.
+     */
+    private void dropOldest() {
+        Checkpoint gone = checkpoints.remove(0);
+        bytesUsed -= gone.bytes;
+        Checkpoint oldest = checkpoints.get(0);
+        for (int i = 0; i < oldest.keys.length; i++) {
+            int key = oldest.keys[i];
+            base[key >> 16][key & 0xffff] = oldest.pages[i];
+        }
+    }
+
+    public synchronized int getCheckpointCount() {
+        return checkpoints.size();
+    }
+
+    /**
+     * The clock cycle of a checkpoint, 0 being the oldest.
+     */
+    public synchronized long getCheckpointCycle(int index) {
+        return checkpoints.get(index).cycle;
+    }
+
+    /**
+     * The page data held by the checkpoints, which is what the budget
+     * limits.
+     */
+    public synchronized long getBytesUsed() {
+        return bytesUsed;
+    }
+
+    /**
+     * Goes back to the latest checkpoint taken at least the given number
+     * of cycles ago, or the oldest one if there is none that old.
+     *
+     * @return the cycle the machine is now at
+     */
+    public synchronized long rewind(long cycles) {
+        long target = clock.now() - cycles;
+        int index = 0;
+        for (int i = checkpoints.size() - 1; i > 0; i--) {
+            if (checkpoints.get(i).cycle <= target) {
+                index = i;
+                break;
+            }
+        }
+        rewindTo(index);
+        return clock.now();
+    }
+
+    /**
+     * Puts the machine back the way it was at a checkpoint, 0 being the
+     * oldest, and forgets the checkpoints after it.
+     */
+    public synchronized void rewindTo(int index) {
+        Checkpoint target = checkpoints.get(index);
+        for (int d = 0; d < ram.length; d++) {
+            MemoryDevice8x16 dev = ram[d];
+            for (int p = 0; p < dev.getPageCount(); p++) {
+                if (dev.isPageDirty(p) || changedAfter(index, (d << 16) | p)) {
+                    dev.writePage(p, pageAt(index, d, p));
+                }
+            }
+            dev.clearDirtyPages();
+        }
+        for (int i = 0; i < SWTPc6800.NUM_MAIN_SLOTS; i++) {
+            SS50Card c = system.getMainCard(i);
+            if (c != null && target.mainStates[i] != null) {
+                c.restoreState(target.mainStates[i]);
+            }
+        }
+        for (int i = 0; i < SWTPc6800.NUM_IO_SLOTS; i++) {
+            SS30Card c = system.getIOCard(i);
+            if (c != null && target.ioStates[i] != null) {
+                c.restoreState(target.ioStates[i]);
+            }
+        }
+        while (checkpoints.size() > index + 1) {
+            bytesUsed -= checkpoints.remove(checkpoints.size() - 1).bytes;
+        }
+        clock.rewindTo(target.cycle);
+        if (running) {
+            generation++;
+            schedule();
+        }
+    }
+
+    private boolean changedAfter(int index, int key) {
+        for (int i = index + 1; i < checkpoints.size(); i++) {
+            if (checkpoints.get(i).find(key) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private byte[] pageAt(int index, int d, int p) {
+        int key = (d << 16) | p;
+        for (int i = index; i > 0; i--) {
+            byte page[] = checkpoints.get(i).find(key);
+            if (page != null) {
+                return page;
+            }
+        }
+        // The oldest checkpoint's pages are already in the full copy
+        return base[d][p];
+    }
+}
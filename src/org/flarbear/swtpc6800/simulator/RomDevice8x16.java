@@ -13,11 +13,34 @@ public class RomDevice8x16 extends MemoryDevice8x16 {
         super(base, addrmask, len);
     }
 
+    protected RomDevice8x16(RomDevice8x16 from) {
+        super(from);
+    }
+
+    @Override
+    public RomDevice8x16 fork() {
+        return new RomDevice8x16(this);
+    }
+
     @Override
     public void store(char addr, byte data) {
     }
 
     public void burn(char reladdr, byte data) {
-        mem[reladdr] = data;
+        int p = reladdr >> PAGE_SHIFT;
+        if (shared[p]) {
+            unshare(p);
+        }
+        pages[p][reladdr & PAGE_MASK] = data;
+    }
+
+    /**
+     * Burns every range of the image, whose addresses are relative to
+     * the start of the ROM.
+     */
+    public void burn(SRecordImage image) {
+        byte data[] = toArray();
+        image.copyTo(data, 0);
+        fromArray(data);
     }
 }
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A Motorola S-record (S19) file decoded into a sparse binary image.
+ *
+ * The image is a list of address ranges with their bytes packed end to end
+ * in a single array. The S1 and S9 records are also kept exactly as they
+ * appear in the file, which is what the AC-30 plays into the serial port,
+ * along with the LABEL= line and any other text found in the file.
+ *
+ * Files are decoded straight out of a ByteBuffer (a mapped file or the
+ * bytes of a resource) with a table driven hex decoder, and the checksum
+ * of every record is verified as it is decoded. Records with a bad
+ * checksum are still decoded but are counted in getBadRecordCount().
+ *
+ * Decoded resources are cached in a binary sidecar file in the directory
+ * named by the swtpc6800.cache.dir system property (by default
+ * ~/.swtpc6800/cache) so that later runs only have to read the arrays
+ * back instead of decoding the records again. A sidecar is only used if
+ * the length and CRC-32 of the source it was made from still match.
+ */
+public final class SRecordImage {
+    public static final String CACHE_DIR_PROPERTY = "swtpc6800.cache.dir";
+
+    private static final int CACHE_MAGIC = 0x53313943;  // "S19C"
+    private static final int CACHE_VERSION = 2;
+
+    private static final byte HEX[] = new byte[256];
+    static {
+        Arrays.fill(HEX, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            HEX['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX['A' + i] = (byte) (10 + i);
+            HEX['a' + i] = (byte) (10 + i);
+        }
+    }
+
+    private final int rangeStarts[];
+    private final int rangeLengths[];
+    private final byte data[];
+    private final int entryPoint;
+    private final int badRecords;
+    private final byte records[];
+    private final String label;
+    private final String notes;
+
+    private SRecordImage(int rangeStarts[], int rangeLengths[], byte data[],
+                         int entryPoint, int badRecords,
+                         byte records[], String label, String notes)
+    {
+        this.rangeStarts = rangeStarts;
+        this.rangeLengths = rangeLengths;
+        this.data = data;
+        this.entryPoint = entryPoint;
+        this.badRecords = badRecords;
+        this.records = records;
+        this.label = label;
+        this.notes = notes;
+    }
+
+    public int getRangeCount() {
+        return rangeStarts.length;
+    }
+
+    public int getRangeStart(int range) {
+        return rangeStarts[range];
+    }
+
+    public int getRangeLength(int range) {
+        return rangeLengths[range];
+    }
+
+    /**
+     * The total number of bytes in all of the ranges.
+     */
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * A CRC-32 of the ranges and their bytes, which identifies the code
+     * however the file it came from was laid out, see ProfileCache.
+     */
+    public long getChecksum() {
+        CRC32 crc = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(8);
+        for (int i = 0; i < rangeStarts.length; i++) {
+            header.clear();
+            header.putInt(rangeStarts[i]).putInt(rangeLengths[i]);
+            crc.update(header.array());
+        }
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Copies the bytes of every range into dst, which represents memory
+     * starting at address base. Bytes outside of dst are ignored.
+     */
+    public void copyTo(byte dst[], int base) {
+        int offset = 0;
+        for (int i = 0; i < rangeStarts.length; i++) {
+            int start = rangeStarts[i] - base;
+            int len = rangeLengths[i];
+            int skip = Math.max(0, -start);
+            int n = Math.min(len, dst.length - start) - skip;
+            if (n > 0) {
+                System.arraycopy(data, offset + skip, dst, start + skip, n);
+            }
+            offset += len;
+        }
+    }
+
+    /**
+     * The address from the S9 record, or -1 if there was none.
+     */
+    public int getEntryPoint() {
+        return entryPoint;
+    }
+
+    public int getBadRecordCount() {
+        return badRecords;
+    }
+
+    /**
+     * The S1 and S9 records as they appeared in the file, without their
+     * line terminators.
+     */
+    public byte[] getRecords() {
+        return records.clone();
+    }
+
+    /**
+     * The text following LABEL= on the first line, or null.
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Every line that was neither a record nor the label, one per line.
+     */
+    public String getNotes() {
+        return notes;
+    }
+
+    /**
+     * Decodes the S-records from the remaining bytes of buf.
+     */
+    public static SRecordImage decode(ByteBuffer buf) {
+        ByteArrayOutputStream image = new ByteArrayOutputStream(buf.remaining() / 2);
+        ByteArrayOutputStream recs = new ByteArrayOutputStream(buf.remaining());
+        StringBuilder notes = new StringBuilder();
+        int starts[] = new int[8];
+        int lengths[] = new int[8];
+        int nranges = 0;
+        int nextAddr = -1;
+        int entry = -1;
+        int bad = 0;
+        String label = null;
+        boolean firstline = true;
+        int pos = buf.position();
+        int limit = buf.limit();
+        byte line[] = new byte[128];
+        while (pos < limit) {
+            int end = pos;
+            while (end < limit && buf.get(end) != '\n' && buf.get(end) != '\r') {
+                end++;
+            }
+            int len = end - pos;
+            if (len > line.length) {
+                line = new byte[len];
+            }
+            for (int i = 0; i < len; i++) {
+                line[i] = buf.get(pos + i);
+            }
+            // Skip a CR/LF pair as one line terminator
+            pos = end + 1;
+            if (end < limit && buf.get(end) == '\r' && pos < limit && buf.get(pos) == '\n') {
+                pos++;
+            }
+            boolean first = firstline;
+            firstline = false;
+            if (len >= 2 && line[0] == 'S' && (line[1] == '1' || line[1] == '9')) {
+                recs.write(line, 0, len);
+                if (len == 2 && line[1] == '9') {
+                    // A bare S9 is a common way of just ending the tape
+                    continue;
+                }
+                int count = hexByte(line, 2, len);
+                if (count < 3 || 4 + count * 2 > len) {
+                    bad++;
+                    continue;
+                }
+                int sum = 0;
+                for (int i = 0; i <= count; i++) {
+                    int b = hexByte(line, 2 + i * 2, len);
+                    if (b < 0) {
+                        sum = -1;
+                        break;
+                    }
+                    sum += b;
+                }
+                if (sum < 0 || (sum & 0xff) != 0xff) {
+                    bad++;
+                }
+                if (sum < 0) {
+                    continue;
+                }
+                int addr = (hexByte(line, 4, len) << 8) | hexByte(line, 6, len);
+                if (line[1] == '9') {
+                    entry = addr;
+                    continue;
+                }
+                int nbytes = count - 3;
+                if (nbytes == 0) {
+                    continue;
+                }
+                if (addr == nextAddr) {
+                    lengths[nranges - 1] += nbytes;
+                } else {
+                    if (nranges == starts.length) {
+                        starts = Arrays.copyOf(starts, nranges * 2);
+                        lengths = Arrays.copyOf(lengths, nranges * 2);
+                    }
+                    starts[nranges] = addr;
+                    lengths[nranges] = nbytes;
+                    nranges++;
+                }
+                for (int i = 0; i < nbytes; i++) {
+                    image.write(hexByte(line, 8 + i * 2, len));
+                }
+                nextAddr = addr + nbytes;
+            } else {
+                String text = new String(line, 0, len, StandardCharsets.ISO_8859_1);
+                if (first && text.startsWith("LABEL=")) {
+                    label = text.substring(6);
+                } else {
+                    notes.append(text).append('\n');
+                }
+            }
+        }
+        return new SRecordImage(Arrays.copyOf(starts, nranges),
+                                Arrays.copyOf(lengths, nranges),
+                                image.toByteArray(), entry, bad,
+                                recs.toByteArray(), label, notes.toString());
+    }
+
+    /**
+     * Makes an image of the bytes of mem whose bits are set in loaded,
+     * one bit per address. The records are regenerated as S1 records of
+     * up to 16 bytes each followed by an S9 record.
+     */
+    static SRecordImage fromMemory(byte mem[], long loaded[], int entryPoint,
+                                   int badRecords, String label)
+    {
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        ByteArrayOutputStream recs = new ByteArrayOutputStream();
+        int starts[] = new int[8];
+        int lengths[] = new int[8];
+        int nranges = 0;
+        int addr = 0;
+        while (addr < mem.length) {
+            if ((loaded[addr >> 6] & (1L << addr)) == 0) {
+                addr++;
+                continue;
+            }
+            int start = addr;
+            while (addr < mem.length && (loaded[addr >> 6] & (1L << addr)) != 0) {
+                addr++;
+            }
+            if (nranges == starts.length) {
+                starts = Arrays.copyOf(starts, nranges * 2);
+                lengths = Arrays.copyOf(lengths, nranges * 2);
+            }
+            starts[nranges] = start;
+            lengths[nranges] = addr - start;
+            nranges++;
+            image.write(mem, start, addr - start);
+            for (int a = start; a < addr; a += 16) {
+                writeRecord(recs, '1', a, mem, a, Math.min(16, addr - a));
+            }
+        }
+        writeRecord(recs, '9', Math.max(entryPoint, 0), mem, 0, 0);
+        return new SRecordImage(Arrays.copyOf(starts, nranges),
+                                Arrays.copyOf(lengths, nranges),
+                                image.toByteArray(), entryPoint, badRecords,
+                                recs.toByteArray(), label, "");
+    }
+
+    private static final byte HEXDIGITS[] = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private static void writeRecord(ByteArrayOutputStream out, char type, int addr,
+                                    byte mem[], int offset, int n)
+    {
+        out.write('S');
+        out.write(type);
+        int sum = writeHex(out, n + 3);
+        sum += writeHex(out, addr >> 8);
+        sum += writeHex(out, addr);
+        for (int i = 0; i < n; i++) {
+            sum += writeHex(out, mem[offset + i]);
+        }
+        writeHex(out, ~sum);
+    }
+
+    private static int writeHex(ByteArrayOutputStream out, int b) {
+        b &= 0xff;
+        out.write(HEXDIGITS[b >> 4]);
+        out.write(HEXDIGITS[b & 0xf]);
+        return b;
+    }
+
+    static int hexByte(byte line[], int i, int len) {
+        if (i + 1 >= len) {
+            return -1;
+        }
+        int hi = HEX[line[i] & 0xff];
+        int lo = HEX[line[i + 1] & 0xff];
+        return (hi < 0 || lo < 0) ? -1 : (hi << 4) | lo;
+    }
+
+    /**
+     * Decodes a file by mapping it into memory.
+     */
+    public static SRecordImage load(Path file) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            return decode(buf);
+        }
+    }
+
+    /**
+     * Loads a resource, using or refreshing its sidecar in the cache
+     * directory.
+     */
+    public static SRecordImage loadResource(String name) throws IOException {
+        URL url = SRecordImage.class.getResource(name);
+        if (url == null) {
+            throw new IOException("No such resource: " + name);
+        }
+        byte bytes[];
+        try (InputStream is = url.openStream()) {
+            bytes = is.readAllBytes();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        File sidecar = sidecarFor(name);
+        if (sidecar != null && sidecar.isFile()) {
+            SRecordImage cached = readSidecar(sidecar.toPath(), bytes.length, crc.getValue());
+            if (cached != null) {
+                return cached;
+            }
+        }
+        SRecordImage img = decode(ByteBuffer.wrap(bytes));
+        if (sidecar != null) {
+            img.writeSidecar(sidecar, bytes.length, crc.getValue());
+        }
+        return img;
+    }
+
+    /**
+     * The directory that decoded images and the other caches are kept
+     * in, from the swtpc6800.cache.dir system property or else
+     * ~/.swtpc6800/cache, or null if there is nowhere to put it. The
+     * default is private to the user rather than shared in
+     * java.io.tmpdir, where anyone could plant a cache file.
+     */
+    static File cacheDir() {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY);
+        if (dir != null) {
+            return new File(dir);
+        }
+        String home = System.getProperty("user.home");
+        if (home == null) {
+            return null;
+        }
+        return new File(new File(home, ".swtpc6800"), "cache");
+    }
+
+    private static File sidecarFor(String name) {
+        File dir = cacheDir();
+        if (dir == null) {
+            return null;
+        }
+        String base = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(dir, base + ".bin");
+    }
+
+    static SRecordImage readSidecar(Path sidecar, long length, long crc) {
+        try (FileChannel fc = FileChannel.open(sidecar, StandardOpenOption.READ)) {
+            ByteBuffer buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            if (buf.getInt() != CACHE_MAGIC || buf.getInt() != CACHE_VERSION ||
+                buf.getLong() != length || buf.getLong() != crc)
+            {
+                return null;
+            }
+            int entry = buf.getInt();
+            int bad = buf.getInt();
+            int nranges = buf.getInt();
+            int starts[] = new int[nranges];
+            int lengths[] = new int[nranges];
+            buf.asIntBuffer().get(starts);
+            buf.position(buf.position() + nranges * 4);
+            buf.asIntBuffer().get(lengths);
+            buf.position(buf.position() + nranges * 4);
+            byte data[] = new byte[buf.getInt()];
+            buf.get(data);
+            byte recs[] = new byte[buf.getInt()];
+            buf.get(recs);
+            String label = readString(buf);
+            String notes = readString(buf);
+            return new SRecordImage(starts, lengths, data, entry, bad, recs,
+                                    label, notes == null ? "" : notes);
+        } catch (IOException | RuntimeException e) {
+            // A damaged or truncated sidecar is simply rebuilt
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int len = buf.getInt();
+        if (len < 0) {
+            return null;
+        }
+        byte b[] = new byte[len];
+        buf.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    void writeSidecar(File sidecar, long length, long crc) {
+        File dir = sidecar.getParentFile();
+        File tmp = null;
+        try {
+            Files.createDirectories(dir.toPath());
+            // Write to a temporary file and rename so that a concurrent
+            // reader never sees a partial sidecar
+            tmp = File.createTempFile(sidecar.getName(), ".tmp", dir);
+            try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmp))) {
+                dos.writeInt(CACHE_MAGIC);
+                dos.writeInt(CACHE_VERSION);
+                dos.writeLong(length);
+                dos.writeLong(crc);
+                dos.writeInt(entryPoint);
+                dos.writeInt(badRecords);
+                dos.writeInt(rangeStarts.length);
+                for (int s : rangeStarts) {
+                    dos.writeInt(s);
+                }
+                for (int l : rangeLengths) {
+                    dos.writeInt(l);
+                }
+                dos.writeInt(data.length);
+                dos.write(data);
+                dos.writeInt(records.length);
+                dos.write(records);
+                writeString(dos, label);
+                writeString(dos, notes);
+            }
+            if (!tmp.renameTo(sidecar)) {
+                Files.move(tmp.toPath(), sidecar.toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            // The cache is only an optimization
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String s) throws IOException {
+        if (s == null) {
+            dos.writeInt(-1);
+        } else {
+            byte b[] = s.getBytes(StandardCharsets.UTF_8);
+            dos.writeInt(b.length);
+            dos.write(b);
+        }
+    }
+}
@@ -11,4 +11,5 @@ package org.flarbear.swtpc6800.simulator;
 public interface SS30Bus {
     public abstract void raiseIRQ();
     public abstract void lowerIRQ();	
+    public abstract VirtualClock getClock();
 }
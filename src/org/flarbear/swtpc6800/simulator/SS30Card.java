@@ -29,6 +29,32 @@ public abstract class SS30Card {
     public void tripRESET() {
     }
 
+    /**
+     * Captures the card's registers for a checkpoint.
+     *
+     * @return the state, or null if the card has none
+     */
+    public Object saveState() {
+        return null;
+    }
+
+    /**
+     * Puts back what saveState() captured.
+     */
+    public void restoreState(Object state) {
+    }
+
+    /**
+     * A new card configured like this one, not connected to any bus, for
+     * a MachineSnapshot to install in a forked machine. Its registers are
+     * left for restoreState() to fill in.
+     *
+     * @return the new card, or null if the card cannot be forked
+     */
+    public SS30Card fork() {
+        return null;
+    }
+
     public abstract byte load(boolean RS0high, boolean RS1high);
 
     public abstract void store(boolean RS0high, boolean RS1high, byte data);
@@ -10,4 +10,5 @@ public interface SS50Bus extends Bus8x16 {
     public abstract void raiseIRQ();
     public abstract void lowerIRQ();	
     public abstract void tripNMI();
+    public abstract VirtualClock getClock();
 }
@@ -10,7 +10,9 @@ package org.flarbear.swtpc6800.simulator;
  * they could support reads and writes to 65K total byte addresses,
  * 8 bits at a time.
  */
-public abstract class SS50Card {
+public abstract class SS50Card implements Bus8x16 {
+    private static final MemoryDevice8x16 NO_RAM[] = new MemoryDevice8x16[0];
+
     protected SS50Bus theBus;
 
     public synchronized void connectTo(SS50Bus bus) {
@@ -47,6 +49,52 @@ public abstract class SS50Card {
     public void lowerManualReset() {
     }
 
+    /**
+     * The processor on this card, if it has one.
+     */
+    public Motorola6800 getProcessor() {
+        return null;
+    }
+
+    /**
+     * The RAM on the card, which a RewindBuffer checkpoints page by page.
+     */
+    public MemoryDevice8x16[] getRam() {
+        return NO_RAM;
+    }
+
+    /**
+     * Captures the card's registers, but not its RAM, for a checkpoint.
+     *
+     * @return the state, or null if the card has none
+     */
+    public Object saveState() {
+        return null;
+    }
+
+    /**
+     * Puts back what saveState() captured.
+     */
+    public void restoreState(Object state) {
+    }
+
+    /**
+     * A new card configured like this one, not connected to any bus, for
+     * a MachineSnapshot to install in a forked machine. Its RAM shares
+     * this card's pages copy-on-write (see MemoryDevice8x16.fork()), but
+     * its registers are left for restoreState() to fill in.
+     *
+     * @return the new card, or null if the card cannot be forked
+     */
+    public SS50Card fork() {
+        return null;
+    }
+
+    /**
+     * Whether the card responds to the address, which must not change
+     * once the card is installed since the bus builds its decode table
+     * from the answers.
+     */
     public abstract boolean maps(char addr);
     public abstract byte load(char addr);
     public abstract void store(char addr, byte data);
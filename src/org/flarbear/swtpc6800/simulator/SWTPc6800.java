@@ -4,31 +4,96 @@
 
 package org.flarbear.swtpc6800.simulator;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class SWTPc6800 extends MicroComputer8x16
     implements SS50Bus, SS30Bus
 {
     public static SWTPc6800 makeStandardSystem() {
         // REMIND: It would be nice to simulate an MP_A with MIKBUG and an MP_C...
-        SWTPc6800 theComputer = new SWTPc6800();
-        theComputer.installcard(new SWTPc_MP_A(), 1);
-        theComputer.installcard(new SWTPc_MP_M((char) 0x0000, 4), 2);
-        theComputer.installcard(new SWTPc_MP_M((char) 0x1000, 4), 3);
-        theComputer.installcard(new SWTPc_MP_M((char) 0x2000, 4), 4);
-        theComputer.installcard(new SWTPc_MP_S(), 1);
-        return theComputer;
+        return MachineBuilder.standard().buildSystem();
+    }
+
+    private static final int PAGE_SHIFT = 8;
+    private static final int NUM_PAGES = 0x10000 >> PAGE_SHIFT;
+    private static final int IO_PAGE = 0x8000 >> PAGE_SHIFT;
+
+    public static final int NUM_MAIN_SLOTS = 7;
+    public static final int NUM_IO_SLOTS = 8;
+
+    /**
+     * Told about every input that reaches the machine from outside, on
+     * the thread that delivers it, see InputRecorder.
+     */
+    public interface InputListener {
+        public static final int END    = 0;
+        // A character from a queue that is not flow controlled (a keyboard)
+        public static final int KEY    = 1;
+        // A character from a flow controlled queue (a tape reader)
+        public static final int TAPE   = 2;
+        // A character sent straight to a serial port's receiver
+        public static final int SERIAL = 3;
+        public static final int RESET  = 4;
+        public static final int IRQ_RAISE = 5;
+        public static final int IRQ_LOWER = 6;
+        public static final int NMI    = 7;
+
+        /**
+         * @param slot the I/O slot of the serial port for KEY, TAPE and
+         *             SERIAL, otherwise 0
+         */
+        public void input(int type, int slot, byte data);
     }
 
     private final SS50Card mainslots[];
     private final SS30Card ioslots[];
 
+    private Motorola6800 processor;
     private boolean poweron;
+    private final VirtualClock clock = new VirtualClock();
+
+    // The bus decode table. A page that is entirely mapped by a single
+    // card, and by nothing else, is handled by that card directly and
+    // every other page goes through the slot by slot decoding below.
+    // pageDecoders is what each page would use without watchpoints and
+    // pageHandlers is what load() and store() actually use.
+    private final Bus8x16 pageDecoders[];
+    private final Bus8x16 pageHandlers[];
+    private final Bus8x16 slotDecoder = new Bus8x16() {
+        @Override
+        public byte load(char addr) {
+            return decodeLoad(addr);
+        }
+
+        @Override
+        public void store(char addr, byte data) {
+            decodeStore(addr, data);
+        }
+    };
+    private Watchpoint watchpoints[] = new Watchpoint[0];
+    private InputListener inputListener;
 
     public SWTPc6800() {
-        mainslots = new SS50Card[7];
-        ioslots = new SS30Card[8];
+        mainslots = new SS50Card[NUM_MAIN_SLOTS];
+        ioslots = new SS30Card[NUM_IO_SLOTS];
+        pageDecoders = new Bus8x16[NUM_PAGES];
+        pageHandlers = new Bus8x16[NUM_PAGES];
+        Arrays.fill(pageDecoders, slotDecoder);
+        Arrays.fill(pageHandlers, slotDecoder);
     }
 
     public void installcard(SS50Card c, int slot) {
+        attach(c, slot);
+        rebuildDecoder();
+    }
+
+    private void attach(SS50Card c, int slot) {
         if (poweron) {
             throw new IllegalStateException("Cannot install cards while powered on!");
         }
@@ -37,6 +102,44 @@ public class SWTPc6800 extends MicroComputer8x16
         }
         c.connectTo(this);
         mainslots[slot] = c;
+        if (c.getProcessor() != null) {
+            processor = c.getProcessor();
+        }
+    }
+
+    /**
+     * Installs a full set of main cards, indexed by slot, that map the
+     * same addresses as the cards that produced the layout (see
+     * getDecodeLayout()), so that the decode table can be filled in from
+     * it rather than by asking every card about every address.
+     */
+    synchronized void installcards(SS50Card cards[], int layout[]) {
+        for (int i = 0; i < cards.length; i++) {
+            if (cards[i] != null) {
+                attach(cards[i], i);
+            }
+        }
+        for (int page = 0; page < NUM_PAGES; page++) {
+            pageDecoders[page] = (layout[page] < 0) ? slotDecoder : mainslots[layout[page]];
+        }
+        applyWatchpoints();
+    }
+
+    /**
+     * The slot of the card that handles each page directly, or -1 for
+     * the pages that go through the slot by slot decoding.
+     */
+    synchronized int[] getDecodeLayout() {
+        int layout[] = new int[NUM_PAGES];
+        for (int page = 0; page < NUM_PAGES; page++) {
+            layout[page] = -1;
+            for (int i = 0; i < mainslots.length; i++) {
+                if (mainslots[i] != null && pageDecoders[page] == mainslots[i]) {
+                    layout[page] = i;
+                }
+            }
+        }
+        return layout;
     }
 
     public void installcard(SS30Card c, int slot) {
@@ -48,6 +151,9 @@ public class SWTPc6800 extends MicroComputer8x16
         }
         c.connectTo(this);
         ioslots[slot] = c;
+        if (inputListener != null && c instanceof SWTPc_MP_S) {
+            ((SWTPc_MP_S) c).setInputListener(inputListener, slot);
+        }
     }
 
     private final static int POWER_OFF         = 0;
@@ -131,6 +237,62 @@ public class SWTPc6800 extends MicroComputer8x16
         }
     }
 
+    @Override
+    public VirtualClock getClock() {
+        return clock;
+    }
+
+    public SS50Card getMainCard(int slot) {
+        return mainslots[slot];
+    }
+
+    public SS30Card getIOCard(int slot) {
+        return ioslots[slot];
+    }
+
+    public Motorola6800 getProcessor() {
+        return processor;
+    }
+
+    /**
+     * Reports the reset button, the interrupt lines and every character
+     * received by an MP-S to the listener, or stops reporting if it is
+     * null. The interrupt lines are only driven from outside the machine
+     * since none of the simulated cards raise them.
+     */
+    public synchronized void setInputListener(InputListener l) {
+        inputListener = l;
+        for (int i = 0; i < ioslots.length; i++) {
+            if (ioslots[i] instanceof SWTPc_MP_S) {
+                ((SWTPc_MP_S) ioslots[i]).setInputListener(l, i);
+            }
+        }
+    }
+
+    private void reportInput(int type) {
+        InputListener l = inputListener;
+        if (l != null) {
+            l.input(type, 0, (byte) 0);
+        }
+    }
+
+    public boolean isStoppedAtBreakpoint() {
+        return processor != null && processor.isStoppedAtBreakpoint();
+    }
+
+    /**
+     * Run the processor for a slice of cycles on the calling thread,
+     * see SimulationLoop.
+     */
+    public boolean runSlice(int cycles) {
+        if (processor == null) {
+            // Nothing to drive the bus, but time still passes
+            clock.advance(cycles);
+            return false;
+        }
+        return processor.runSlice(cycles);
+    }
+
     @Override
     public void powerOn() {
         poweron = true;
@@ -150,16 +312,19 @@ public class SWTPc6800 extends MicroComputer8x16
 
     @Override
     public void raiseIRQ() {
+        reportInput(InputListener.IRQ_RAISE);
         signalAll(IRQ_RAISE);
     }
 
     @Override
     public void lowerIRQ() {
+        reportInput(InputListener.IRQ_LOWER);
         signalAll(IRQ_LOWER);
     }
 
     @Override
     public void tripNMI() {
+        reportInput(InputListener.NMI);
         signalAll(NMI_TRIP);
     }
 
@@ -175,12 +340,152 @@ public class SWTPc6800 extends MicroComputer8x16
 
     @Override
     public void tripManualReset() {
+        reportInput(InputListener.RESET);
         signalAll(RESETBUTTON_RAISE);
         signalAll(RESETBUTTON_LOWER);
     }
 
+    private synchronized void rebuildDecoder() {
+        for (int page = 0; page < NUM_PAGES; page++) {
+            pageDecoders[page] = decoderFor(page);
+        }
+        applyWatchpoints();
+    }
+
+    private Bus8x16 decoderFor(int page) {
+        if (page == IO_PAGE) {
+            return slotDecoder;
+        }
+        SS50Card owner = null;
+        for (SS50Card c : mainslots) {
+            if (c == null) {
+                continue;
+            }
+            int mapped = 0;
+            for (int i = 0; i < (1 << PAGE_SHIFT); i++) {
+                if (c.maps((char) ((page << PAGE_SHIFT) + i))) {
+                    mapped++;
+                }
+            }
+            if (mapped == 0) {
+                continue;
+            }
+            if (mapped < (1 << PAGE_SHIFT) || owner != null) {
+                return slotDecoder;
+            }
+            owner = c;
+        }
+        return (owner == null) ? slotDecoder : owner;
+    }
+
+    /**
+     * Reports accesses to a range of addresses, see Watchpoint. Only the
+     * pages in the range are slowed down. Watchpoints should be added and
+     * removed while the machine is stopped or from the thread that runs
+     * it, for instance with SimulationLoop.invokeLater().
+     *
+     * @throws IllegalStateException if the processor is not on this bus,
+     *         as with a FlatMemoryCard
+     */
+    public synchronized void addWatchpoint(Watchpoint w) {
+        if (processor != null && processor.theBus != this) {
+            throw new IllegalStateException("The processor does not use the system bus");
+        }
+        int n = watchpoints.length;
+        Watchpoint newWatchpoints[] = Arrays.copyOf(watchpoints, n + 1);
+        newWatchpoints[n] = w;
+        watchpoints = newWatchpoints;
+        applyWatchpoints();
+    }
+
+    public synchronized void removeWatchpoint(Watchpoint w) {
+        for (int i = 0; i < watchpoints.length; i++) {
+            if (watchpoints[i] == w) {
+                Watchpoint newWatchpoints[] = new Watchpoint[watchpoints.length - 1];
+                System.arraycopy(watchpoints, 0, newWatchpoints, 0, i);
+                System.arraycopy(watchpoints, i + 1, newWatchpoints, i, newWatchpoints.length - i);
+                watchpoints = newWatchpoints;
+                applyWatchpoints();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether accesses to the page holding addr go through a WatchedPage.
+     */
+    synchronized boolean isWatched(int addr) {
+        int page = (addr & 0xFFFF) >> PAGE_SHIFT;
+        return pageHandlers[page] != pageDecoders[page];
+    }
+
+    private void applyWatchpoints() {
+        for (int page = 0; page < NUM_PAGES; page++) {
+            int first = page << PAGE_SHIFT;
+            int last = first + (1 << PAGE_SHIFT) - 1;
+            ArrayList<Watchpoint> list = null;
+            for (Watchpoint w : watchpoints) {
+                if (w.getStart() <= last && w.getEnd() >= first) {
+                    if (list == null) {
+                        list = new ArrayList<>();
+                    }
+                    list.add(w);
+                }
+            }
+            pageHandlers[page] = (list == null)
+                ? pageDecoders[page]
+                : new WatchedPage(pageDecoders[page], list.toArray(new Watchpoint[0]));
+        }
+    }
+
+    /**
+     * Stands in for a page's usual handler while it has watchpoints.
+     */
+    private static final class WatchedPage implements Bus8x16 {
+        private final Bus8x16 decoder;
+        private final Watchpoint watchpoints[];
+
+        WatchedPage(Bus8x16 decoder, Watchpoint watchpoints[]) {
+            this.decoder = decoder;
+            this.watchpoints = watchpoints;
+        }
+
+        @Override
+        public byte load(char addr) {
+            byte data = decoder.load(addr);
+            for (Watchpoint w : watchpoints) {
+                w.check(addr, data, Watchpoint.READ);
+            }
+            return data;
+        }
+
+        @Override
+        public void store(char addr, byte data) {
+            decoder.store(addr, data);
+            for (Watchpoint w : watchpoints) {
+                w.check(addr, data, Watchpoint.WRITE);
+            }
+        }
+    }
+
     @Override
     public byte load(char addr) {
+        return pageHandlers[addr >> PAGE_SHIFT].load(addr);
+    }
+
+    /**
+     * Reads memory without tripping any watchpoints, for copying it.
+     */
+    byte peek(char addr) {
+        return pageDecoders[addr >> PAGE_SHIFT].load(addr);
+    }
+
+    @Override
+    public void store(char addr, byte data) {
+        pageHandlers[addr >> PAGE_SHIFT].store(addr, data);
+    }
+
+    private byte decodeLoad(char addr) {
         byte data = (byte) 0xFF;
         for (SS50Card c : mainslots) {
             if (c != null && c.maps(addr)) {
@@ -198,8 +503,7 @@ public class SWTPc6800 extends MicroComputer8x16
         return data;
     }
 
-    @Override
-    public void store(char addr, byte data) {
+    private void decodeStore(char addr, byte data) {
         for (SS50Card c : mainslots) {
             if (c != null && c.maps(addr)) {
                 c.store(addr, data);
@@ -216,26 +520,169 @@ public class SWTPc6800 extends MicroComputer8x16
         }
     }
 
+    /**
+     * Applies the command line options shared by the headless and AWT
+     * front ends, which are:
+     * <dl>
+     * <dt>-virtual</dt><dd>run on a deterministic VirtualClock</dd>
+     * <dt>-loop</dt><dd>drive the processor from a SimulationLoop</dd>
+     * <dt>-disk=<i>image</i></dt><dd>add a DC-1 with the image in the
+     *     next drive, may be repeated</dd>
+     * <dt>-fastdisk</dt><dd>no rotational delay on the DC-1</dd>
+     * <dt>-record=<i>file</i></dt><dd>write every input to the file, see
+     *     InputRecorder, which is only exact with -loop</dd>
+     * <dt>-replay=<i>file</i></dt><dd>play the inputs in the file back
+     *     as fast as possible, needs -loop</dd>
+     * <dt>-profile</dt><dd>warm up the monitor ROM from the profile kept
+     *     in the default ProfileCache and update it on exit</dd>
+     * </dl>
+     * Other arguments are left for the front end.
+     *
+     * @return the SimulationLoop, not yet started, or null
+     */
+    public static SimulationLoop applyOptions(SWTPc6800 myMachine, String argv[]) {
+        SimulationLoop myLoop = null;
+        List<String> disks = new ArrayList<>();
+        boolean fastDisk = false;
+        String record = null;
+        String replay = null;
+        boolean profile = false;
+        for (String arg : argv) {
+            if (arg.equals("-virtual")) {
+                myMachine.getClock().setDeterministic(true);
+            } else if (arg.equals("-loop")) {
+                myLoop = new SimulationLoop();
+            } else if (arg.startsWith("-disk=")) {
+                disks.add(arg.substring(6));
+            } else if (arg.equals("-fastdisk")) {
+                fastDisk = true;
+            } else if (arg.startsWith("-record=")) {
+                record = arg.substring(8);
+            } else if (arg.startsWith("-replay=")) {
+                replay = arg.substring(8);
+            } else if (arg.equals("-profile")) {
+                profile = true;
+            }
+        }
+        if (!disks.isEmpty()) {
+            installDiskController(myMachine, disks, fastDisk);
+        }
+        if (myLoop != null) {
+            myLoop.add(myMachine);
+        }
+        if (record != null) {
+            startRecording(myMachine, record);
+        }
+        if (profile) {
+            startProfiling(myMachine);
+        }
+        if (replay != null) {
+            if (myLoop == null) {
+                System.err.println("-replay needs -loop");
+            } else {
+                startReplay(myMachine, myLoop, replay);
+            }
+        }
+        return myLoop;
+    }
+
+    private static void startRecording(SWTPc6800 myMachine, String file) {
+        try {
+            InputRecorder myRecorder = new InputRecorder(myMachine, new FileOutputStream(file));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    myRecorder.close();
+                } catch (IOException e) {
+                    System.err.println("Could not write input log " + file + ": " + e.getMessage());
+                }
+            }));
+        } catch (IOException e) {
+            System.err.println("Could not record to " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static void startProfiling(SWTPc6800 myMachine) {
+        ProfileCache cache = ProfileCache.getDefault();
+        for (int i = 0; i < NUM_MAIN_SLOTS; i++) {
+            if (myMachine.getMainCard(i) instanceof SWTPc_MP_A) {
+                SWTPc_MP_A cpu = (SWTPc_MP_A) myMachine.getMainCard(i);
+                cache.track(myMachine, cpu.getMonitor(), SWTPc_MP_A.ROM_ADDR);
+            }
+        }
+        cache.saveOnExit();
+    }
+
+    /**
+     * The replay starts on the loop, once the front end has powered the
+     * machine on, and runs without waiting for the wall clock.
+     */
+    private static void startReplay(SWTPc6800 myMachine, SimulationLoop myLoop, String file) {
+        try {
+            InputReplayer myReplayer = new InputReplayer(myMachine, new FileInputStream(file));
+            myLoop.setRealTime(false);
+            myLoop.invokeLater(myReplayer::start);
+        } catch (IOException e) {
+            System.err.println("Could not replay " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the standard system with its terminal on the host's stdio.
+     * This entry point never loads AWT; the windowed front end is
+     * org.flarbear.swtpc6800.ui.SWTPc6800Desktop.
+     */
     public static void main(String argv[]) {
         SWTPc6800 myMachine = makeStandardSystem();
-        SWTPc_CT_64 myTerminal = new SWTPc_CT_64();
-        SWTPc_AC_30 myCassette = new SWTPc_AC_30();
-        SWTPc_GT_6144 myGraphics = new SWTPc_GT_6144();
+        AnsiTerminal myBridge = runOnStdio(myMachine, applyOptions(myMachine, argv));
+        try {
+            myBridge.waitForDetach();
+        } catch (InterruptedException e) {
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Installs a DC-1 in slot 6, and its drive select in slot 5, with the
+     * given disk images in drives 0 and up.
+     */
+    private static void installDiskController(SWTPc6800 myMachine, List<String> disks,
+                                              boolean fastDisk)
+    {
+        SWTPc_DC_1 myController = new SWTPc_DC_1();
+        myController.setNoRotationalDelay(fastDisk);
+        for (int i = 0; i < disks.size() && i < FD1771.NUM_DRIVES; i++) {
+            try {
+                myController.insert(i, DiskImage.open(Paths.get(disks.get(i)), false));
+            } catch (IOException e) {
+                System.err.println("Could not open disk " + disks.get(i) + ": " + e.getMessage());
+            }
+        }
+        myMachine.installcard(myController.getDriveSelect(), 5);
+        myMachine.installcard(myController, 6);
+        // Sectors still in the write-back cache must reach the images
+        Runtime.getRuntime().addShutdownHook(new Thread(myController.getController()::flush));
+    }
+
+    /**
+     * Runs a system with its terminal on the host's stdio instead of in
+     * an AWT window, without the cassette or graphics.
+     *
+     * @return the bridge to the host's stdio, see
+     *         AnsiTerminal.waitForDetach()
+     */
+    public static AnsiTerminal runOnStdio(SWTPc6800 myMachine, SimulationLoop myLoop) {
         SWTPc_MP_S mySerialPort = ((SWTPc_MP_S) myMachine.ioslots[1]);
-        SWTPc_MP_L myParallelPort = new SWTPc_MP_L();
-        myMachine.installcard(myParallelPort, 3);
-        myParallelPort.connectSideA(myGraphics);
-        myTerminal.connectGraphics(myGraphics);
-        myCassette.connectToComputer(mySerialPort);
-        myCassette.connectToTerminal(myTerminal);
-        myTerminal.connectCassetteControl(myCassette);
-        myTerminal.addResetFor(myMachine);
-        if (Motorola6800.STATS) {
-            myTerminal.addStatsButtonFor(((SWTPc_MP_A) myMachine.mainslots[1]).processor);
-        }
-        myCassette.powerOn();
-        myTerminal.powerOn();
+        CT64Screen myScreen = new CT64Screen();
+        mySerialPort.connectTo(myScreen);
+        myScreen.connectTo(mySerialPort);
+        AnsiTerminal myBridge = new AnsiTerminal(myScreen, System.in, System.out);
+        myBridge.connectKeyboard(mySerialPort.openInputQueue(256, false));
+        myBridge.start();
         myMachine.powerOn();
         myMachine.tripManualReset();
+        if (myLoop != null) {
+            myLoop.start();
+        }
+        return myBridge;
     }
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+/**
+ * The SWTPc DC-1 floppy disk controller.
+ *
+ * The FD1771 registers appear in the slot the card is installed in,
+ * normally slot 6 at $8018-$801B. With the DC-1 modification to the
+ * motherboard the card also answers for slot 5, where writing $8014
+ * selects one of the four drives. Since a simulated card only sees its
+ * own slot, that half of the card is a separate SS30Card returned by
+ * getDriveSelect() which is installed in slot 5.
+ *
+ * Anything written to the disks is flushed to their image files when
+ * the system is reset or powered off.
+ */
+public class SWTPc_DC_1 extends SS30Card {
+    private final FD1771 controller = new FD1771();
+    private final SS30Card driveSelect = new SS30Card() {
+        @Override
+        public byte load(boolean RS0high, boolean RS1high) {
+            return (byte) controller.getSelectedDrive();
+        }
+
+        @Override
+        public void store(boolean RS0high, boolean RS1high, byte data) {
+            controller.selectDrive(data & 3);
+        }
+    };
+
+    public FD1771 getController() {
+        return controller;
+    }
+
+    public SS30Card getDriveSelect() {
+        return driveSelect;
+    }
+
+    public void insert(int drive, DiskImage disk) {
+        controller.insert(drive, disk);
+    }
+
+    public DiskImage eject(int drive) {
+        return controller.eject(drive);
+    }
+
+    /**
+     * See FD1771.setNoRotationalDelay().
+     */
+    public void setNoRotationalDelay(boolean noDelay) {
+        controller.setNoRotationalDelay(noDelay);
+    }
+
+    @Override
+    public synchronized void connectTo(SS30Bus bus) {
+        super.connectTo(bus);
+        controller.connectClock(bus.getClock());
+    }
+
+    @Override
+    public void powerOn() {
+        controller.reset();
+    }
+
+    @Override
+    public void powerOff() {
+        controller.flush();
+    }
+
+    @Override
+    public void tripRESET() {
+        controller.reset();
+    }
+
+    @Override
+    public byte load(boolean RS0high, boolean RS1high) {
+        return controller.readRegister((RS1high ? 2 : 0) | (RS0high ? 1 : 0));
+    }
+
+    @Override
+    public void store(boolean RS0high, boolean RS1high, byte data) {
+        controller.writeRegister((RS1high ? 2 : 0) | (RS0high ? 1 : 0), data);
+    }
+}
@@ -14,6 +14,20 @@ public class SWTPc_MP_8M extends SS50Card {
         mem = new MemoryDevice8x16(base, 8 * 1024);
     }
 
+    private SWTPc_MP_8M(MemoryDevice8x16 mem) {
+        this.mem = mem;
+    }
+
+    @Override
+    public SS50Card fork() {
+        return new SWTPc_MP_8M(mem.fork());
+    }
+
+    @Override
+    public MemoryDevice8x16[] getRam() {
+        return new MemoryDevice8x16[] { mem };
+    }
+
     @Override
     public boolean maps(char addr) {
         return mem.maps(addr);
@@ -4,8 +4,6 @@
 
 package org.flarbear.swtpc6800.simulator;
 
-import java.io.InputStream;
-import java.io.BufferedInputStream;
 import java.io.IOException;
 
 public class SWTPc_MP_A extends SS50Card {
@@ -17,20 +15,75 @@ public class SWTPc_MP_A extends SS50Card {
 
     MemoryDevice8x16 scratchpad;
     RomDevice8x16 rom;
+    SRecordImage monitor;
     Motorola6800 processor;
 
     public SWTPc_MP_A() {
         scratchpad = new MemoryDevice8x16(SCRATCHPAD_ADDR, SCRATCHPAD_SIZE);
         rom = new RomDevice8x16(ROM_ADDR, ROM_MASK, ROM_SIZE);
-        loadRom();
+        monitor = loadRom();
+        rom.burn(monitor);
         swapRom();
         processor = new Motorola6800();
     }
 
+    /**
+     * An MP-A with a different monitor in its ROM socket. The addresses
+     * in the image are relative to the start of the 2K ROM.
+     */
+    public SWTPc_MP_A(SRecordImage monitor) {
+        scratchpad = new MemoryDevice8x16(SCRATCHPAD_ADDR, SCRATCHPAD_SIZE);
+        rom = new RomDevice8x16(ROM_ADDR, ROM_MASK, ROM_SIZE);
+        rom.burn(monitor);
+        this.monitor = monitor;
+        processor = new Motorola6800();
+    }
+
+    private SWTPc_MP_A(MemoryDevice8x16 scratchpad, RomDevice8x16 rom, SRecordImage monitor) {
+        this.scratchpad = scratchpad;
+        this.rom = rom;
+        this.monitor = monitor;
+        processor = new Motorola6800();
+    }
+
+    @Override
+    public SS50Card fork() {
+        return new SWTPc_MP_A(scratchpad.fork(), rom.fork(), monitor);
+    }
+
+    /**
+     * The image that was burned into the ROM, whose addresses are
+     * relative to ROM_ADDR.
+     */
+    public SRecordImage getMonitor() {
+        return monitor;
+    }
+
+    @Override
+    public Motorola6800 getProcessor() {
+        return processor;
+    }
+
+    @Override
+    public MemoryDevice8x16[] getRam() {
+        return new MemoryDevice8x16[] { scratchpad };
+    }
+
+    @Override
+    public Object saveState() {
+        return processor.saveState();
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        processor.restoreState(state);
+    }
+
     @Override
     public void connectTo(SS50Bus bus) {
         super.connectTo(bus);
         processor.connectTo(bus);
+        processor.connectClock(bus.getClock());
     }
 
     @Override
@@ -102,92 +155,20 @@ public class SWTPc_MP_A extends SS50Card {
         }
     }
 
-    private int readHex(BufferedInputStream bis, int numdigits)
-        throws IOException
-    {
-        int ret = 0;
-        while (--numdigits >= 0) {
-            int ch = bis.read();
-            if (ch < 0) {
-                return ch;
-            }
-            if (ch >= '0' && ch <= '9') {
-                ret = (ret << 4) | (ch - '0');
-            } else if (ch >= 'A' && ch <= 'F') {
-                ret = (ret << 4) | (ch - 'A' + 10);
-            } else if (ch >= 'a' && ch <= 'f') {
-                ret = (ret << 4) | (ch - 'a' + 10);
-            } else {
-                return -1;
-            }
-        }
-        return ret;
-    }
-
-    private void loadRom() {
-        InputStream is = null;
-        int bytesloaded = 0;
+    private static SRecordImage loadRom() {
+        SRecordImage image;
         try {
-            is = getClass().getResourceAsStream("/org/flarbear/swtpc6800/resources/SwtMik.S19");
-            BufferedInputStream bis = new BufferedInputStream(is);
-
-            int ch;
-            boolean foundS = false;
-            outer_loop:
-            while ((ch = bis.read()) >= 0) {
-                if (ch == 'S') {
-                    foundS = true;
-                    continue;
-                }
-                if (foundS && ch == '9') {
-                    break;
-                }
-                if (foundS && ch == '1') {
-                    int numbytes = readHex(bis, 2);
-                    if (numbytes < 0) {
-                        break;
-                    }
-                    if (numbytes < 3) {
-                        throw new InternalError("bogus packet length");
-                    }
-                    int addr = readHex(bis, 4);
-                    if (addr < 0) {
-                        break;
-                    }
-                    int sum = numbytes + (addr >> 8) + (addr & 0xFF);
-                    numbytes -= 3;
-                    for (int i = 0; i < numbytes; i++) {
-                        int b = readHex(bis, 2);
-                        if (b < 0) {
-                            break outer_loop;
-                        }
-                        sum += b;
-                        rom.burn((char) addr++, (byte) b);
-                        bytesloaded++;
-                    }
-                    int chksum = readHex(bis, 2);
-                    if (chksum < 0) {
-                        break;
-                    }
-                    if (((sum + chksum) & 0xff) != 0xff) {
-                        throw new InternalError("Bad checksum in SWTBUG ROM");
-                    }
-                }
-                foundS = false;
-            }
-            if (bytesloaded != 2048) {
-                throw new InternalError("Wrong number of SWTBUG bytes loaded");
-            }
+            image = SRecordImage.loadResource("/org/flarbear/swtpc6800/resources/SwtMik.S19");
         } catch (IOException e) {
             e.printStackTrace(System.err);
             throw new InternalError("IO Exception reading SWTBUG ROM file");
-        } finally {
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e2) {
-                }
-            }
         }
+        if (image.getBadRecordCount() != 0) {
+            throw new InternalError("Bad checksum in SWTBUG ROM");
+        }
+        if (image.size() != ROM_SIZE) {
+            throw new InternalError("Wrong number of SWTBUG bytes loaded");
+        }
+        return image;
     }
 }
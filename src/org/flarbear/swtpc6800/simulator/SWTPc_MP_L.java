@@ -109,6 +109,23 @@ public class SWTPc_MP_L extends SS30Card {
         void reset() {
             DDR = PDR = CR = 0;
         }
+
+        byte[] save() {
+            return new byte[] {
+                DDR, PDR, CR,
+                (byte) ((prevC1 ? 1 : 0) | (prevC2 ? 2 : 0) | (outC2 ? 4 : 0))
+            };
+        }
+
+        void restore(byte state[]) {
+            DDR = state[0];
+            PDR = state[1];
+            CR = state[2];
+            prevC1 = (state[3] & 1) != 0;
+            prevC2 = (state[3] & 2) != 0;
+            outC2 = (state[3] & 4) != 0;
+            sendTransition();
+        }
     }
 
     private final PIASide Aside;
@@ -125,6 +142,26 @@ public class SWTPc_MP_L extends SS30Card {
         Bside.reset();
     }
 
+    /**
+     * A PIA with no peripherals attached.
+     */
+    @Override
+    public SS30Card fork() {
+        return new SWTPc_MP_L();
+    }
+
+    @Override
+    public Object saveState() {
+        return new byte[][] { Aside.save(), Bside.save() };
+    }
+
+    @Override
+    public void restoreState(Object state) {
+        byte sides[][] = (byte[][]) state;
+        Aside.restore(sides[0]);
+        Bside.restore(sides[1]);
+    }
+
     public void raiseIRQ() {
         // REMIND...
     }
@@ -4,6 +4,8 @@
 
 package org.flarbear.swtpc6800.simulator;
 
+import java.util.Arrays;
+
 @SuppressWarnings("PointlessBitwiseExpression")
 public class SWTPc_MP_S extends SS30Card implements RS232Device {
     public static final int STATUS_RDRF = (1 << 0);  // Set implies data ready to be read
@@ -27,15 +29,120 @@ public class SWTPc_MP_S extends SS30Card implements RS232Device {
     private boolean dataready;
     private boolean dataoverrun;
 
+    private int baudRate;
+    private long transmitReadyCycle;
+
+    // Host side producers feed the receiver through these queues, which
+    // are drained on the processor thread whenever RDRF is clear.
+    private volatile ByteRing inputQueues[] = new ByteRing[0];
+    private volatile boolean queueFlowControlled[] = new boolean[0];
+
+    private volatile SWTPc6800.InputListener inputListener;
+    private int inputSlot;
+
+    /**
+     * Reports every received character, see SWTPc6800.setInputListener().
+     */
+    synchronized void setInputListener(SWTPc6800.InputListener l, int slot) {
+        inputSlot = slot;
+        inputListener = l;
+    }
+
+    /**
+     * Opens a queue through which another thread can feed characters to
+     * the receiver without locking or waiting for CTS on every character.
+     * A flow controlled queue is only drained while the receiver is
+     * enabled (as the tape reader is), otherwise characters are delivered
+     * as soon as the previous one has been read. Each queue must only be
+     * filled from a single thread.
+     */
+    public synchronized ByteRing openInputQueue(int capacity, boolean flowControlled) {
+        ByteRing ring = new ByteRing(capacity);
+        int n = inputQueues.length;
+        ByteRing newQueues[] = Arrays.copyOf(inputQueues, n + 1);
+        boolean newFlowControlled[] = Arrays.copyOf(queueFlowControlled, n + 1);
+        newQueues[n] = ring;
+        newFlowControlled[n] = flowControlled;
+        queueFlowControlled = newFlowControlled;
+        inputQueues = newQueues;
+        return ring;
+    }
+
+    private void drainInput() {
+        if (dataready) {
+            return;
+        }
+        ByteRing queues[] = inputQueues;
+        boolean flowControlled[] = queueFlowControlled;
+        for (int i = 0; i < queues.length; i++) {
+            if (flowControlled[i] && !receiving) {
+                continue;
+            }
+            int data = queues[i].poll();
+            if (data >= 0) {
+                receiverdata = (byte) data;
+                dataready = true;
+                SWTPc6800.InputListener l = inputListener;
+                if (l != null) {
+                    l.input(flowControlled[i]
+                                ? SWTPc6800.InputListener.TAPE
+                                : SWTPc6800.InputListener.KEY,
+                            inputSlot, receiverdata);
+                }
+                return;
+            }
+        }
+    }
+
     public synchronized void raiseRESET() {
         dataready = dataoverrun = receiving = false;
         notifyAll();
     }
 
+    /**
+     * Sets the rate at which the transmit data register empties, measured
+     * against the VirtualClock. A rate of 0 (the default) makes the
+     * transmitter ready again as soon as a character is written.
+     */
+    public synchronized void setBaudRate(int baud) {
+        if (baud < 0) {
+            throw new IllegalArgumentException("baud rate cannot be negative");
+        }
+        this.baudRate = baud;
+        this.transmitReadyCycle = 0;
+    }
+
+    /**
+     * A port at the same baud rate, with no terminal or input queues.
+     */
+    @Override
+    public synchronized SS30Card fork() {
+        SWTPc_MP_S copy = new SWTPc_MP_S();
+        copy.baudRate = baudRate;
+        return copy;
+    }
+
+    private VirtualClock clock() {
+        return (theBus == null) ? null : theBus.getClock();
+    }
+
+    private boolean transmitterReady() {
+        if (baudRate == 0) {
+            return true;
+        }
+        VirtualClock clock = clock();
+        return clock == null || clock.now() >= transmitReadyCycle;
+    }
+
     int throttle;
 
     @SuppressWarnings("CallToThreadYield")
     public void pause() {
+        VirtualClock clock = clock();
+        if (clock != null && clock.isDeterministic()) {
+            // Virtual time never waits on the wall clock
+            return;
+        }
         try {
             if (++throttle > 10) {
                 throttle = 0;
@@ -47,6 +154,36 @@ public class SWTPc_MP_S extends SS30Card implements RS232Device {
         }
     }
 
+    private static final class State {
+        byte receiverdata;
+        boolean receiving;
+        boolean dataready;
+        boolean dataoverrun;
+        long transmitReadyCycle;
+    }
+
+    @Override
+    public synchronized Object saveState() {
+        State state = new State();
+        state.receiverdata = receiverdata;
+        state.receiving = receiving;
+        state.dataready = dataready;
+        state.dataoverrun = dataoverrun;
+        state.transmitReadyCycle = transmitReadyCycle;
+        return state;
+    }
+
+    @Override
+    public synchronized void restoreState(Object saved) {
+        State state = (State) saved;
+        receiverdata = state.receiverdata;
+        receiving = state.receiving;
+        dataready = state.dataready;
+        dataoverrun = state.dataoverrun;
+        transmitReadyCycle = state.transmitReadyCycle;
+        notifyAll();
+    }
+
     @Override
     public synchronized byte load(boolean RS0high, boolean RS1high) {
         byte ret = 0;
@@ -59,6 +196,7 @@ public class SWTPc_MP_S extends SS30Card implements RS232Device {
             notifyAll();
         } else {
             // reading status
+            drainInput();
             if (terminal == null) {
                 ret |= STATUS_DCD;
             } else {
@@ -71,7 +209,10 @@ public class SWTPc_MP_S extends SS30Card implements RS232Device {
                 if (dataoverrun) {
                     ret |= STATUS_ROV;
                 }
-                ret |= STATUS_TDRE | STATUS_IRQ;
+                if (transmitterReady()) {
+                    ret |= STATUS_TDRE;
+                }
+                ret |= STATUS_IRQ;
             }
         }
         return ret;
@@ -80,9 +221,20 @@ public class SWTPc_MP_S extends SS30Card implements RS232Device {
     @Override
     public synchronized void store(boolean RS0high, boolean RS1high, byte data) {
         if (RS0high) {
-            // writing transmitted data
-            terminal.waitForCTS();
-            terminal.sendTo(data);
+            // writing transmitted data, which goes nowhere if nothing is
+            // connected, as on a forked machine
+            if (terminal != null) {
+                terminal.waitForCTS();
+                terminal.sendTo(data);
+            }
+            if (baudRate != 0) {
+                VirtualClock clock = clock();
+                if (clock != null) {
+                    // 1 start bit, 8 data bits and 2 stop bits
+                    transmitReadyCycle = clock.now()
+                            + VirtualClock.cyclesForCharacters(baudRate, 11, 1);
+                }
+            }
         } else {
             // writing control register
             if ((data & 3) == 3) {
@@ -105,11 +257,20 @@ public class SWTPc_MP_S extends SS30Card implements RS232Device {
 
     @Override
     public synchronized void sendTo(byte data) {
+        SWTPc6800.InputListener l = inputListener;
+        if (l != null) {
+            l.input(SWTPc6800.InputListener.SERIAL, inputSlot, data);
+        }
         dataoverrun = dataready;
         receiverdata = data;
         dataready = true;
     }
 
+    @Override
+    public synchronized boolean isClearToSend() {
+        return !dataready && receiving;
+    }
+
     @Override
     public synchronized void waitForCTS() {
         while (dataready || !receiving) {
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs one or more machines on a single scheduler thread.
+ *
+ * Instead of each processor running on its own executor thread and the
+ * devices coordinating with it through monitors, the loop runs each
+ * processor for a slice of cycles in turn. Device activity happens in
+ * VirtualClock events which fire between instructions on the same
+ * thread, and anything that originates on another thread (key presses,
+ * reset buttons) is handed to the loop through invokeLater() and runs
+ * between slices.
+ *
+ * The machines must be added before they are powered on, and their
+ * clocks are made deterministic so that the devices schedule their work
+ * on the clock rather than using threads of their own.
+ *
+ * When running in real time the loop sleeps whenever the emulated time
+ * of every machine has gotten ahead of the wall clock, otherwise it runs
+ * as fast as the host allows.
+ *
+ * A machine whose processor has stopped at a breakpoint is left alone,
+ * with its clock frozen, until the processor is resumed.
+ */
+public class SimulationLoop implements Runnable, Executor {
+    public static final int SLICE_CYCLES = 10000;
+
+    private static final long IDLE_PARK_NANOS = 1000000L;
+    private static final long MAX_LAG_NANOS = 100000000L;
+
+    private final ArrayList<SWTPc6800> machines = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile Thread loopThread;
+    private boolean realTime = true;
+
+    public synchronized void add(SWTPc6800 machine) {
+        if (loopThread != null) {
+            throw new IllegalStateException("Cannot add machines to a running loop");
+        }
+        if (machine.isPoweredOn()) {
+            throw new IllegalStateException("Machines must be added before they are powered on");
+        }
+        machine.getClock().setDeterministic(true);
+        if (machine.getProcessor() != null) {
+            machine.getProcessor().attachToLoop();
+        }
+        machines.add(machine);
+    }
+
+    public void setRealTime(boolean realTime) {
+        this.realTime = realTime;
+    }
+
+    public boolean isLoopThread() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Run the task on the loop thread between slices.
+     */
+    public void invokeLater(Runnable task) {
+        tasks.add(task);
+        Thread t = loopThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (isLoopThread()) {
+            task.run();
+        } else {
+            invokeLater(task);
+        }
+    }
+
+    public synchronized void start() {
+        if (loopThread != null) {
+            throw new IllegalStateException("Loop already started");
+        }
+        loopThread = new Thread(this, "SWTPc 6800 simulation loop");
+        loopThread.setPriority(Thread.MIN_PRIORITY);
+        loopThread.setDaemon(true);
+        loopThread.start();
+    }
+
+    public synchronized void stop() {
+        Thread t = loopThread;
+        loopThread = null;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Stops the loop and waits for the slice in progress to finish so
+     * that the machines can be looked at, or run, from the calling thread.
+     */
+    public void stopAndWait() {
+        Thread t = loopThread;
+        stop();
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    @Override
+    public void run() {
+        Thread me = Thread.currentThread();
+        SWTPc6800 mlist[] = machines.toArray(new SWTPc6800[0]);
+        long startCycles[] = new long[mlist.length];
+        for (int i = 0; i < mlist.length; i++) {
+            startCycles[i] = mlist[i].getClock().now();
+        }
+        long startNanos = System.nanoTime();
+        boolean rebase = false;
+        while (loopThread == me) {
+            if (rebase) {
+                // Don't try to catch up on time spent idle or hopelessly behind
+                for (int i = 0; i < mlist.length; i++) {
+                    startCycles[i] = mlist[i].getClock().now();
+                }
+                startNanos = System.nanoTime();
+                rebase = false;
+            }
+            runTasks();
+            boolean busy = false;
+            long minElapsed = Long.MAX_VALUE;
+            for (int i = 0; i < mlist.length; i++) {
+                SWTPc6800 m = mlist[i];
+                if (m.isPoweredOn() && !m.isStoppedAtBreakpoint()) {
+                    if (m.runSlice(SLICE_CYCLES)) {
+                        busy = true;
+                    } else if (m.getClock().advanceToNextEvent()) {
+                        busy = true;
+                    }
+                }
+                minElapsed = Math.min(minElapsed, m.getClock().now() - startCycles[i]);
+            }
+            if (!busy) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                rebase = true;
+                continue;
+            }
+            if (realTime && minElapsed != Long.MAX_VALUE) {
+                long emulatedNanos = minElapsed * 1000000000L / VirtualClock.CYCLES_PER_SECOND;
+                long ahead = emulatedNanos - (System.nanoTime() - startNanos);
+                if (ahead > IDLE_PARK_NANOS) {
+                    LockSupport.parkNanos(ahead);
+                } else if (ahead < -MAX_LAG_NANOS) {
+                    rebase = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The set of tapes that the AC-30 can play.
+ *
+ * The library holds the tapes bundled with the simulator plus every .S19
+ * file in a tape directory, which is named by the swtpc6800.tape.dir
+ * system property or defaults to ~/.swtpc6800/tapes if that exists. For
+ * each tape it keeps an index entry with its label, size, load ranges,
+ * start address and a CRC-32 of its contents.
+ *
+ * The index is persisted next to the S-record cache and read back on
+ * start, so nothing is decoded at startup. A background thread then only
+ * rescans the tapes whose size or modification time changed, and a watch
+ * on the tape directory keeps the library up to date while the simulator
+ * runs. Listeners are told about every new list of entries, on the
+ * scanning thread.
+ */
+public final class TapeLibrary {
+    public static final String TAPE_DIR_PROPERTY = "swtpc6800.tape.dir";
+
+    public static final String BUNDLED_TAPES[] = {
+        "/org/flarbear/swtpc6800/resources/TicTacToePatch.S19",
+        "/org/flarbear/swtpc6800/resources/TSCMBasicPlusPatch.S19",
+        "/org/flarbear/swtpc6800/resources/MITSBasicPatch.S19",
+        "/org/flarbear/swtpc6800/resources/TSCSPACEPatch.S19",
+        "/org/flarbear/swtpc6800/resources/SWTSPRAC.S19",
+        "/org/flarbear/swtpc6800/resources/SwtBarTst-1.S19",
+        "/org/flarbear/swtpc6800/resources/SwtStarTrekProg.S19",
+    };
+
+    private static final int INDEX_MAGIC = 0x54494458;  // "TIDX"
+    private static final int INDEX_VERSION = 1;
+
+    public interface Listener {
+        public void libraryChanged(List<Entry> entries);
+    }
+
+    public static final class Entry {
+        final String source;
+        final boolean bundled;
+        final long size;
+        final long modified;
+        final String label;
+        final int rangeStarts[];
+        final int rangeLengths[];
+        final int entryPoint;
+        final long checksum;
+
+        Entry(String source, boolean bundled, long size, long modified,
+              String label, int rangeStarts[], int rangeLengths[],
+              int entryPoint, long checksum)
+        {
+            this.source = source;
+            this.bundled = bundled;
+            this.size = size;
+            this.modified = modified;
+            this.label = label;
+            this.rangeStarts = rangeStarts;
+            this.rangeLengths = rangeLengths;
+            this.entryPoint = entryPoint;
+            this.checksum = checksum;
+        }
+
+        /**
+         * The resource name of a bundled tape or the path of a tape file.
+         */
+        public String getSource() {
+            return source;
+        }
+
+        public boolean isBundled() {
+            return bundled;
+        }
+
+        /**
+         * The label of the tape, or the file name if it has none.
+         */
+        public String getLabel() {
+            if (label != null) {
+                return label;
+            }
+            int slash = Math.max(source.lastIndexOf('/'), source.lastIndexOf(File.separatorChar));
+            return source.substring(slash + 1);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getRangeCount() {
+            return rangeStarts.length;
+        }
+
+        public int getRangeStart(int range) {
+            return rangeStarts[range];
+        }
+
+        public int getRangeLength(int range) {
+            return rangeLengths[range];
+        }
+
+        public int getEntryPoint() {
+            return entryPoint;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        public SRecordImage load() throws IOException {
+            return bundled
+                   ? SRecordImage.loadResource(source)
+                   : SRecordImage.load(Paths.get(source));
+        }
+
+        @Override
+        public String toString() {
+            return getLabel();
+        }
+    }
+
+    private final Path tapeDir;
+    private final File indexFile;
+    private final Map<String, Entry> index = new HashMap<>();
+    private volatile List<Entry> entries = Collections.emptyList();
+    private Listener listeners[] = new Listener[0];
+
+    private Thread scanner;
+    private WatchService watcher;
+
+    public TapeLibrary() {
+        this(defaultTapeDir());
+    }
+
+    public TapeLibrary(Path tapeDir) {
+        this.tapeDir = tapeDir;
+        this.indexFile = indexFile();
+    }
+
+    private static Path defaultTapeDir() {
+        String dir = System.getProperty(TAPE_DIR_PROPERTY);
+        if (dir != null) {
+            return Paths.get(dir);
+        }
+        String home = System.getProperty("user.home");
+        if (home != null) {
+            Path p = Paths.get(home, ".swtpc6800", "tapes");
+            if (Files.isDirectory(p)) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    private static File indexFile() {
+        File dir = SRecordImage.cacheDir();
+        return (dir == null) ? null : new File(dir, "tape-index.bin");
+    }
+
+    public Path getTapeDirectory() {
+        return tapeDir;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public synchronized void addListener(Listener l) {
+        Listener newlisteners[] = new Listener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newlisteners, 0, listeners.length);
+        newlisteners[listeners.length] = l;
+        listeners = newlisteners;
+    }
+
+    /**
+     * Starts the background scan and, if there is a tape directory, the
+     * watch on it.
+     */
+    public synchronized void start() {
+        if (scanner != null) {
+            return;
+        }
+        scanner = new Thread(this::scanLoop, "Tape library scanner");
+        scanner.setDaemon(true);
+        scanner.setPriority(Thread.MIN_PRIORITY);
+        scanner.start();
+    }
+
+    public synchronized void stop() {
+        Thread t = scanner;
+        scanner = null;
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+            }
+        }
+        if (t != null) {
+            t.interrupt();
+        }
+    }
+
+    private void scanLoop() {
+        Thread me = Thread.currentThread();
+        readIndex();
+        publish(false);
+        rescan();
+        if (tapeDir == null || !Files.isDirectory(tapeDir)) {
+            return;
+        }
+        try {
+            WatchService ws = tapeDir.getFileSystem().newWatchService();
+            synchronized (this) {
+                if (scanner != me) {
+                    ws.close();
+                    return;
+                }
+                watcher = ws;
+            }
+            tapeDir.register(ws,
+                             StandardWatchEventKinds.ENTRY_CREATE,
+                             StandardWatchEventKinds.ENTRY_MODIFY,
+                             StandardWatchEventKinds.ENTRY_DELETE);
+            while (scanner == me) {
+                WatchKey key = ws.take();
+                // Let a burst of changes (a copy in progress) settle
+                Thread.sleep(200);
+                key.pollEvents();
+                if (!key.reset()) {
+                    // The directory went away
+                    rescan();
+                    break;
+                }
+                rescan();
+            }
+        } catch (IOException | InterruptedException | ClosedWatchServiceException e) {
+        }
+    }
+
+    private void rescan() {
+        boolean changed = false;
+        Map<String, Entry> seen = new HashMap<>();
+        for (String name : BUNDLED_TAPES) {
+            Entry e = scanResource(name);
+            if (e != null) {
+                changed |= (e != index.get(name));
+                seen.put(name, e);
+            }
+        }
+        if (tapeDir != null && Files.isDirectory(tapeDir)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(tapeDir, "*.{S19,s19}")) {
+                for (Path p : ds) {
+                    Entry e = scanFile(p);
+                    if (e != null) {
+                        changed |= (e != index.get(e.source));
+                        seen.put(e.source, e);
+                    }
+                }
+            } catch (IOException e) {
+            }
+        }
+        changed |= (seen.size() != index.size());
+        if (changed) {
+            index.clear();
+            index.putAll(seen);
+            writeIndex();
+            publish(true);
+        }
+    }
+
+    private Entry scanResource(String name) {
+        URL url = TapeLibrary.class.getResource(name);
+        if (url == null) {
+            return null;
+        }
+        try {
+            URLConnection conn = url.openConnection();
+            long size = conn.getContentLengthLong();
+            long modified = conn.getLastModified();
+            Entry old = index.get(name);
+            if (old != null && old.size == size && old.modified == modified) {
+                return old;
+            }
+            byte bytes[];
+            try (InputStream is = conn.getInputStream()) {
+                bytes = is.readAllBytes();
+            }
+            return makeEntry(name, true, bytes.length, modified, bytes);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private Entry scanFile(Path p) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            String source = p.toAbsolutePath().toString();
+            long size = attrs.size();
+            long modified = attrs.lastModifiedTime().toMillis();
+            Entry old = index.get(source);
+            if (old != null && old.size == size && old.modified == modified) {
+                return old;
+            }
+            return makeEntry(source, false, size, modified, Files.readAllBytes(p));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Entry makeEntry(String source, boolean bundled,
+                                   long size, long modified, byte bytes[])
+    {
+        SRecordImage image = SRecordImage.decode(ByteBuffer.wrap(bytes));
+        int n = image.getRangeCount();
+        int starts[] = new int[n];
+        int lengths[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            starts[i] = image.getRangeStart(i);
+            lengths[i] = image.getRangeLength(i);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return new Entry(source, bundled, size, modified, image.getLabel(),
+                         starts, lengths, image.getEntryPoint(), crc.getValue());
+    }
+
+    private void publish(boolean force) {
+        List<Entry> list = new ArrayList<>(index.size());
+        for (String name : BUNDLED_TAPES) {
+            Entry e = index.get(name);
+            if (e != null) {
+                list.add(e);
+            }
+        }
+        List<Entry> files = new ArrayList<>();
+        for (Entry e : index.values()) {
+            if (!e.bundled) {
+                files.add(e);
+            }
+        }
+        files.sort((a, b) -> a.getLabel().compareToIgnoreCase(b.getLabel()));
+        list.addAll(files);
+        if (!force && list.isEmpty()) {
+            return;
+        }
+        entries = Collections.unmodifiableList(list);
+        Listener ls[];
+        synchronized (this) {
+            ls = listeners;
+        }
+        for (Listener l : ls) {
+            l.libraryChanged(entries);
+        }
+    }
+
+    private void readIndex() {
+        if (indexFile == null || !indexFile.isFile()) {
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(
+                 new BufferedInputStream(new FileInputStream(indexFile))))
+        {
+            if (dis.readInt() != INDEX_MAGIC || dis.readInt() != INDEX_VERSION) {
+                return;
+            }
+            int count = dis.readInt();
+            if (count < 0) {
+                throw new IOException("Bad entry count in tape index");
+            }
+            for (int i = 0; i < count; i++) {
+                String source = dis.readUTF();
+                boolean bundled = dis.readBoolean();
+                long size = dis.readLong();
+                long modified = dis.readLong();
+                String label = dis.readBoolean() ? dis.readUTF() : null;
+                int n = dis.readInt();
+                if (n < 0 || n > 0x10000) {
+                    throw new IOException("Bad range count in tape index");
+                }
+                int starts[] = new int[n];
+                int lengths[] = new int[n];
+                for (int r = 0; r < n; r++) {
+                    starts[r] = dis.readInt();
+                    lengths[r] = dis.readInt();
+                    if (starts[r] < 0 || lengths[r] <= 0 ||
+                        starts[r] + lengths[r] > 0x10000)
+                    {
+                        throw new IOException("Bad range in tape index");
+                    }
+                }
+                int entryPoint = dis.readInt();
+                long checksum = dis.readLong();
+                index.put(source, new Entry(source, bundled, size, modified, label,
+                                            starts, lengths, entryPoint, checksum));
+            }
+        } catch (IOException e) {
+            // A damaged index is rebuilt by the scan
+            index.clear();
+        }
+    }
+
+    private void writeIndex() {
+        if (indexFile == null) {
+            return;
+        }
+        File tmp = null;
+        try {
+            File dir = indexFile.getParentFile();
+            Files.createDirectories(dir.toPath());
+            tmp = File.createTempFile("tape-index", ".tmp", dir);
+            try (DataOutputStream dos = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                dos.writeInt(INDEX_MAGIC);
+                dos.writeInt(INDEX_VERSION);
+                dos.writeInt(index.size());
+                for (Entry e : index.values()) {
+                    dos.writeUTF(e.source);
+                    dos.writeBoolean(e.bundled);
+                    dos.writeLong(e.size);
+                    dos.writeLong(e.modified);
+                    dos.writeBoolean(e.label != null);
+                    if (e.label != null) {
+                        dos.writeUTF(e.label);
+                    }
+                    dos.writeInt(e.rangeStarts.length);
+                    for (int r = 0; r < e.rangeStarts.length; r++) {
+                        dos.writeInt(e.rangeStarts[r]);
+                        dos.writeInt(e.rangeLengths[r]);
+                    }
+                    dos.writeInt(e.entryPoint);
+                    dos.writeLong(e.checksum);
+                }
+            }
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // The index is only an optimization
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+}
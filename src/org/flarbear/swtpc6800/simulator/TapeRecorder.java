@@ -0,0 +1,344 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams the bytes punched on the AC-30 to a file as they arrive.
+ *
+ * The punch writes into one of two buffers while a background thread
+ * writes the other one to a FileChannel. The buffers are swapped whenever
+ * the one being filled is full and at least every flush interval, so
+ * the recording uses a fixed amount of memory however long it runs and
+ * at most one interval of data is lost if the simulator dies. The punch
+ * only waits if it fills a whole buffer before the previous one reaches
+ * the file.
+ *
+ * The recorder can also decode the S1 and S9 records as they are punched
+ * into a 64K memory image, so that when the punch stops the program is
+ * immediately available from getImage() without reading the file back.
+ */
+public final class TapeRecorder implements Closeable {
+    public static final int DEFAULT_BUFFER_SIZE = 16384;
+    public static final int DEFAULT_FLUSH_MILLIS = 500;
+
+    // The longest S1 record is "S1", the count and the 255 hex byte
+    // pairs it counts
+    private static final int MAX_LINE = 2 + 2 + 255 * 2;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int flushMillis;
+    private final Thread flusher;
+
+    // Guarded by the lock on this recorder
+    private ByteBuffer filling;
+    private ByteBuffer spare;
+    private boolean closed;
+    private IOException failure;
+    private long count;
+
+    // The on-the-fly decoder, also guarded by the lock
+    private final boolean decoding;
+    private byte memory[];
+    private long loaded[];
+    private byte line[];
+    private int lineLength;
+    private boolean firstLine = true;
+    private int entryPoint = -1;
+    private int badRecords;
+    private String label;
+
+    public TapeRecorder(Path file, boolean decode) throws IOException {
+        this(file, decode, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_MILLIS);
+    }
+
+    public TapeRecorder(Path file, boolean decode, int bufferSize, int flushMillis)
+        throws IOException
+    {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("buffer size must be positive");
+        }
+        if (flushMillis <= 0) {
+            throw new IllegalArgumentException("flush interval must be positive");
+        }
+        this.file = file;
+        this.flushMillis = flushMillis;
+        this.channel = FileChannel.open(file,
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.TRUNCATE_EXISTING,
+                                        StandardOpenOption.WRITE);
+        this.filling = ByteBuffer.allocateDirect(bufferSize);
+        this.spare = ByteBuffer.allocateDirect(bufferSize);
+        this.decoding = decode;
+        if (decode) {
+            memory = new byte[65536];
+            loaded = new long[65536 / 64];
+            line = new byte[MAX_LINE];
+        }
+        flusher = new Thread(this::flushLoop, "Tape recorder " + file.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * The number of bytes punched so far.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Punches one byte. Bytes punched after the recorder is closed, or
+     * after the file could not be written, are dropped.
+     */
+    public synchronized void write(byte data) {
+        if (closed || failure != null) {
+            return;
+        }
+        while (!filling.hasRemaining()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (closed || failure != null) {
+                return;
+            }
+        }
+        filling.put(data);
+        count++;
+        if (!filling.hasRemaining()) {
+            notifyAll();
+        }
+        if (decoding) {
+            decode(data);
+        }
+    }
+
+    /**
+     * Punches len bytes of data starting at offset.
+     */
+    public synchronized void write(byte data[], int offset, int len) {
+        while (len > 0) {
+            if (closed || failure != null) {
+                return;
+            }
+            if (!filling.hasRemaining()) {
+                write(data[offset++]);
+                len--;
+                continue;
+            }
+            int n = Math.min(len, filling.remaining());
+            if (decoding) {
+                for (int i = 0; i < n; i++) {
+                    decode(data[offset + i]);
+                }
+            }
+            filling.put(data, offset, n);
+            count += n;
+            offset += n;
+            len -= n;
+            if (!filling.hasRemaining()) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes out whatever is still buffered and closes the file.
+     *
+     * @throws IOException if any of the recording could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        IOException ioe;
+        synchronized (this) {
+            ioe = failure;
+        }
+        try {
+            if (ioe == null) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+        if (ioe != null) {
+            throw ioe;
+        }
+    }
+
+    /**
+     * The program decoded from the records punched so far, or null if the
+     * recorder was not asked to decode them.
+     */
+    public synchronized SRecordImage getImage() {
+        if (!decoding) {
+            return null;
+        }
+        return SRecordImage.fromMemory(memory, loaded, entryPoint, badRecords, label);
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteBuffer buf;
+            boolean last;
+            synchronized (this) {
+                if (!closed && filling.hasRemaining()) {
+                    try {
+                        wait(flushMillis);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                last = closed;
+                if (filling.position() == 0) {
+                    if (last) {
+                        return;
+                    }
+                    continue;
+                }
+                // spare is always here, only this thread ever takes it
+                buf = filling;
+                filling = spare;
+                spare = null;
+                notifyAll();
+            }
+            IOException ioe = null;
+            buf.flip();
+            try {
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            } catch (IOException e) {
+                ioe = e;
+            }
+            buf.clear();
+            synchronized (this) {
+                spare = buf;
+                if (ioe != null) {
+                    failure = ioe;
+                    notifyAll();
+                    return;
+                }
+                if (last && filling.position() == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void decode(byte data) {
+        if (data == '\r' || data == '\n') {
+            if (lineLength > 0) {
+                decodeLine();
+            }
+            lineLength = 0;
+            return;
+        }
+        // SWTBUG pads records with nulls and may punch other control codes
+        if (data < ' ' || data == 0x7f) {
+            return;
+        }
+        if (lineLength < line.length) {
+            line[lineLength] = data;
+        }
+        lineLength++;
+        // Records can also be punched back to back with no line breaks
+        if (lineLength > 2 && data == 'S' && line[0] == 'S' && recordComplete(lineLength - 1)) {
+            lineLength--;
+            decodeLine();
+            line[0] = 'S';
+            lineLength = 1;
+        }
+    }
+
+    private boolean recordComplete(int len) {
+        if (len < 4 || (line[1] != '1' && line[1] != '9')) {
+            return false;
+        }
+        int n = SRecordImage.hexByte(line, 2, len);
+        return n >= 0 && len == 4 + n * 2;
+    }
+
+    private void decodeLine() {
+        boolean first = firstLine;
+        firstLine = false;
+        int len = lineLength;
+        if (len > line.length) {
+            badRecords++;
+            return;
+        }
+        if (len < 2 || line[0] != 'S' || (line[1] != '1' && line[1] != '9')) {
+            if (first && len > 6 && line[0] == 'L') {
+                String text = new String(line, 0, len, StandardCharsets.ISO_8859_1);
+                if (text.startsWith("LABEL=")) {
+                    label = text.substring(6);
+                }
+            }
+            return;
+        }
+        if (len == 2) {
+            // A bare S9 just ends the tape
+            return;
+        }
+        int n = SRecordImage.hexByte(line, 2, len);
+        if (n < 3 || 4 + n * 2 > len) {
+            badRecords++;
+            return;
+        }
+        int sum = 0;
+        for (int i = 0; i <= n; i++) {
+            int b = SRecordImage.hexByte(line, 2 + i * 2, len);
+            if (b < 0) {
+                badRecords++;
+                return;
+            }
+            sum += b;
+        }
+        if ((sum & 0xff) != 0xff) {
+            badRecords++;
+        }
+        int addr = (SRecordImage.hexByte(line, 4, len) << 8) | SRecordImage.hexByte(line, 6, len);
+        if (line[1] == '9') {
+            entryPoint = addr;
+            return;
+        }
+        for (int i = 0; i < n - 3; i++) {
+            int a = (addr + i) & 0xffff;
+            memory[a] = (byte) SRecordImage.hexByte(line, 8 + i * 2, len);
+            loaded[a >> 6] |= (1L << a);
+        }
+    }
+}
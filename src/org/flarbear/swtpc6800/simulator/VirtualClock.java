@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.PriorityQueue;
+
+/**
+ * A machine-wide time base measured in processor cycles rather than
+ * wall clock time.
+ *
+ * The processor advances the clock by the number of cycles each
+ * instruction takes and any events that devices have scheduled for
+ * a cycle that has been reached are fired on the processor thread
+ * between instructions. Events scheduled for the same cycle fire in
+ * the order they were scheduled.
+ *
+ * When the clock is deterministic the devices are expected to avoid
+ * wall clock timing (sleeping, threads) and to schedule their activity
+ * on the clock instead, so that a session runs as fast as the host can
+ * manage and produces the same results every time it is run.
+ */
+public class VirtualClock {
+    /**
+     * The MP-A divides its 1.7971 MHz crystal by 2 to produce the
+     * processor clock.
+     */
+    public static final int CYCLES_PER_SECOND = 898550;
+
+    private static final class Scheduled implements Comparable<Scheduled> {
+        Scheduled(long cycle, long sequence, Runnable event) {
+            this.cycle = cycle;
+            this.sequence = sequence;
+            this.event = event;
+        }
+
+        final long cycle;
+        final long sequence;
+        final Runnable event;
+
+        @Override
+        public int compareTo(Scheduled other) {
+            if (cycle != other.cycle) {
+                return (cycle < other.cycle) ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Scheduled> events = new PriorityQueue<>();
+    private long sequence;
+    private long now;
+    private volatile long nextEventCycle = Long.MAX_VALUE;
+    private boolean deterministic;
+
+    public static long cyclesForMillis(long millis) {
+        return millis * CYCLES_PER_SECOND / 1000;
+    }
+
+    public static long cyclesForCharacters(int baud, int bitsPerCharacter, int numchars) {
+        return (long) CYCLES_PER_SECOND * bitsPerCharacter * numchars / baud;
+    }
+
+    public void setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic;
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Sets the clock back to an earlier cycle when a RewindBuffer restores
+     * a checkpoint. Events that are already scheduled keep their cycle, so
+     * they happen that much later.
+     */
+    void rewindTo(long cycle) {
+        now = cycle;
+    }
+
+    public synchronized void schedule(long cycle, Runnable event) {
+        if (event == null) {
+            throw new IllegalArgumentException("event cannot be null");
+        }
+        events.add(new Scheduled(cycle, sequence++, event));
+        nextEventCycle = events.peek().cycle;
+    }
+
+    public void scheduleIn(long cycles, Runnable event) {
+        schedule(now + cycles, event);
+    }
+
+    public synchronized boolean hasPendingEvents() {
+        return !events.isEmpty();
+    }
+
+    /**
+     * Advance the clock by the indicated number of cycles and fire any
+     * events which have become due.
+     */
+    public void advance(int cycles) {
+        now += cycles;
+        if (now >= nextEventCycle) {
+            fireDueEvents();
+        }
+    }
+
+    /**
+     * Jump the clock forward to the next scheduled event and fire it,
+     * used when the processor is idle and waiting for something to happen.
+     *
+     * @return false if there were no events scheduled
+     */
+    public boolean advanceToNextEvent() {
+        long next = nextEventCycle;
+        if (next == Long.MAX_VALUE) {
+            return false;
+        }
+        if (next > now) {
+            now = next;
+        }
+        fireDueEvents();
+        return true;
+    }
+
+    private void fireDueEvents() {
+        while (true) {
+            Scheduled s;
+            synchronized (this) {
+                s = events.peek();
+                if (s == null || s.cycle > now) {
+                    nextEventCycle = (s == null) ? Long.MAX_VALUE : s.cycle;
+                    return;
+                }
+                events.poll();
+            }
+            s.event.run();
+        }
+    }
+}
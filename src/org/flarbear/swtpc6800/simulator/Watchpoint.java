@@ -0,0 +1,88 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Calls a listener whenever the processor reads or writes an address in
+ * a range, optionally only for particular data values.
+ *
+ * A watchpoint is installed with SWTPc6800.addWatchpoint(), which puts a
+ * trapping handler in the bus decode table for just the pages the range
+ * touches. Accesses to every other page go straight to the card that
+ * owns them as usual.
+ *
+ * The listener runs on the processor thread in the middle of the
+ * instruction making the access, after a read has fetched its data or a
+ * write has been stored.
+ */
+public final class Watchpoint {
+    public static final int READ  = (1 << 0);
+    public static final int WRITE = (1 << 1);
+
+    public interface Listener {
+        public void accessed(Watchpoint watchpoint, char addr, byte data, boolean write);
+    }
+
+    private final int start;
+    private final int end;
+    private final int kinds;
+    private final IntPredicate condition;
+    private final Listener listener;
+    private long hits;
+
+    /**
+     * Watches start through end, inclusive.
+     *
+     * @param kinds READ, WRITE or both
+     * @param condition tested with the unsigned data value, or null to
+     *                  report every access
+     */
+    public Watchpoint(int start, int end, int kinds, IntPredicate condition, Listener listener) {
+        if (start < 0 || end > 0xFFFF || end < start) {
+            throw new IllegalArgumentException("bad address range");
+        }
+        if (kinds == 0 || (kinds & ~(READ | WRITE)) != 0) {
+            throw new IllegalArgumentException("kinds must be READ, WRITE or both");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener cannot be null");
+        }
+        this.start = start;
+        this.end = end;
+        this.kinds = kinds;
+        this.condition = condition;
+        this.listener = listener;
+    }
+
+    public int getStart() {
+        return start;
+    }
+
+    public int getEnd() {
+        return end;
+    }
+
+    public int getKinds() {
+        return kinds;
+    }
+
+    /**
+     * The number of times the listener has been called.
+     */
+    public long getHitCount() {
+        return hits;
+    }
+
+    void check(char addr, byte data, int kind) {
+        if ((kinds & kind) != 0 && addr >= start && addr <= end &&
+            (condition == null || condition.test(data & 0xff)))
+        {
+            hits++;
+            listener.accessed(this, addr, data, kind == WRITE);
+        }
+    }
+}
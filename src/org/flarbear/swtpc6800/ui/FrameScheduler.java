@@ -0,0 +1,151 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.ui;
+
+import java.awt.Component;
+import java.awt.Rectangle;
+import javax.swing.Timer;
+
+/**
+ * Collects the damage reported by an emulated display and turns it into
+ * at most one repaint per display frame.
+ *
+ * The emulated devices report damage from the processor thread as each
+ * character or byte is written. Rather than posting a repaint for every
+ * one of them, the first damage in a frame starts a timer on the render
+ * side and everything reported until it fires is merged into a single
+ * region.
+ *
+ * A device that keeps its own record of what changed can instead call
+ * requestFrame() and supply a frame listener, which is run on the render
+ * side just before the flush and reports the damage for the whole frame.
+ */
+public final class FrameScheduler {
+    public static final int DEFAULT_FRAME_MILLIS = 16;
+
+    private final Component target;
+    private final Timer timer;
+
+    private Runnable frameListener;
+
+    private final Rectangle damage = new Rectangle();
+    private boolean damaged;
+    private boolean hasRegion;
+    private boolean damagedAll;
+
+    // Set while the frame listener runs. A frame requested in that time
+    // may have damage the listener has already missed, so it gets a
+    // flush of its own.
+    private boolean flushing;
+    private boolean frameAgain;
+
+    public FrameScheduler(Component target) {
+        this(target, DEFAULT_FRAME_MILLIS);
+    }
+
+    public FrameScheduler(Component target, int frameMillis) {
+        this.target = target;
+        this.timer = new Timer(frameMillis, e -> flush());
+        this.timer.setRepeats(false);
+    }
+
+    /**
+     * Sets a task that is run on the render side at the start of every
+     * flush, before the accumulated damage is repainted.
+     */
+    public void setFrameListener(Runnable listener) {
+        this.frameListener = listener;
+    }
+
+    /**
+     * Schedules a flush without reporting any damage, for use with a
+     * frame listener.
+     */
+    public void requestFrame() {
+        boolean start;
+        synchronized (this) {
+            start = !damaged;
+            damaged = true;
+            if (flushing) {
+                frameAgain = true;
+            }
+        }
+        if (start) {
+            timer.start();
+        }
+    }
+
+    public void damage(Rectangle r) {
+        damage(r.x, r.y, r.width, r.height);
+    }
+
+    public void damage(int x, int y, int w, int h) {
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        boolean start;
+        synchronized (this) {
+            start = !damaged;
+            if (damagedAll) {
+                // Already covering everything
+            } else if (hasRegion) {
+                int x0 = Math.min(damage.x, x);
+                int y0 = Math.min(damage.y, y);
+                int x1 = Math.max(damage.x + damage.width, x + w);
+                int y1 = Math.max(damage.y + damage.height, y + h);
+                damage.setBounds(x0, y0, x1 - x0, y1 - y0);
+            } else {
+                damage.setBounds(x, y, w, h);
+            }
+            damaged = hasRegion = true;
+        }
+        if (start) {
+            timer.start();
+        }
+    }
+
+    public void damageAll() {
+        boolean start;
+        synchronized (this) {
+            start = !damaged;
+            damaged = damagedAll = true;
+        }
+        if (start) {
+            timer.start();
+        }
+    }
+
+    private void flush() {
+        Runnable listener = frameListener;
+        if (listener != null) {
+            synchronized (this) {
+                flushing = true;
+            }
+            listener.run();
+        }
+        int x, y, w, h;
+        boolean all, region, again;
+        synchronized (this) {
+            again = frameAgain;
+            flushing = frameAgain = false;
+            all = damagedAll;
+            region = hasRegion;
+            x = damage.x;
+            y = damage.y;
+            w = damage.width;
+            h = damage.height;
+            hasRegion = damagedAll = false;
+            damaged = again;
+        }
+        if (again) {
+            timer.start();
+        }
+        if (all) {
+            target.repaint();
+        } else if (region) {
+            target.repaint(x, y, w, h);
+        }
+    }
+}
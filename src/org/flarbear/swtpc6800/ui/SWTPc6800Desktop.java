@@ -0,0 +1,62 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.ui;
+
+import java.util.Arrays;
+import org.flarbear.swtpc6800.simulator.Motorola6800;
+import org.flarbear.swtpc6800.simulator.ProfileCache;
+import org.flarbear.swtpc6800.simulator.SWTPc6800;
+import org.flarbear.swtpc6800.simulator.SWTPc_MP_L;
+import org.flarbear.swtpc6800.simulator.SWTPc_MP_S;
+import org.flarbear.swtpc6800.simulator.SimulationLoop;
+
+/**
+ * Runs the standard system with a CT-64 terminal, AC-30 cassette and
+ * GT-6144 graphics display in AWT windows.
+ *
+ * Everything in this package uses AWT, nothing outside of it does, so
+ * an embedding that only needs the machine can use SWTPc6800 and the
+ * rest of the simulator package without loading any of the toolkit.
+ * Passing -stdio runs the headless SWTPc6800.main() instead.
+ */
+public class SWTPc6800Desktop {
+    public static void main(String argv[]) {
+        if (Arrays.asList(argv).contains("-stdio")) {
+            SWTPc6800.main(argv);
+            return;
+        }
+        SWTPc6800 myMachine = SWTPc6800.makeStandardSystem();
+        SimulationLoop myLoop = SWTPc6800.applyOptions(myMachine, argv);
+        SWTPc_CT_64 myTerminal = new SWTPc_CT_64();
+        SWTPc_AC_30 myCassette = new SWTPc_AC_30();
+        SWTPc_GT_6144 myGraphics = new SWTPc_GT_6144();
+        SWTPc_MP_S mySerialPort = ((SWTPc_MP_S) myMachine.getIOCard(1));
+        SWTPc_MP_L myParallelPort = new SWTPc_MP_L();
+        myMachine.installcard(myParallelPort, 3);
+        if (myLoop != null) {
+            myTerminal.setMachineExecutor(myLoop);
+        }
+        myParallelPort.connectSideA(myGraphics);
+        myTerminal.connectGraphics(myGraphics);
+        myCassette.connectToComputer(mySerialPort);
+        myCassette.connectClock(myMachine.getClock());
+        myCassette.connectToTerminal(myTerminal);
+        if (Arrays.asList(argv).contains("-profile")) {
+            myCassette.setProfileCache(ProfileCache.getDefault(), myMachine);
+        }
+        myTerminal.connectCassetteControl(myCassette);
+        myTerminal.addResetFor(myMachine);
+        if (Motorola6800.STATS) {
+            myTerminal.addStatsButtonFor(myMachine.getProcessor());
+        }
+        myCassette.powerOn();
+        myTerminal.powerOn();
+        myMachine.powerOn();
+        myMachine.tripManualReset();
+        if (myLoop != null) {
+            myLoop.start();
+        }
+    }
+}
@@ -0,0 +1,551 @@
+/*
+ * Copyright 2014, 2016, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.ui;
+
+import java.awt.BorderLayout;
+import java.awt.Button;
+import java.awt.Choice;
+import java.awt.Container;
+import java.awt.EventQueue;
+import java.awt.FileDialog;
+import java.awt.Font;
+import java.awt.Frame;
+import java.awt.Label;
+import java.awt.Panel;
+import java.awt.TextArea;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import org.flarbear.swtpc6800.simulator.ByteRing;
+import org.flarbear.swtpc6800.simulator.CT64Screen;
+import org.flarbear.swtpc6800.simulator.KansasCityDecoder;
+import org.flarbear.swtpc6800.simulator.KansasCityEncoder;
+import org.flarbear.swtpc6800.simulator.ProfileCache;
+import org.flarbear.swtpc6800.simulator.RS232Device;
+import org.flarbear.swtpc6800.simulator.SRecordImage;
+import org.flarbear.swtpc6800.simulator.SWTPc6800;
+import org.flarbear.swtpc6800.simulator.SWTPc_MP_S;
+import org.flarbear.swtpc6800.simulator.TapeLibrary;
+import org.flarbear.swtpc6800.simulator.TapeRecorder;
+import org.flarbear.swtpc6800.simulator.VirtualClock;
+
+public class SWTPc_AC_30 extends Panel implements CT64Screen.CassetteControl {
+    private RS232Device theComputer;
+    private RS232Device theTerminal;
+    private RS232Device computerPort;
+    private RS232Device terminalPort;
+
+    // Lock-free paths into the serial card when it supports them
+    private ByteRing keyboardQueue;
+    private ByteRing tapeQueue;
+
+    private final ByteArrayOutputStream tape = new ByteArrayOutputStream();
+    private boolean recording;
+    private Button saveButton;
+    private Button streamButton;
+    private volatile TapeRecorder streamRecorder;
+    private volatile KansasCityEncoder audioRecorder;
+    private volatile File audioTape;
+    private volatile ProfileCache profileCache;
+    private volatile SWTPc6800 profiledMachine;
+
+    public SWTPc_AC_30() {
+        setupPorts();
+    }
+
+    public void connectToComputer(RS232Device comp) {
+        computerPort.connectTo(comp);
+        comp.connectTo(computerPort);
+        if (comp instanceof SWTPc_MP_S) {
+            SWTPc_MP_S port = (SWTPc_MP_S) comp;
+            keyboardQueue = port.openInputQueue(KEYBOARD_QUEUE_SIZE, false);
+            tapeQueue = port.openInputQueue(TAPE_QUEUE_SIZE, true);
+        } else {
+            keyboardQueue = tapeQueue = null;
+        }
+    }
+
+    private static final int KEYBOARD_QUEUE_SIZE = 256;
+    private static final int TAPE_QUEUE_SIZE = 1024;
+
+    public void connectToTerminal(RS232Device term) {
+        terminalPort.connectTo(term);
+        term.connectTo(terminalPort);
+    }
+
+    private void setupPorts() {
+        computerPort = new RS232Device() {
+            @Override
+            public void sendTo(byte data) {
+                if (recording) {
+                    punch(data);
+                }
+                if (theTerminal != null) {
+                    theTerminal.sendTo(data);
+                }
+            }
+
+            @Override
+            public void connectTo(RS232Device otherdevice) {
+                theComputer = otherdevice;
+            }
+
+            @Override
+            public void waitForCTS() {
+                if (recording) return;
+                if (theTerminal != null) {
+                    theTerminal.waitForCTS();
+                }
+            }
+        };
+
+        terminalPort = new RS232Device() {
+            @Override
+            public void sendTo(byte data) {
+                if (recording) {
+                    punch(data);
+                }
+                if (keyboardQueue != null) {
+                    // Typing further ahead than the queue holds is lost,
+                    // rather than overtaking the keys still queued
+                    keyboardQueue.offer(data);
+                } else if (theComputer != null) {
+                    theComputer.sendTo(data);
+                }
+            }
+
+            @Override
+            public void connectTo(RS232Device otherdevice) {
+                theTerminal = otherdevice;
+            }
+
+            @Override
+            public void waitForCTS() {
+                if (theComputer != null) {
+                    theComputer.waitForCTS();
+                }
+            }
+        };
+    }
+
+    private void punch(byte data) {
+        TapeRecorder recorder = streamRecorder;
+        KansasCityEncoder audio = audioRecorder;
+        if (recorder != null) {
+            recorder.write(data);
+        } else if (audio != null) {
+            audio.write(data);
+        } else {
+            tape.write(data & 0xff);
+            saveButton.setEnabled(true);
+        }
+    }
+
+    /**
+     * Streams everything punched from now on straight to a file instead of
+     * collecting it for the Save button. If decode is true the S-records
+     * are also decoded as they are punched. A file whose name ends in .wav
+     * is recorded as Kansas City Standard audio instead.
+     */
+    public void startStreaming(File f, boolean decode) throws IOException {
+        stopStreaming();
+        if (f.getName().toLowerCase().endsWith(".wav")) {
+            audioRecorder = new KansasCityEncoder(f.toPath());
+        } else {
+            streamRecorder = new TapeRecorder(f.toPath(), decode);
+        }
+    }
+
+    public boolean isStreaming() {
+        return streamRecorder != null || audioRecorder != null;
+    }
+
+    /**
+     * Stops streaming and closes the file.
+     *
+     * @return the decoded program, or null if the recording was not being
+     *         decoded or nothing was being streamed
+     */
+    public SRecordImage stopStreaming() throws IOException {
+        KansasCityEncoder audio = audioRecorder;
+        if (audio != null) {
+            audioRecorder = null;
+            audio.close();
+        }
+        TapeRecorder recorder = streamRecorder;
+        if (recorder == null) {
+            return null;
+        }
+        streamRecorder = null;
+        recorder.close();
+        return recorder.getImage();
+    }
+
+    public void saveTape(File f) throws IOException {
+        FileOutputStream os = new FileOutputStream(f);
+        os.write(tape.toByteArray());
+        os.flush();
+        os.close();
+        tape.reset();
+        saveButton.setEnabled(false);
+    }
+
+    @Override
+    public void readOn() {
+        File audio = audioTape;
+        if (audio != null) {
+            sendAudio(audio);
+            return;
+        }
+        List<TapeLibrary.Entry> tapes = tapeEntries;
+        int index = theTapeList.getSelectedIndex();
+        if (index >= 0 && index < tapes.size()) {
+            send(tapes.get(index));
+        }
+    }
+
+    @Override
+    public void readOff() {
+        Thread sender = senderThread;
+        senderThread = null;
+        tapeToken = null;
+        if (sender != null && tapeQueue != null) {
+            // The sender may be about to put one more byte, so it has to
+            // be gone before the queue can be emptied
+            sender.interrupt();
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            tapeQueue.discard();
+        }
+    }
+
+    @Override
+    public void punchOn() {
+        recording = true;
+    }
+
+    @Override
+    public void punchOff() {
+        recording = false;
+    }
+
+    /**
+     * Drive the tape reader from the VirtualClock instead of a sender
+     * thread whenever the clock is deterministic.
+     */
+    public void connectClock(VirtualClock clock) {
+        this.theClock = clock;
+    }
+
+    /**
+     * Sets the rate at which tape characters are delivered in virtual time.
+     * A rate of 0 (the default) delivers each character as soon as the
+     * computer is ready to receive it.
+     */
+    public void setTapeBaudRate(int baud) {
+        if (baud < 0) {
+            throw new IllegalArgumentException("baud rate cannot be negative");
+        }
+        this.tapeBaudRate = baud;
+    }
+
+    // How long the clocked tape reader waits before checking CTS again
+    private static final int TAPE_RETRY_CYCLES = 64;
+
+    private VirtualClock theClock;
+    private int tapeBaudRate;
+    private Object tapeToken;
+    private Thread senderThread;
+
+    /**
+     * Plays a Kansas City Standard WAV recording the next time the reader
+     * is turned on, instead of the tape selected in the list. Passing
+     * null goes back to the list.
+     */
+    public void setAudioTape(File f) {
+        this.audioTape = f;
+    }
+
+    /**
+     * Profiles every tape read into the machine from the list, and warms
+     * up the ones that were profiled on an earlier run as they start to
+     * play, see ProfileCache.track().
+     */
+    public void setProfileCache(ProfileCache cache, SWTPc6800 machine) {
+        this.profiledMachine = machine;
+        this.profileCache = cache;
+    }
+
+    private void send(TapeLibrary.Entry tape) {
+        theInfoPane.setText(null);
+        theInfoPane.setCaretPosition(0);
+        play(new ByteArrayInputStream(readTape(tape)));
+    }
+
+    private void sendAudio(File f) {
+        theInfoPane.setText(null);
+        InputStream data;
+        try {
+            data = new KansasCityDecoder(f.toPath());
+        } catch (IOException e) {
+            theInfoPane.append("Could not read tape: " + e.getMessage() + "\n");
+            return;
+        }
+        theInfoPane.append("Playing " + f.getName() + "\n");
+        play(data);
+    }
+
+    private void play(InputStream data) {
+        if (theClock != null && theClock.isDeterministic()) {
+            sendClocked(data);
+        } else {
+            sendThreaded(data);
+        }
+    }
+
+    // Returns -1 at the end of the tape or on a read error
+    private static int nextTapeByte(InputStream data) {
+        try {
+            return data.read();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void closeTape(InputStream data) {
+        try {
+            data.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private byte[] readTape(TapeLibrary.Entry tape) {
+        SRecordImage image;
+        try {
+            image = tape.load();
+        } catch (IOException e) {
+            theInfoPane.append("Could not read tape: " + e.getMessage() + "\n");
+            return new byte[0];
+        }
+        ProfileCache cache = profileCache;
+        if (cache != null) {
+            cache.track(profiledMachine, image, 0);
+        }
+        theInfoPane.append(image.getNotes());
+        if (image.getBadRecordCount() > 0) {
+            theInfoPane.append("(" + image.getBadRecordCount() + " records have bad checksums)\n");
+        }
+        theInfoPane.setCaretPosition(0);
+        return image.getRecords();
+    }
+
+    private void sendThreaded(final InputStream data) {
+        senderThread = new Thread() {
+            @Override
+            public void run() {
+                Thread me = Thread.currentThread();
+                int b;
+                if (tapeQueue != null) {
+                    try {
+                        while (senderThread == me && (b = nextTapeByte(data)) >= 0) {
+                            tapeQueue.put((byte) b);
+                        }
+                    } catch (InterruptedException e) {
+                    }
+                    closeTape(data);
+                    return;
+                }
+                while (senderThread == me && (b = nextTapeByte(data)) >= 0) {
+                    theComputer.waitForCTS();
+                    if (senderThread == me) {
+                        theComputer.sendTo((byte) b);
+                    }
+                }
+                closeTape(data);
+            }
+        };
+        senderThread.start();
+    }
+
+    private void sendClocked(final InputStream data) {
+        final Object token = new Object();
+        tapeToken = token;
+        theClock.scheduleIn(1, new Runnable() {
+            int next = nextTapeByte(data);
+
+            @Override
+            public void run() {
+                if (tapeToken != token || next < 0) {
+                    closeTape(data);
+                    return;
+                }
+                long delay;
+                if (theComputer.isClearToSend()) {
+                    theComputer.sendTo((byte) next);
+                    next = nextTapeByte(data);
+                    delay = (tapeBaudRate == 0)
+                            ? TAPE_RETRY_CYCLES
+                            // 1 start bit, 8 data bits and 2 stop bits
+                            : VirtualClock.cyclesForCharacters(tapeBaudRate, 11, 1);
+                } else {
+                    delay = TAPE_RETRY_CYCLES;
+                }
+                if (next >= 0) {
+                    theClock.scheduleIn(delay, this);
+                } else {
+                    closeTape(data);
+                }
+            }
+        });
+    }
+
+    private Choice theTapeList;
+    private TextArea theInfoPane;
+
+    private static TapeLibrary theLibrary;
+    private volatile List<TapeLibrary.Entry> tapeEntries = Collections.emptyList();
+
+    private static synchronized TapeLibrary getLibrary() {
+        if (theLibrary == null) {
+            theLibrary = new TapeLibrary();
+            theLibrary.start();
+        }
+        return theLibrary;
+    }
+
+    private void setTapes(List<TapeLibrary.Entry> tapes) {
+        String selected = theTapeList.getSelectedItem();
+        theTapeList.removeAll();
+        for (TapeLibrary.Entry tape : tapes) {
+            theTapeList.add(tape.getLabel());
+        }
+        tapeEntries = tapes;
+        if (selected != null) {
+            theTapeList.select(selected);
+        }
+    }
+
+    private Frame getFrame() {
+        Container c = getParent();
+        while (!(c instanceof Frame)) {
+            c = c.getParent();
+        }
+        return (Frame) c;
+    }
+
+    private void finishStreaming() {
+        TapeRecorder recorder = streamRecorder;
+        try {
+            SRecordImage image = stopStreaming();
+            theInfoPane.setText(recorder == null
+                                ? "Recorded audio tape\n"
+                                : "Streamed " + recorder.getCount() + " bytes\n");
+            if (image != null && image.getRangeCount() > 0) {
+                for (int i = 0; i < image.getRangeCount(); i++) {
+                    int start = image.getRangeStart(i);
+                    int end = start + image.getRangeLength(i) - 1;
+                    theInfoPane.append(String.format("Loaded %04X-%04X\n", start, end));
+                }
+                if (image.getBadRecordCount() > 0) {
+                    theInfoPane.append("(" + image.getBadRecordCount() + " records have bad checksums)\n");
+                }
+            }
+        } catch (IOException ioe) {
+            theInfoPane.setText("Could not write tape: " + ioe.getMessage() + "\n");
+        }
+        streamButton.setLabel("Stream to file");
+    }
+
+    FileDialog saveDialog;
+    public void powerOn() {
+        Font f = new Font(Font.DIALOG, Font.PLAIN, Math.round(10 * SWTPc_CT_64.DPI_SCALE));
+        setFont(f);
+        setLayout(new BorderLayout());
+        Panel p = new Panel();
+        p.add(new Label("Load Tape:"));
+        theTapeList = new Choice();
+        // The library scans in the background and fills in the list later
+        TapeLibrary library = getLibrary();
+        library.addListener(tapes -> EventQueue.invokeLater(() -> setTapes(tapes)));
+        setTapes(library.getEntries());
+        // Picking a tape from the list takes any audio tape back out
+        theTapeList.addItemListener(e -> setAudioTape(null));
+        p.add(theTapeList);
+        saveButton = new Button("Save tape");
+        saveButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (saveDialog == null) {
+                    saveDialog = new FileDialog(getFrame(), "Save Tape to...", FileDialog.SAVE);
+                    saveDialog.setModal(true);
+                }
+                saveDialog.setVisible(true);
+                File f[] = saveDialog.getFiles();
+                if (f.length > 0) {
+                    try {
+                        saveTape(f[0]);
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace(System.out);
+                    }
+                }
+                
+            }
+        });
+        saveButton.setEnabled(false);
+        p.add(saveButton);
+        streamButton = new Button("Stream to file");
+        streamButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (isStreaming()) {
+                    finishStreaming();
+                    return;
+                }
+                FileDialog fd = new FileDialog(getFrame(), "Stream Tape to...", FileDialog.SAVE);
+                fd.setModal(true);
+                fd.setVisible(true);
+                File f[] = fd.getFiles();
+                if (f.length > 0) {
+                    try {
+                        startStreaming(f[0], true);
+                        streamButton.setLabel("Stop streaming");
+                    } catch (IOException ioe) {
+                        ioe.printStackTrace(System.out);
+                    }
+                }
+            }
+        });
+        p.add(streamButton);
+        Button audioButton = new Button("Audio tape");
+        audioButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                FileDialog fd = new FileDialog(getFrame(), "Play WAV Tape...", FileDialog.LOAD);
+                fd.setModal(true);
+                fd.setVisible(true);
+                File f[] = fd.getFiles();
+                if (f.length > 0) {
+                    setAudioTape(f[0]);
+                    theInfoPane.setText("Audio tape " + f[0].getName() + " is loaded\n");
+                }
+            }
+        });
+        p.add(audioButton);
+        add(p, "North");
+        theInfoPane = new TextArea(20, 40);
+        theInfoPane.setEditable(false);
+        add(theInfoPane, "Center");
+    }
+}
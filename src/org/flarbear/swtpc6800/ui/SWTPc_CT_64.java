@@ -2,7 +2,7 @@
  * Copyright 2014, 2016, Jim Graham, Flarbear Widgets
  */
 
-package org.flarbear.swtpc6800.simulator;
+package org.flarbear.swtpc6800.ui;
 
 import java.awt.BorderLayout;
 import java.awt.Button;
@@ -13,8 +13,6 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Frame;
 import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.Panel;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
@@ -28,10 +26,19 @@ import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
-
-public final class SWTPc_CT_64 extends Canvas implements RS232Device {
-    public static final int SCRCOLS = 64;
-    public static final int SCRROWS = 16;
+import java.util.concurrent.Executor;
+import org.flarbear.swtpc6800.simulator.CT64Screen;
+import org.flarbear.swtpc6800.simulator.Motorola6800;
+import org.flarbear.swtpc6800.simulator.RS232Device;
+import org.flarbear.swtpc6800.simulator.SWTPc6800;
+
+/**
+ * An AWT view of a CT64Screen with a keyboard, the terminal of the standard
+ * simulator set up.
+ */
+public final class SWTPc_CT_64 extends Canvas implements RS232Device, CT64Screen.Listener {
+    public static final int SCRCOLS = CT64Screen.SCRCOLS;
+    public static final int SCRROWS = CT64Screen.SCRROWS;
     public static final int CHARDOTCOLS = 8;
     public static final int CHARDOTROWS = 13;
 
@@ -61,7 +68,7 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
         DPI_SCALE = scale;
     }
 
-    private RS232Device serialOut;
+    private final CT64Screen theScreen;
     private SWTPc6800 theComputer;
     private Motorola6800 theProcessor;
     private SWTPc_AC_30 theCassette;
@@ -69,23 +76,26 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
     private Frame theFrame;
     private Frame theAC30Frame;
 
-    private final byte screen[];
-    private final byte scrolltmp[];
-
-    private int cursorpos;
-
-    private boolean ShowCtrl;
     private boolean UClock;
 
+    // Key presses and button actions are handed to the machine through
+    // this executor so that they can be run on a SimulationLoop thread.
+    private Executor machineExecutor = Runnable::run;
+
     public SWTPc_CT_64() {
-        screen = new byte[SCRROWS * SCRCOLS];
-        scrolltmp = new byte[SCRCOLS];
-        cursorpos = 0;
-        clearscreen();
+        this(new CT64Screen());
+    }
+
+    public SWTPc_CT_64(CT64Screen screen) {
+        theScreen = screen;
         UClock = true;
         initColors();
-        charimgs = new Image[256];
         calculateCharImages();
+        screen.addListener(this);
+    }
+
+    public CT64Screen getScreen() {
+        return theScreen;
     }
 
     private void initColors() {
@@ -93,38 +103,27 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
         setForeground(Color.green);
     }
 
-    private final Image charimgs[];
+    // All 256 glyphs (the top 128 being the inverted cursor forms) in a
+    // 16x16 grid, drawn at an integer multiple of the dot size.
+    private BufferedImage glyphAtlas;
+    private int glyphScale;
+
+    // The screen as last rendered, at the same integer scale as the atlas.
+    // Only the cells marked in dirtyRows are redrawn into it and it is then
+    // scaled onto the component. The dirty state is guarded by the lock
+    // on theScreen, which is held when its listener methods are called.
+    private BufferedImage backBuffer;
+    // One bit per column, one long per row (SCRCOLS == 64)
+    private final long dirtyRows[] = new long[SCRROWS];
+    private final long renderRows[] = new long[SCRROWS];
+    private final byte renderChars[] = new byte[SCRROWS * SCRCOLS];
+    private int drawnCursor = -1;
+    // Scrolls not yet applied to the back buffer
+    private int pendingScrolls;
 
     private void calculateCharImages() {
-        for (int i = 0; i < 256; i++) {
-            charimgs[i] = new BufferedImage(CHARDOTCOLS, CHARDOTROWS,
-                    BufferedImage.TYPE_BYTE_INDEXED);
-            Graphics g = charimgs[i].getGraphics();
-            int csi = (i & 0x7f) * CHARDOTROWS;
-            if (i < 128) {
-                g.setColor(BLANK_COLOR);
-                g.fillRect(0, 0, CHARDOTCOLS, CHARDOTROWS);
-                g.setColor(PHOSPHOR_COLOR);
-            } else {
-                g.setColor(PHOSPHOR_COLOR);
-                g.fillRect(0, 0, CHARDOTCOLS, CHARDOTROWS);
-                g.setColor(BLANK_COLOR);
-            }
-            int y = 0;
-            for (int j = 0; j < CHARDOTROWS; j++) {
-                int b = CHARSET_6575[csi];
-                int x = 0;
-                while (b != 0) {
-                    if ((b & 0x80) != 0) {
-                        g.fillRect(x, y, 1, 1);
-                    }
-                    b <<= 1;
-                    x++;
-                }
-                csi++;
-                y++;
-            }
-        }
+        glyphAtlas = makeGlyphAtlas(glyphScale = 1);
+        backBuffer = null;
         if (theFrame != null) {
             theFrame.setVisible(false);
             theFrame.invalidate();
@@ -165,7 +164,7 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
             b.addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    theComputer.tripManualReset();
+                    machineExecutor.execute(theComputer::tripManualReset);
                 }
             });
             b.setFocusable(false);
@@ -176,17 +175,17 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
             b.addActionListener(new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent e) {
-                    theProcessor.printStats();
+                    machineExecutor.execute(theProcessor::printStats);
                 }
             });
             b.setFocusable(false);
             p.add(b);
         }
-        Checkbox cb = new Checkbox("Show Ctrl", ShowCtrl);
+        Checkbox cb = new Checkbox("Show Ctrl", theScreen.isShowingControl());
         cb.addItemListener(new ItemListener() {
             @Override
             public void itemStateChanged(ItemEvent e) {
-                ShowCtrl = (e.getStateChange() == ItemEvent.SELECTED);
+                theScreen.setShowControl(e.getStateChange() == ItemEvent.SELECTED);
             }
         });
         cb.setFocusable(false);
@@ -213,6 +212,7 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
         addKeyListener(new KeyAdapter() {
             @Override
             public void keyTyped(KeyEvent e) {
+                final RS232Device serialOut = theScreen.getSerialOut();
                 if (serialOut != null) {
                     char ch = e.getKeyChar();
                     if (ch == 0x0a && !e.isControlDown()) {
@@ -222,7 +222,8 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
                         ch = Character.toUpperCase(ch);
                     }
                     //serialOut.waitForCTS();
-                    serialOut.sendTo((byte) ch);
+                    final byte data = (byte) ch;
+                    machineExecutor.execute(() -> serialOut.sendTo(data));
                 }
             }
         });
@@ -250,11 +251,12 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
 
     @Override
     public void connectTo(RS232Device otherdevice) {
-        this.serialOut = otherdevice;
+        theScreen.connectTo(otherdevice);
     }
 
     public void connectCassetteControl(SWTPc_AC_30 cass) {
         this.theCassette = cass;
+        theScreen.connectCassetteControl(cass);
         if (theFrame != null) {
             showCassette();
         }
@@ -277,72 +279,91 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
         theProcessor = proc;
     }
 
-    public void repaint(Rectangle r) {
-        repaint(r.x, r.y, r.width, r.height);
+    public void setMachineExecutor(Executor executor) {
+        this.machineExecutor = (executor == null) ? Runnable::run : executor;
     }
 
-    @Override
-    public void sendTo(byte data) {
-        // Insert data into screen...
-        data &= 0x7f;
-        if (ShowCtrl || data >= ' ') {
-            Rectangle r = getCursorRect();
-            screen[cursorpos++] = data;
-            if (cursorpos == screen.length) {
-                cursorpos -= SCRCOLS;
-                scroll();
-            } else {
-                r.add(getCursorRect());
-                repaint(r);
-            }
-        } else {
-            switch (data) {
-                case 0x08:
-                    backSpace();
-                    break;
-                case 0x0a:
-                    newLine();
-                    break;
-                case 0x0d:
-                    carriageReturn();
-                    break;
-                case 0x10:
-                    homeCursor();
-                    break;
-                case 0x11:
-                    if (theCassette != null) {
-                        theCassette.readOn();
-                    }
-                    break;
-                case 0x12:
-                    if (theCassette != null) {
-                        theCassette.punchOn();
-                    }
-                    break;
-                case 0x13:
-                    if (theCassette != null) {
-                        theCassette.readOff();
-                    }
-                    break;
-                case 0x14:
-                    if (theCassette != null) {
-                        theCassette.punchOff();
+    private static BufferedImage makeGlyphAtlas(int k) {
+        int gw = CHARDOTCOLS * k;
+        int gh = CHARDOTROWS * k;
+        BufferedImage atlas = new BufferedImage(gw * 16, gh * 16,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics g = atlas.getGraphics();
+        for (int i = 0; i < 256; i++) {
+            int x0 = (i & 0x0f) * gw;
+            int y0 = (i >> 4) * gh;
+            int csi = (i & 0x7f) * CHARDOTROWS;
+            g.setColor(i < 128 ? BLANK_COLOR : PHOSPHOR_COLOR);
+            g.fillRect(x0, y0, gw, gh);
+            g.setColor(i < 128 ? PHOSPHOR_COLOR : BLANK_COLOR);
+            int y = y0;
+            for (int j = 0; j < CHARDOTROWS; j++) {
+                int b = CHARSET_6575[csi];
+                int x = x0;
+                while (b != 0) {
+                    if ((b & 0x80) != 0) {
+                        g.fillRect(x, y, k, k);
                     }
-                    break;
-                case 0x15:
-                    clearEOL();
-                    break;
-                case 0x16:
-                    clearEOS();
-                    break;
+                    b <<= 1;
+                    x += k;
+                }
+                csi++;
+                y += k;
             }
         }
+        g.dispose();
+        return atlas;
+    }
+
+    private void markAllDirty() {
+        synchronized (theScreen) {
+            for (int r = 0; r < SCRROWS; r++) {
+                dirtyRows[r] = -1L;
+            }
+        }
+    }
+
+    // Screen updates arrive on the processor thread and are merged into
+    // at most one repaint per frame.
+    private final FrameScheduler frames = new FrameScheduler(this);
+
+    public void repaint(Rectangle r) {
+        frames.damage(r);
+    }
+
+    @Override
+    public void sendTo(byte data) {
+        theScreen.sendTo(data);
     }
 
     @Override
     public void waitForCTS() {
     }
 
+    @Override
+    public void cellsChanged(int row, long columns) {
+        dirtyRows[row] |= columns;
+        int c0 = Long.numberOfTrailingZeros(columns);
+        int c1 = 63 - Long.numberOfLeadingZeros(columns);
+        Rectangle r = getCharRect(c0, row);
+        r.add(getCharRect(c1, row));
+        repaint(r);
+    }
+
+    @Override
+    public void scrolled() {
+        System.arraycopy(dirtyRows, 1, dirtyRows, 0, SCRROWS - 1);
+        dirtyRows[SCRROWS - 1] = -1L;
+        pendingScrolls = Math.min(pendingScrolls + 1, SCRROWS);
+        frames.damageAll();
+    }
+
+    @Override
+    public void cursorMoved(int oldpos, int newpos) {
+        repaint(getCharRect(oldpos % SCRCOLS, oldpos / SCRCOLS));
+        repaint(getCharRect(newpos % SCRCOLS, newpos / SCRCOLS));
+    }
+
     public Rectangle getCharRect(int charx, int chary) {
         int x0 = BORDERW + charx * CHARDOTCOLS;
         int y0 = BORDERH + chary * CHARDOTROWS;
@@ -358,6 +379,7 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
     }
 
     public Rectangle getCursorRect() {
+        int cursorpos = theScreen.getCursorPos();
         int cy = cursorpos / SCRCOLS;
         int cx = cursorpos % SCRCOLS;
         return getCharRect(cx, cy);
@@ -383,88 +405,89 @@ public final class SWTPc_CT_64 extends Canvas implements RS232Device {
     }
 
     void drawChars(Graphics g) {
-        ((Graphics2D) g).scale((float) getWidth() / (float) SCRDOTCOLS,
-                               (float) getHeight() / (float) SCRDOTROWS);
-        int pos = 0;
-        int y = BORDERH;
-        for (int r = 0; r < SCRROWS; r++) {
-            int x = BORDERW;
-            for (int c = 0; c < SCRCOLS; c++) {
-                int ch = screen[pos] & 0xff;
-                if (pos == cursorpos) {
-                    ch ^= 0x80;
-                }
-                g.drawImage(charimgs[ch], x, y, null);
-                x += CHARDOTCOLS;
-                pos++;
-            }
-            y += CHARDOTROWS;
+        int w = getWidth();
+        int h = getHeight();
+        if (w <= 0 || h <= 0) {
+            return;
         }
+        renderDirtyCells(Math.max(1, Math.min(w / SCRDOTCOLS, h / SCRDOTROWS)));
+        g.drawImage(backBuffer, 0, 0, w, h, null);
     }
 
-    public final void clearscreen() {
-        for (int pos = 0; pos < screen.length; pos++) {
-            screen[pos] = ' ';
+    private void renderDirtyCells(int k) {
+        if (k != glyphScale) {
+            glyphAtlas = makeGlyphAtlas(glyphScale = k);
+            backBuffer = null;
         }
-        cursorpos = 0;
-    }
-
-    public void backSpace() {
-        Rectangle r = getCursorRect();
-        cursorpos--;
-        r.add(getCursorRect());
-        repaint(r);
-    }
-
-    public void carriageReturn() {
-        if ((cursorpos % SCRCOLS) != 0) {
-            Rectangle r = getCursorRect();
-            cursorpos = (cursorpos / SCRCOLS) * SCRCOLS;
-            r.add(getCursorRect());
-            repaint(r);
+        if (backBuffer == null) {
+            backBuffer = new BufferedImage(SCRDOTCOLS * k, SCRDOTROWS * k,
+                    BufferedImage.TYPE_INT_RGB);
+            Graphics g = backBuffer.getGraphics();
+            g.setColor(BLANK_COLOR);
+            g.fillRect(0, 0, backBuffer.getWidth(), backBuffer.getHeight());
+            g.dispose();
+            synchronized (theScreen) {
+                markAllDirty();
+                pendingScrolls = 0;
+            }
         }
-    }
-
-    public void newLine() {
-        if (cursorpos + SCRCOLS < screen.length) {
-            Rectangle r = getCursorRect();
-            cursorpos += SCRCOLS;
-            r.add(getCursorRect());
-            repaint(r);
-        } else {
-            scroll();
+        int gw = CHARDOTCOLS * k;
+        int gh = CHARDOTROWS * k;
+        Graphics g = backBuffer.getGraphics();
+        int cursor;
+        synchronized (theScreen) {
+            if (pendingScrolls > 0) {
+                // The dirty bits were shifted along with the rows when
+                // they scrolled, only the pixels need to catch up.
+                int n = pendingScrolls;
+                if (n < SCRROWS) {
+                    g.copyArea(BORDERW * k, (BORDERH + n * CHARDOTROWS) * k,
+                            SCRCOLS * gw, (SCRROWS - n) * gh,
+                            0, -n * gh);
+                }
+                drawnCursor -= n * SCRCOLS;
+                if (drawnCursor < 0) {
+                    drawnCursor = -1;
+                }
+                pendingScrolls = 0;
+            }
+            cursor = theScreen.getCursorPos();
+            if (cursor != drawnCursor) {
+                if (drawnCursor >= 0) {
+                    dirtyRows[drawnCursor / SCRCOLS] |= (1L << (drawnCursor % SCRCOLS));
+                }
+                dirtyRows[cursor / SCRCOLS] |= (1L << (cursor % SCRCOLS));
+                drawnCursor = cursor;
+            }
+            for (int r = 0; r < SCRROWS; r++) {
+                renderRows[r] = dirtyRows[r];
+                dirtyRows[r] = 0L;
+                if (renderRows[r] != 0L) {
+                    theScreen.copyRow(r, renderChars, r * SCRCOLS);
+                }
+            }
         }
-    }
-
-    public void scroll() {
-        System.arraycopy(screen, 0, scrolltmp, 0, SCRCOLS);
-        System.arraycopy(screen, SCRCOLS, screen, 0, SCRCOLS * (SCRROWS - 1));
-        System.arraycopy(scrolltmp, 0, screen, SCRCOLS * (SCRROWS - 1), SCRCOLS);
-        clearEOL();
-        repaint();
-    }
-
-    public void homeCursor() {
-        repaint(getCursorRect());
-        cursorpos = 0;
-        repaint(getCursorRect());
-    }
-
-    public void clearEOL() {
-        int pos = cursorpos;
-        do {
-            screen[pos++] = ' ';
-        } while ((pos % SCRCOLS) != 0);
-        Rectangle r = getCursorRect();
-        r.add(getCharRect(SCRCOLS - 1, cursorpos / SCRCOLS));
-        repaint(r);
-    }
-
-    public void clearEOS() {
-        for (int pos = cursorpos; pos < screen.length; pos++) {
-            screen[pos] = ' ';
+        for (int r = 0; r < SCRROWS; r++) {
+            long bits = renderRows[r];
+            int dy = (BORDERH + r * CHARDOTROWS) * k;
+            int rowstart = r * SCRCOLS;
+            while (bits != 0) {
+                int c = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int ch = renderChars[rowstart + c] & 0xff;
+                if (r * SCRCOLS + c == cursor) {
+                    ch ^= 0x80;
+                }
+                int dx = (BORDERW + c * CHARDOTCOLS) * k;
+                int sx = (ch & 0x0f) * gw;
+                int sy = (ch >> 4) * gh;
+                g.drawImage(glyphAtlas,
+                        dx, dy, dx + gw, dy + gh,
+                        sx, sy, sx + gw, sy + gh,
+                        null);
+            }
         }
-        repaint();
+        g.dispose();
     }
 
     private static final char CHARSET_6575[] = {
@@ -2,9 +2,8 @@
  * Copyright 2014, 2016, Jim Graham, Flarbear Widgets
  */
 
-package org.flarbear.swtpc6800.simulator;
+package org.flarbear.swtpc6800.ui;
 
-import java.awt.AlphaComposite;
 import java.awt.Canvas;
 import java.awt.Color;
 import java.awt.Dimension;
@@ -14,6 +13,10 @@ import java.awt.Graphics2D;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import org.flarbear.swtpc6800.simulator.PIADevice;
 
 public class SWTPc_GT_6144 extends Canvas implements PIADevice {
     public static final int FF_LOAD_BIT = (1 << 7);
@@ -43,11 +46,28 @@ public class SWTPc_GT_6144 extends Canvas implements PIADevice {
     static final Color BLANK_COLOR = new Color(0, 0, 0, 0);
     static final Color PHOSPHOR_COLOR = Color.GREEN;
 
+    // One dot per pixel in a 1 bit raster that the transitions write into
+    // directly. The normal and inverted images share the raster and only
+    // differ in their palettes, so inverting the screen is just a matter
+    // of choosing which one to draw.
+    final BufferedImage normalImage;
+    final BufferedImage invertedImage;
+    final byte rasterBytes[];
+    final int scanlineBytes;
     BufferedImage theImage;
     Frame theFrame;
     SWTPc_CT_64 theCT64;
 
-    final boolean pixels[][] = new boolean[COLS][ROWS];
+    // One long per row, bit N is column N (COLS == 64)
+    final long pixels[] = new long[ROWS];
+
+    // The rows and columns touched since the last frame, turned into a
+    // single damage region when the frame is flushed.
+    private final Object dirtyLock = new Object();
+    private final long dirtyRows[] = new long[(ROWS + 63) / 64];
+    private long dirtyCols;
+    private boolean frameRequested;
+    private final FrameScheduler frames = new FrameScheduler(this);
 
     int col;
     boolean write;
@@ -56,7 +76,23 @@ public class SWTPc_GT_6144 extends Canvas implements PIADevice {
     boolean mixed;
 
     public SWTPc_GT_6144() {
-        theImage = new BufferedImage(COLS * PIXW, ROWS * PIXH, BufferedImage.TYPE_INT_ARGB);
+        normalImage = new BufferedImage(COLS, ROWS, BufferedImage.TYPE_BYTE_BINARY,
+                                        makePalette(BLANK_COLOR, PHOSPHOR_COLOR));
+        WritableRaster raster = normalImage.getRaster();
+        invertedImage = new BufferedImage(makePalette(PHOSPHOR_COLOR, BLANK_COLOR),
+                                          raster, false, null);
+        rasterBytes = ((DataBufferByte) raster.getDataBuffer()).getData();
+        scanlineBytes = rasterBytes.length / ROWS;
+        theImage = normalImage;
+        frames.setFrameListener(this::publishDamage);
+    }
+
+    private static IndexColorModel makePalette(Color off, Color on) {
+        return new IndexColorModel(1, 2,
+                new byte[] { (byte) off.getRed(),   (byte) on.getRed()   },
+                new byte[] { (byte) off.getGreen(), (byte) on.getGreen() },
+                new byte[] { (byte) off.getBlue(),  (byte) on.getBlue()  },
+                new byte[] { (byte) off.getAlpha(), (byte) on.getAlpha() });
     }
 
     public void showAt(int x, int y) {
@@ -126,51 +162,70 @@ public class SWTPc_GT_6144 extends Canvas implements PIADevice {
         if (!blanked) {
             ((Graphics2D) g).scale((float) w / (float) SCRDOTCOLS,
                                    (float) h / (float) SCRDOTROWS);
-            g.drawImage(theImage, BORDERW, BORDERH, null);
+            g.drawImage(theImage, BORDERW, BORDERH, COLS * PIXW, ROWS * PIXH, null);
         }
     }
 
-    void updateImage() {
-        Graphics2D g2d = theImage.createGraphics();
-        g2d.setComposite(AlphaComposite.Src);
-        g2d.setColor(BLANK_COLOR);
-        g2d.fillRect(0, 0, theImage.getWidth(), theImage.getHeight());
-        g2d.setComposite(AlphaComposite.SrcOver);
-        g2d.setColor(PHOSPHOR_COLOR);
-        for (int r = 0; r < ROWS; r++) {
-            for (int c = 0; c < COLS; c++) {
-                if (pixels[c][r] != inverted) {
-                    g2d.fillRect(c * PIXW, r * PIXH, PIXW, PIXH);
-                }
-            }
+    void setPixel(int row, int col, boolean lit) {
+        // TYPE_BYTE_BINARY packs the leftmost pixel in the high bit
+        int index = row * scanlineBytes + (col >> 3);
+        int bit = 0x80 >> (col & 7);
+        if (lit) {
+            rasterBytes[index] |= bit;
+        } else {
+            rasterBytes[index] &= ~bit;
         }
     }
 
-    void updateImage(int row, int col) {
-        Graphics2D g2d = theImage.createGraphics();
-        if (pixels[col][row] == inverted) {
-            g2d.setComposite(AlphaComposite.Src);
-            g2d.setColor(BLANK_COLOR);
-        } else {
-            g2d.setComposite(AlphaComposite.SrcOver);
-            g2d.setColor(PHOSPHOR_COLOR);
+    void markCell(int row, int col) {
+        boolean request;
+        synchronized (dirtyLock) {
+            dirtyRows[row >> 6] |= (1L << row);
+            dirtyCols |= (1L << col);
+            request = !frameRequested;
+            frameRequested = true;
+        }
+        if (request) {
+            frames.requestFrame();
+        }
+    }
+
+    private void publishDamage() {
+        int row0 = -1, row1 = -1;
+        long cols;
+        synchronized (dirtyLock) {
+            for (int i = 0; i < dirtyRows.length; i++) {
+                long bits = dirtyRows[i];
+                if (bits != 0) {
+                    if (row0 < 0) {
+                        row0 = i * 64 + Long.numberOfTrailingZeros(bits);
+                    }
+                    row1 = i * 64 + 63 - Long.numberOfLeadingZeros(bits);
+                    dirtyRows[i] = 0L;
+                }
+            }
+            cols = dirtyCols;
+            dirtyCols = 0L;
+            frameRequested = false;
+        }
+        if (row0 >= 0 && !blanked) {
+            repaintCells(row0, Long.numberOfTrailingZeros(cols),
+                         row1, 63 - Long.numberOfLeadingZeros(cols));
         }
-        g2d.fillRect(col * PIXW, row * PIXH, PIXW, PIXH);
     }
 
-    void repaintCell(int row, int col) {
-        updateImage(row, col);
-        int x0 = BORDERW + col * PIXW;
-        int y0 = BORDERH + row * PIXH;
-        int x1 = x0 + PIXW;
-        int y1 = y0 + PIXH;
+    void repaintCells(int row0, int col0, int row1, int col1) {
+        int x0 = BORDERW + col0 * PIXW;
+        int y0 = BORDERH + row0 * PIXH;
+        int x1 = BORDERW + (col1 + 1) * PIXW;
+        int y1 = BORDERH + (row1 + 1) * PIXH;
         float scalex = (float) getWidth() / (float) SCRDOTCOLS;
         float scaley = (float) getHeight() / (float) SCRDOTROWS;
         int x = (int) Math.floor(x0 * scalex);
         int y = (int) Math.floor(y0 * scaley);
         int w = ((int) Math.ceil(x1 * scalex)) - x;
         int h = ((int) Math.ceil(y1 * scaley)) - y;
-        repaint(x, y, w, h);
+        frames.damage(x, y, w, h);
     }
 
     @Override
@@ -182,10 +237,12 @@ public class SWTPc_GT_6144 extends Canvas implements PIADevice {
         } else {
             int row = data & VERTICAL_BITS;
             if (row < 96) {
-                if (pixels[col][row] == write) return;
-                pixels[col][row] = write;
+                long bit = 1L << col;
+                if (((pixels[row] & bit) != 0) == write) return;
+                pixels[row] ^= bit;
+                setPixel(row, col, write);
                 if (!blanked) {
-                    repaintCell(row, col);
+                    markCell(row, col);
                 }
             } else {
                 switch (row & 7) {
@@ -216,7 +273,7 @@ public class SWTPc_GT_6144 extends Canvas implements PIADevice {
                     default:
                         return;
                 }
-                updateImage();
+                theImage = inverted ? invertedImage : normalImage;
                 repaint();
             }
         }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of running a Machine into breakpoints.
+ */
+public class BreakpointTests {
+    private static final int PROGRAM[] = {
+        0x86, 0x05,             // 0100 LDAA #5
+        0x4C,                   // 0102 LOOP INCA
+        0x81, 0x20,             // 0103 CMPA #$20
+        0x26, 0xFB,             // 0105 BNE LOOP
+        0x20, 0xFE,             // 0107 BRA *
+    };
+
+    private static Machine machine() {
+        Machine m = new MachineBuilder()
+            .flatMemory()
+            .resetVector(0x0100)
+            .realTime(false)
+            .build();
+        for (int i = 0; i < PROGRAM.length; i++) {
+            m.store(0x0100 + i, (byte) PROGRAM[i]);
+        }
+        return m;
+    }
+
+    @Test
+    public void testStopsAtAddress() {
+        Machine m = machine();
+        m.setBreakpoint(0x0105);
+        long cycles = m.runFor(100000);
+        assertTrue(m.isStoppedAtBreakpoint());
+        assertTrue(cycles < 100000);
+        assertEquals(0x0105, m.getProcessor().getPC());
+        assertEquals(6, m.getProcessor().getA());
+        // and stays there until it is resumed
+        assertEquals(0, m.runFor(1000));
+        assertEquals(0x0105, m.getProcessor().getPC());
+    }
+
+    @Test
+    public void testConditionalBreakpoint() {
+        Machine m = machine();
+        int tested[] = new int[1];
+        m.setBreakpoint(0x0103, machine -> {
+            tested[0]++;
+            return machine.getProcessor().getA() == 0x10;
+        });
+        m.runFor(100000);
+        assertTrue(m.isStoppedAtBreakpoint());
+        assertEquals(0x0103, m.getProcessor().getPC());
+        assertEquals(0x10, m.getProcessor().getA());
+        // False for 6 through $0F
+        assertEquals(0x10 - 6 + 1, tested[0]);
+
+        // Never true again, so the loop runs out to the BRA *
+        m.resume();
+        m.runFor(100000);
+        assertFalse(m.isStoppedAtBreakpoint());
+        assertEquals(0x0107, m.getProcessor().getPC());
+        assertEquals(0x20, m.getProcessor().getA());
+    }
+
+    @Test
+    public void testResumeStepsPastBreakpoint() {
+        Machine m = machine();
+        m.setBreakpoint(0x0107);
+        m.runFor(100000);
+        assertTrue(m.isStoppedAtBreakpoint());
+        long before = m.getCycles();
+
+        // BRA * goes straight back to the breakpoint after one
+        // instruction, which takes 4 cycles
+        m.resume();
+        assertFalse(m.isStoppedAtBreakpoint());
+        assertEquals(4, m.runFor(100000));
+        assertTrue(m.isStoppedAtBreakpoint());
+        assertEquals(0x0107, m.getProcessor().getPC());
+        assertEquals(before + 4, m.getCycles());
+    }
+
+    @Test
+    public void testClearingLastBreakpoint() {
+        Machine m = machine();
+        Motorola6800 cpu = m.getProcessor();
+        assertFalse(cpu.isCheckingInstructions());
+        m.setBreakpoint(0x0102);
+        m.setBreakpoint(0x0107);
+        assertTrue(cpu.isCheckingInstructions());
+        m.runFor(100000);
+        assertEquals(0x0102, cpu.getPC());
+
+        m.clearBreakpoint(0x0102);
+        assertTrue(cpu.isCheckingInstructions());
+        m.clearBreakpoint(0x0107);
+        assertFalse(cpu.isCheckingInstructions());
+        m.resume();
+        assertEquals(100000, m.runFor(100000), 10);
+        assertFalse(m.isStoppedAtBreakpoint());
+        assertEquals(0x0107, cpu.getPC());
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of the FD1771 controller, the disk images it works on and the
+ * DC-1 card it sits on.
+ */
+public class FD1771Tests {
+    private static final int TRACKS = 5;
+    private static final int SECTORS = 10;
+    private static final int SIZE = 256;
+
+    private static final int CMD_RESTORE_VERIFY = 0x04;
+    private static final int CMD_SEEK_VERIFY    = 0x14;
+    private static final int CMD_STEP_IN        = 0x50;
+    private static final int CMD_STEP_OUT       = 0x70;
+    private static final int CMD_READ           = 0x88;
+    private static final int CMD_READ_MULTIPLE  = 0x98;
+    private static final int CMD_WRITE          = 0xA8;
+    private static final int CMD_WRITE_MULTIPLE = 0xB8;
+    private static final int CMD_WRITE_TRACK    = 0xF4;
+
+    private interface Body {
+        public void run(Path file) throws Exception;
+    }
+
+    private static void withImageFile(Body body) throws Exception {
+        Path file = Files.createTempFile("fd1771-test", ".dsk");
+        try {
+            body.run(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static byte[] filled(int value) {
+        byte b[] = new byte[SIZE];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    private static byte[] sector(DiskImage disk, int track, int sector) {
+        byte b[] = new byte[SIZE];
+        disk.readSector(track, sector, b, 0);
+        return b;
+    }
+
+    // The bytes of a sector as they are in the file, without the cache
+    private static byte[] sectorInFile(Path file, int track, int sector) throws Exception {
+        int offset = (track * SECTORS + sector - 1) * SIZE;
+        return Arrays.copyOfRange(Files.readAllBytes(file), offset, offset + SIZE);
+    }
+
+    private static int status(FD1771 fdc) {
+        return fdc.readRegister(FD1771.REGISTER_COMMAND) & 0xff;
+    }
+
+    private static void command(FD1771 fdc, int cmd) {
+        fdc.writeRegister(FD1771.REGISTER_COMMAND, (byte) cmd);
+    }
+
+    private static void seek(FD1771 fdc, int track) {
+        fdc.writeRegister(FD1771.REGISTER_DATA, (byte) track);
+        command(fdc, CMD_SEEK_VERIFY);
+    }
+
+    private static FD1771 controller(DiskImage disk) {
+        FD1771 fdc = new FD1771();
+        fdc.insert(0, disk);
+        fdc.reset();
+        return fdc;
+    }
+
+    @Test
+    public void testSeekAndStep() throws Exception {
+        withImageFile(file -> {
+            FD1771 fdc = controller(DiskImage.create(file, TRACKS, SECTORS, SIZE));
+            command(fdc, CMD_RESTORE_VERIFY);
+            int st = status(fdc);
+            assertTrue((st & FD1771.STATUS_TRACK0) != 0);
+            assertEquals(0, st & (FD1771.STATUS_BUSY | FD1771.STATUS_NOT_FOUND));
+
+            seek(fdc, 3);
+            st = status(fdc);
+            assertEquals(3, fdc.readRegister(FD1771.REGISTER_TRACK));
+            assertEquals(0, st & (FD1771.STATUS_TRACK0 | FD1771.STATUS_NOT_FOUND));
+
+            command(fdc, CMD_STEP_IN);
+            assertEquals(4, fdc.readRegister(FD1771.REGISTER_TRACK));
+            command(fdc, CMD_STEP_OUT);
+            command(fdc, CMD_STEP_OUT);
+            assertEquals(2, fdc.readRegister(FD1771.REGISTER_TRACK));
+
+            // The head is on track 2 but the register says 0, so the
+            // seek to 1 moves the head to 3 and the verify fails
+            fdc.writeRegister(FD1771.REGISTER_TRACK, (byte) 0);
+            seek(fdc, 1);
+            assertTrue((status(fdc) & FD1771.STATUS_NOT_FOUND) != 0);
+
+            command(fdc, CMD_RESTORE_VERIFY);
+            st = status(fdc);
+            assertEquals(0, fdc.readRegister(FD1771.REGISTER_TRACK));
+            assertTrue((st & FD1771.STATUS_TRACK0) != 0);
+            assertEquals(0, st & FD1771.STATUS_NOT_FOUND);
+        });
+    }
+
+    @Test
+    public void testReadAndWriteSectors() throws Exception {
+        withImageFile(file -> {
+            DiskImage disk = DiskImage.create(file, TRACKS, SECTORS, SIZE);
+            disk.writeSector(2, 4, filled(0x44), 0);
+            disk.writeSector(2, 9, filled(0x99), 0);
+            disk.writeSector(2, 10, filled(0xAA), 0);
+            FD1771 fdc = controller(disk);
+            seek(fdc, 2);
+
+            // Single sector read
+            fdc.writeRegister(FD1771.REGISTER_SECTOR, (byte) 4);
+            command(fdc, CMD_READ);
+            for (int i = 0; i < SIZE; i++) {
+                assertTrue((status(fdc) & FD1771.STATUS_DRQ) != 0);
+                assertEquals(0x44, fdc.readRegister(FD1771.REGISTER_DATA));
+            }
+            assertEquals(0, status(fdc) & (FD1771.STATUS_BUSY | FD1771.STATUS_DRQ |
+                                           FD1771.STATUS_NOT_FOUND));
+
+            // A multiple sector read runs off the end of the track
+            fdc.writeRegister(FD1771.REGISTER_SECTOR, (byte) 9);
+            command(fdc, CMD_READ_MULTIPLE);
+            for (int i = 0; i < SIZE; i++) {
+                assertEquals((byte) 0x99, fdc.readRegister(FD1771.REGISTER_DATA));
+            }
+            for (int i = 0; i < SIZE; i++) {
+                assertEquals((byte) 0xAA, fdc.readRegister(FD1771.REGISTER_DATA));
+            }
+            int st = status(fdc);
+            assertEquals(0, st & FD1771.STATUS_BUSY);
+            assertTrue((st & FD1771.STATUS_NOT_FOUND) != 0);
+
+            // Single and multiple sector writes
+            fdc.writeRegister(FD1771.REGISTER_SECTOR, (byte) 1);
+            command(fdc, CMD_WRITE);
+            for (int i = 0; i < SIZE; i++) {
+                fdc.writeRegister(FD1771.REGISTER_DATA, (byte) i);
+            }
+            assertEquals(0, status(fdc) & (FD1771.STATUS_BUSY | FD1771.STATUS_NOT_FOUND));
+            for (int i = 0; i < SIZE; i++) {
+                assertEquals((byte) i, sector(disk, 2, 1)[i]);
+            }
+            fdc.writeRegister(FD1771.REGISTER_SECTOR, (byte) 9);
+            command(fdc, CMD_WRITE_MULTIPLE);
+            for (int i = 0; i < 2 * SIZE; i++) {
+                fdc.writeRegister(FD1771.REGISTER_DATA, (byte) (i < SIZE ? 0x11 : 0x22));
+            }
+            assertTrue((status(fdc) & FD1771.STATUS_NOT_FOUND) != 0);
+            assertArrayEquals(filled(0x11), sector(disk, 2, 9));
+            assertArrayEquals(filled(0x22), sector(disk, 2, 10));
+            // and nothing spilled onto the next track
+            assertArrayEquals(filled(0xE5), sector(disk, 3, 1));
+
+            // A sector that isn't on the track
+            fdc.writeRegister(FD1771.REGISTER_SECTOR, (byte) 11);
+            command(fdc, CMD_READ);
+            assertTrue((status(fdc) & FD1771.STATUS_NOT_FOUND) != 0);
+        });
+    }
+
+    @Test
+    public void testWriteProtect() throws Exception {
+        withImageFile(file -> {
+            DiskImage writable = DiskImage.create(file, TRACKS, SECTORS, SIZE);
+            writable.writeSector(0, 1, filled(0x12), 0);
+            writable.flush();
+            DiskImage disk = DiskImage.open(file, true);
+            assertTrue(disk.isReadOnly());
+            FD1771 fdc = controller(disk);
+            command(fdc, CMD_RESTORE_VERIFY);
+            assertTrue((status(fdc) & FD1771.STATUS_WRITE_PROTECT) != 0);
+
+            fdc.writeRegister(FD1771.REGISTER_SECTOR, (byte) 1);
+            command(fdc, CMD_WRITE);
+            int st = status(fdc);
+            assertTrue((st & FD1771.STATUS_WRITE_PROTECT) != 0);
+            assertEquals(0, st & (FD1771.STATUS_BUSY | FD1771.STATUS_DRQ));
+            command(fdc, CMD_WRITE_TRACK);
+            assertTrue((status(fdc) & FD1771.STATUS_WRITE_PROTECT) != 0);
+
+            // Reading still works
+            command(fdc, CMD_READ);
+            assertEquals(0x12, fdc.readRegister(FD1771.REGISTER_DATA));
+        });
+    }
+
+    @Test
+    public void testWriteTrack() throws Exception {
+        withImageFile(file -> {
+            DiskImage disk = DiskImage.create(file, TRACKS, SECTORS, SIZE);
+            FD1771 fdc = controller(disk);
+            seek(fdc, 2);
+
+            // IBM style mini floppy format, sectors interleaved
+            ByteArrayOutputStream track = new ByteArrayOutputStream();
+            int order[] = { 1, 6, 2, 7, 3, 8, 4, 9, 5, 10 };
+            for (int s : order) {
+                for (int i = 0; i < 6; i++) {
+                    track.write(0x00);
+                }
+                track.write(0xFE);
+                track.write(2);     // track
+                track.write(0);     // side
+                track.write(s);     // sector
+                track.write(1);     // length code
+                track.write(0xF7);  // CRC
+                for (int i = 0; i < 11; i++) {
+                    track.write(0xFF);
+                }
+                track.write(0xFB);
+                for (int i = 0; i < SIZE; i++) {
+                    track.write(s);
+                }
+                track.write(0xF7);
+            }
+            // An ID for another track is ignored along with its data
+            track.write(0xFE);
+            track.write(3);
+            track.write(0);
+            track.write(1);
+            track.write(1);
+            track.write(0xFB);
+            for (int i = 0; i < SIZE; i++) {
+                track.write(0x33);
+            }
+
+            command(fdc, CMD_WRITE_TRACK);
+            for (byte b : track.toByteArray()) {
+                fdc.writeRegister(FD1771.REGISTER_DATA, b);
+            }
+            // Fill out the rest of the track
+            int n = 0;
+            while ((status(fdc) & FD1771.STATUS_BUSY) != 0) {
+                fdc.writeRegister(FD1771.REGISTER_DATA, (byte) 0xFF);
+                assertTrue(++n < 4096);
+            }
+            for (int s = 1; s <= SECTORS; s++) {
+                assertArrayEquals(filled(s), sector(disk, 2, s));
+            }
+            assertArrayEquals(filled(0xE5), sector(disk, 3, 1));
+        });
+    }
+
+    @Test
+    public void testWriteBackCache() throws Exception {
+        withImageFile(file -> {
+            DiskImage.create(file, TRACKS, SECTORS, SIZE);
+            DiskImage disk = new DiskImage(file, false, TRACKS, SECTORS, SIZE, 1, 2);
+            disk.writeSector(1, 1, filled(0x01), 0);
+            disk.writeSector(1, 2, filled(0x02), 0);
+            assertEquals(2, disk.getDirtySectorCount());
+            assertArrayEquals(filled(0xE5), sectorInFile(file, 1, 1));
+            // Reading sector 1 makes sector 2 the least recently used
+            assertArrayEquals(filled(0x01), sector(disk, 1, 1));
+            disk.writeSector(1, 3, filled(0x03), 0);
+            assertEquals(2, disk.getDirtySectorCount());
+            assertArrayEquals(filled(0x02), sectorInFile(file, 1, 2));
+            assertArrayEquals(filled(0xE5), sectorInFile(file, 1, 1));
+            assertArrayEquals(filled(0xE5), sectorInFile(file, 1, 3));
+            assertArrayEquals(filled(0x03), sector(disk, 1, 3));
+
+            disk.flush();
+            assertEquals(0, disk.getDirtySectorCount());
+            assertArrayEquals(filled(0x01), sectorInFile(file, 1, 1));
+            assertArrayEquals(filled(0x03), sectorInFile(file, 1, 3));
+            // and a fresh look at the file sees it all
+            DiskImage reopened = DiskImage.open(file, true);
+            assertEquals(TRACKS, reopened.getTracks());
+            assertArrayEquals(filled(0x02), sector(reopened, 1, 2));
+        });
+    }
+
+    @Test
+    public void testDiskTime() throws Exception {
+        withImageFile(file -> {
+            DiskImage disk = DiskImage.create(file, TRACKS, SECTORS, SIZE);
+            disk.writeSector(0, 6, filled(0x66), 0);
+            VirtualClock clock = new VirtualClock();
+            clock.setDeterministic(true);
+            FD1771 fdc = controller(disk);
+            fdc.connectClock(clock);
+
+            // Three steps at 6ms plus the head settling time
+            seek(fdc, 3);
+            assertTrue(fdc.isBusy());
+            clock.advance((int) VirtualClock.cyclesForMillis(20));
+            assertTrue(fdc.isBusy());
+            clock.advance((int) VirtualClock.cyclesForMillis(10));
+            assertFalse(fdc.isBusy());
+            command(fdc, CMD_RESTORE_VERIFY);
+            clock.advance((int) VirtualClock.cyclesForMillis(100));
+
+            // Sector 6 is half a revolution from the index
+            fdc.writeRegister(FD1771.REGISTER_SECTOR, (byte) 6);
+            command(fdc, CMD_READ);
+            assertTrue((status(fdc) & FD1771.STATUS_BUSY) != 0);
+            assertEquals(0, status(fdc) & FD1771.STATUS_DRQ);
+            clock.advance((int) VirtualClock.cyclesForMillis(200));
+            assertTrue((status(fdc) & FD1771.STATUS_DRQ) != 0);
+            assertEquals(0x66, fdc.readRegister(FD1771.REGISTER_DATA));
+            // The next byte takes 64us to come off the disk
+            assertEquals(0, status(fdc) & FD1771.STATUS_DRQ);
+            clock.advance((int) VirtualClock.cyclesForMillis(1));
+            assertTrue((status(fdc) & FD1771.STATUS_DRQ) != 0);
+            command(fdc, 0xD0);
+
+            // Without rotational delay nothing waits
+            fdc.setNoRotationalDelay(true);
+            seek(fdc, 4);
+            assertFalse(fdc.isBusy());
+            command(fdc, CMD_RESTORE_VERIFY);
+            command(fdc, CMD_READ);
+            for (int i = 0; i < SIZE; i++) {
+                assertTrue((status(fdc) & FD1771.STATUS_DRQ) != 0);
+                assertEquals(0x66, fdc.readRegister(FD1771.REGISTER_DATA));
+            }
+            assertFalse(fdc.isBusy());
+        });
+    }
+
+    @Test
+    public void testDC1() throws Exception {
+        withImageFile(file -> {
+            DiskImage disk = DiskImage.create(file, TRACKS, SECTORS, SIZE);
+            Machine m = MachineBuilder.standard().disk(disk).realTime(false).build();
+            SWTPc_DC_1 dc1 = (SWTPc_DC_1) m.getSystem().getIOCard(6);
+            assertTrue(dc1.getController().getDisk(0) == disk);
+
+            // Drive 0 has a disk and drive 2 doesn't
+            assertEquals(0, m.load(0x8018) & FD1771.STATUS_NOT_READY);
+            m.store(0x8014, (byte) 2);
+            assertEquals(2, m.load(0x8014));
+            assertTrue((m.load(0x8018) & FD1771.STATUS_NOT_READY) != 0);
+            m.store(0x8014, (byte) 0);
+
+            // Writes through the card reach the file once it is reset
+            m.store(0x801A, (byte) 1);
+            m.store(0x8018, (byte) CMD_WRITE);
+            for (int i = 0; i < SIZE; i++) {
+                m.store(0x801B, (byte) 0x5A);
+            }
+            assertArrayEquals(filled(0x5A), sector(disk, 0, 1));
+            dc1.tripRESET();
+            assertEquals(0, disk.getDirtySectorCount());
+            assertArrayEquals(filled(0x5A), sectorInFile(file, 0, 1));
+        });
+    }
+}
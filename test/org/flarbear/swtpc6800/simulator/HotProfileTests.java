@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of profiling a machine and of the scratch machines that profiles
+ * are warmed up on.
+ */
+public class HotProfileTests {
+    private static final String IMAGE =
+        SRecordImageTests.record('1', 0x0100,
+                                 0x4C,          // 0100 INCA
+                                 0x20, 0xFD)    // 0101 BRA $0100
+        + "\n" + SRecordImageTests.record('9', 0x0100) + "\n";
+
+    private static Machine loopMachine() {
+        return new MachineBuilder()
+            .flatMemory()
+            .load(SRecordImageTests.decode(IMAGE))
+            .resetVector(0x0100)
+            .realTime(false)
+            .build();
+    }
+
+    @Test
+    public void testProfilingWindowEnds() {
+        Machine m = loopMachine();
+        Motorola6800 cpu = m.getProcessor();
+        cpu.profileFor(10000);
+        assertTrue(cpu.isCheckingInstructions());
+        m.runFor(5000);
+        assertTrue(cpu.isCheckingInstructions());
+        m.runFor(10000);
+        // Back on the unchecked loop with the counts kept
+        assertFalse(cpu.isCheckingInstructions());
+        assertEquals(0, cpu.getProfileCyclesLeft());
+        long counts[] = cpu.getExecutionCounts();
+        // INCA and BRA take 6 cycles between them
+        assertEquals(10000 / 6, counts[0x0100], 2);
+        assertEquals(counts[0x0100], counts[0x0101], 1);
+        m.runFor(10000);
+        assertArrayEquals(counts, cpu.getExecutionCounts());
+
+        cpu.setProfiling(true);
+        assertEquals(Long.MAX_VALUE, cpu.getProfileCyclesLeft());
+        cpu.setProfiling(false);
+        assertNull(cpu.getExecutionCounts());
+    }
+
+    @Test
+    public void testTrackProfilesForAWhile() {
+        Machine m = loopMachine();
+        ProfileCache cache = new ProfileCache(null);
+        cache.setProfileCycles(20000);
+        SRecordImage image = SRecordImageTests.decode(IMAGE);
+        assertNull(cache.track(m.getSystem(), image, 0));
+        assertEquals(20000, m.getProcessor().getProfileCyclesLeft());
+        m.runFor(30000);
+        assertFalse(m.getProcessor().isCheckingInstructions());
+
+        cache.collect();
+        HotProfile profile = cache.get(image);
+        assertEquals(1, profile.getBlockCount());
+    }
+
+    @Test
+    public void testScratchProfilesLikeSystem() {
+        SRecordImage image = SRecordImageTests.decode(IMAGE);
+        SWTPc6800 system = MachineBuilder.standard().buildSystem();
+        Machine scratch = HotProfile.scratchFor(system, image, 0);
+        assertFalse(scratch.getProcessor().isCheckingInstructions());
+
+        system.getProcessor().profileFor(50000);
+        scratch = HotProfile.scratchFor(system, image, 0);
+        assertEquals(50000, scratch.getProcessor().getProfileCyclesLeft());
+
+        // A system that is running is copied into a flat machine instead
+        Machine running = MachineBuilder.standard().realTime(false).build();
+        running.getProcessor().profileFor(50000);
+        running.runFor(20000);
+        scratch = HotProfile.scratchFor(running.getSystem(), image, 0);
+        assertEquals(running.getProcessor().getProfileCyclesLeft(),
+                     scratch.getProcessor().getProfileCyclesLeft());
+        assertTrue(scratch.getProcessor().isCheckingInstructions());
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Records a session with an InputRecorder and replays it.
+ */
+public class InputReplayerTests {
+    @Test
+    public void testReplayMatchesRecording() throws IOException {
+        Machine m = MachineBuilder.standard().realTime(false).build();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        InputRecorder recorder = new InputRecorder(m.getSystem(), log);
+        StringBuilder output = new StringBuilder();
+        m.runFor(123457);
+        output.append(m.readOutput());
+        String commands[] = { "M0100", "41", "42", "\r", "M0101", "\r" };
+        for (int rep = 0; rep < 10; rep++) {
+            for (String c : commands) {
+                m.type(c);
+                m.runFor(31337 + rep * 7);
+                output.append(m.readOutput());
+            }
+            if (rep == 5) {
+                m.reset();
+                m.runFor(5000);
+            }
+        }
+        m.runFor(77777);
+        output.append(m.readOutput());
+        recorder.close();
+        assertTrue(recorder.getCount() > 0);
+
+        Machine r = MachineBuilder.standard().realTime(false).build();
+        long n = r.replay(new ByteArrayInputStream(log.toByteArray()));
+        assertEquals(recorder.getCount(), n);
+        assertEquals(output.toString(), r.readOutput());
+        assertEquals(m.getCycles(), r.getCycles());
+        assertEquals(m.getProcessor().getPC(), r.getProcessor().getPC());
+        for (int addr = 0; addr < 0x3000; addr++) {
+            assertEquals(m.load(addr), r.load(addr));
+        }
+        assertEquals(0x42, r.load(0x0101));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotALog() throws IOException {
+        Machine r = MachineBuilder.standard().realTime(false).build();
+        r.replay(new ByteArrayInputStream(new byte[] { 'n', 'o', 'p', 'e', 0 }));
+    }
+}
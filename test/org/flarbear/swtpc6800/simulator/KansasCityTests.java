@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Round trips through the Kansas City Standard encoder and decoder.
+ */
+public class KansasCityTests {
+    private static final int LEADER_MILLIS = 100;
+
+    private static byte[] randomBytes(int n) {
+        byte data[] = new byte[n];
+        new Random(6800).nextBytes(data);
+        return data;
+    }
+
+    private static Path encode(byte data[], int sampleRate) throws IOException {
+        Path file = Files.createTempFile("kcs-test", ".wav");
+        KansasCityEncoder encoder = new KansasCityEncoder(file, sampleRate, LEADER_MILLIS);
+        for (byte b : data) {
+            encoder.write(b);
+        }
+        encoder.close();
+        return file;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte data[] = randomBytes(2000);
+        for (int rate : new int[] { 9600, 11025, 22050, 44100 }) {
+            Path file = encode(data, rate);
+            try (KansasCityDecoder decoder = new KansasCityDecoder(file)) {
+                assertEquals(rate, decoder.getSampleRate());
+                byte decoded[] = decoder.readAllBytes();
+                assertArrayEquals("round trip at " + rate + " Hz", data, decoded);
+                assertEquals("framing errors at " + rate + " Hz", 0, decoder.getFramingErrors());
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    @Test
+    public void testFramingError() throws IOException {
+        int rate = 9600;
+        int bitSamples = rate / KansasCityEncoder.BAUD_RATE;
+        int leaderBits = LEADER_MILLIS * KansasCityEncoder.BAUD_RATE / 1000;
+        byte data[] = randomBytes(20);
+        Path file = encode(data, rate);
+        try {
+            // Turn the stop bits of byte 10 into 1200 Hz (0) bits
+            byte wav[] = Files.readAllBytes(file);
+            int bit = leaderBits + 10 * 11 + 9;
+            int start = KansasCityEncoder.HEADER_SIZE + bit * bitSamples;
+            int cycleSamples = rate / KansasCityEncoder.ZERO_FREQUENCY;
+            for (int i = 0; i < 2 * bitSamples; i++) {
+                double phase = 2 * Math.PI * (i % cycleSamples) / cycleSamples;
+                wav[start + i] = (byte) (128 + Math.round(100 * Math.sin(phase)));
+            }
+            Files.write(file, wav);
+            try (KansasCityDecoder decoder = new KansasCityDecoder(file)) {
+                byte decoded[] = decoder.readAllBytes();
+                assertTrue(decoder.getFramingErrors() > 0);
+                // The bytes before the damage are not affected
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(data[i], decoded[i]);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
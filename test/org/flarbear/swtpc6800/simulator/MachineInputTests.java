@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that typing ahead into a Machine reaches the program reading it.
+ */
+public class MachineInputTests {
+    private static final int ACIA_STATUS = 0x8004;
+    private static final int ACIA_DATA = 0x8005;
+    private static final int BUFFER = 0x2800;
+
+    // Reads the ACIA by polling RDRF without ever enabling the receiver,
+    // as the MITS BASIC input routine does, and stores what it gets at
+    // BUFFER onwards.
+    private static final int POLLED_READER[] = {
+        0xCE, 0x28, 0x00,       // 0100 LDX #BUFFER
+        0xB6, 0x80, 0x04,       // 0103 LDAA ACIA_STATUS
+        0x47,                   // 0106 ASRA
+        0x24, 0xFA,             // 0107 BCC $0103
+        0xB6, 0x80, 0x05,       // 0109 LDAA ACIA_DATA
+        0xA7, 0x00,             // 010C STAA 0,X
+        0x08,                   // 010E INX
+        0x20, 0xF2,             // 010F BRA $0103
+    };
+
+    private static Machine bootedMachine(boolean flowControlled) {
+        Machine m = MachineBuilder.standard()
+            .flowControlledInput(flowControlled)
+            .realTime(false)
+            .build();
+        m.runFor(200000);
+        m.readOutput();
+        return m;
+    }
+
+    private static Machine pollingMachine(boolean flowControlled) {
+        Machine m = bootedMachine(flowControlled);
+        for (int i = 0; i < POLLED_READER.length; i++) {
+            m.store(0x0100 + i, (byte) POLLED_READER[i]);
+        }
+        // SWTBUG left the receiver enabled waiting for a command
+        m.store(ACIA_STATUS, (byte) 0x11);
+        m.getProcessor().jumpTo((char) 0x0100);
+        return m;
+    }
+
+    @Test
+    public void testSWTBUGKeepsTypeAhead() {
+        Machine m = bootedMachine(true);
+        // All at once, before SWTBUG has asked for any of it
+        m.type("M0100");
+        m.runFor(200000);
+        String out = m.readOutput();
+        assertTrue(out, out.contains("0100"));
+    }
+
+    @Test
+    public void testPolledReadGetsEveryCharacter() {
+        Machine m = pollingMachine(false);
+        m.type("HELLO");
+        m.runFor(100000);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("HELLO".charAt(i), m.load(BUFFER + i));
+        }
+        assertEquals(0, m.load(BUFFER + 5));
+    }
+
+    @Test
+    public void testFlowControlledWaitsForReceiver() {
+        Machine m = pollingMachine(true);
+        m.type("HI");
+        m.runFor(100000);
+        assertEquals(0, m.load(BUFFER));
+
+        // Each time the receiver is enabled one more character arrives
+        // and none of them were lost while it waited
+        m.store(ACIA_STATUS, (byte) 0x15);
+        m.runFor(100000);
+        assertEquals('H', m.load(BUFFER));
+        assertEquals(0, m.load(BUFFER + 1));
+        m.store(ACIA_STATUS, (byte) 0x15);
+        m.runFor(100000);
+        assertEquals('I', m.load(BUFFER + 1));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests that machines forked from a snapshot are independent.
+ */
+public class MachineSnapshotTests {
+    private static Machine bootedMachine() {
+        Machine m = MachineBuilder.standard().realTime(false).build();
+        m.runFor(200000);
+        m.readOutput();
+        for (int addr = 0x1000; addr < 0x1100; addr++) {
+            m.store(addr, (byte) addr);
+        }
+        return m;
+    }
+
+    @Test
+    public void testForksAreIndependent() {
+        Machine m = bootedMachine();
+        MachineSnapshot snap = m.snapshot();
+        assertEquals(m.getCycles(), snap.getCycle());
+        // The original carries on and writes
+        m.store(0x1010, (byte) 0x55);
+
+        Machine a = snap.fork();
+        Machine b = snap.fork();
+        assertEquals(m.getCycles(), a.getCycles());
+        assertEquals(0x10, a.load(0x1010));
+        a.store(0x1010, (byte) 0xAA);
+        b.store(0x1020, (byte) 0xBB);
+        assertEquals((byte) 0xAA, a.load(0x1010));
+        assertEquals(0x20, a.load(0x1020));
+        assertEquals(0x10, b.load(0x1010));
+        assertEquals((byte) 0xBB, b.load(0x1020));
+        assertEquals(0x55, m.load(0x1010));
+        assertEquals(0x20, m.load(0x1020));
+
+        // Nothing the forks wrote reached the snapshot
+        Machine c = snap.fork();
+        assertEquals(0x10, c.load(0x1010));
+        assertEquals(0x20, c.load(0x1020));
+    }
+
+    @Test
+    public void testForksRunLikeTheOriginal() {
+        Machine m = bootedMachine();
+        MachineSnapshot snap = m.snapshot();
+        m.type("M1010\r");
+        m.runFor(200000);
+        String want = m.readOutput();
+        Machine a = snap.fork();
+        a.type("M1010\r");
+        a.runFor(200000);
+        assertEquals(want, a.readOutput());
+        assertEquals(m.getCycles(), a.getCycles());
+        assertEquals(m.getProcessor().getPC(), a.getProcessor().getPC());
+    }
+
+    @Test
+    public void testForkFromManyThreads() throws Exception {
+        Machine m = bootedMachine();
+        MachineSnapshot snap = m.snapshot();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Machine>> futures = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                final int n = i;
+                futures.add(pool.submit(() -> {
+                    Machine f = snap.fork();
+                    f.store(0x1000 + n, (byte) 0xFF);
+                    return f;
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Machine f = futures.get(i).get();
+                for (int addr = 0x1000; addr < 0x1040; addr++) {
+                    byte want = (addr == 0x1000 + i) ? (byte) 0xFF : (byte) addr;
+                    assertEquals(want, f.load(addr));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
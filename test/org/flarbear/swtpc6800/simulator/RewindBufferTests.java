@@ -0,0 +1,75 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests of what RewindBuffer puts back.
+ */
+public class RewindBufferTests {
+    private static Machine bootedMachine() {
+        Machine m = MachineBuilder.standard().realTime(false).build();
+        m.runFor(100000);
+        return m;
+    }
+
+    @Test
+    public void testRewindRestoresPages() {
+        Machine m = bootedMachine();
+        RewindBuffer rb = new RewindBuffer(m.getSystem(), 1000000, 1L << 20);
+        m.store(0x1000, (byte) 1);
+        m.runFor(20000);
+        rb.checkpoint();
+        long cycle1 = m.getCycles();
+        m.store(0x1000, (byte) 2);
+        m.store(0x2000, (byte) 3);
+        m.runFor(20000);
+        rb.checkpoint();
+        // Written after the last checkpoint, so only dirty
+        m.store(0x1000, (byte) 4);
+        m.store(0x2800, (byte) 5);
+        m.runFor(20000);
+        assertEquals(3, rb.getCheckpointCount());
+
+        rb.rewindTo(1);
+        assertEquals(2, rb.getCheckpointCount());
+        assertEquals(cycle1, m.getCycles());
+        assertEquals(1, m.load(0x1000));
+        assertEquals(0, m.load(0x2000));
+        assertEquals(0, m.load(0x2800));
+
+        rb.rewindTo(0);
+        assertEquals(1, rb.getCheckpointCount());
+        assertEquals(0, m.load(0x1000));
+
+        // The machine carries on from the checkpoint as before
+        m.type("M1000\r");
+        m.runFor(200000);
+        assertEquals(true, m.readOutput().contains("1000 00"));
+    }
+
+    @Test
+    public void testRewindAfterDroppingOldest() {
+        Machine m = bootedMachine();
+        // Room for a checkpoint's overhead and a few pages, so the first
+        // checkpoint is forgotten once the third is taken
+        RewindBuffer rb = new RewindBuffer(m.getSystem(), 1000000, 1100);
+        m.store(0x1000, (byte) 1);
+        rb.checkpoint();
+        m.store(0x1000, (byte) 2);
+        rb.checkpoint();
+        assertEquals(2, rb.getCheckpointCount());
+        // The full copy now holds the page as it was at the new oldest
+        m.store(0x1000, (byte) 5);
+        m.store(0x2000, (byte) 6);
+
+        rb.rewindTo(0);
+        assertEquals(1, m.load(0x1000));
+        assertEquals(0, m.load(0x2000));
+        assertEquals(1, rb.getCheckpointCount());
+    }
+}
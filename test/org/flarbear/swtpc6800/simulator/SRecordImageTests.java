@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Tests of the S-record decoder and the sidecar cache.
+ */
+public class SRecordImageTests {
+    static String record(char type, int addr, int... bytes) {
+        int sum = (bytes.length + 3) + (addr >> 8) + (addr & 0xff);
+        StringBuilder sb = new StringBuilder();
+        sb.append('S').append(type);
+        sb.append(String.format("%02X%04X", bytes.length + 3, addr));
+        for (int b : bytes) {
+            sb.append(String.format("%02X", b & 0xff));
+            sum += b & 0xff;
+        }
+        sb.append(String.format("%02X", ~sum & 0xff));
+        return sb.toString();
+    }
+
+    static SRecordImage decode(String text) {
+        return SRecordImage.decode(ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    public void testDecodeRanges() {
+        String s1a = record('1', 0x0100, 0x86, 0x41);
+        String s1b = record('1', 0x0102, 0x7E, 0xE0, 0xD0);
+        String s1c = record('1', 0x2000, 0x55);
+        String s9 = record('9', 0x0100);
+        SRecordImage img = decode(s1a + "\r\n" + s1b + "\r\n" + s1c + "\n" + s9 + "\n");
+        assertEquals(0, img.getBadRecordCount());
+        assertEquals(2, img.getRangeCount());
+        assertEquals(0x0100, img.getRangeStart(0));
+        assertEquals(5, img.getRangeLength(0));
+        assertEquals(0x2000, img.getRangeStart(1));
+        assertEquals(1, img.getRangeLength(1));
+        assertEquals(6, img.size());
+        assertEquals(0x0100, img.getEntryPoint());
+        assertArrayEquals((s1a + s1b + s1c + s9).getBytes(StandardCharsets.US_ASCII),
+                          img.getRecords());
+        byte mem[] = new byte[0x10000];
+        img.copyTo(mem, 0);
+        assertEquals((byte) 0x86, mem[0x0100]);
+        assertEquals((byte) 0xD0, mem[0x0104]);
+        assertEquals((byte) 0x55, mem[0x2000]);
+    }
+
+    @Test
+    public void testBadRecordsCounted() {
+        String good = record('1', 0x0100, 0x01, 0x02);
+        // Wrong checksum, still decoded
+        String badsum = good.substring(0, good.length() - 2) + "00";
+        String other = record('1', 0x0200, 0x03);
+        // Too short for its count, and not hex, both skipped
+        String shortrec = "S10A0300";
+        String nothex = "S1040300ZZ00";
+        SRecordImage img = decode(badsum + "\n" + other + "\n" + shortrec + "\n" +
+                                  nothex + "\nS9\n");
+        assertEquals(3, img.getBadRecordCount());
+        assertEquals(2, img.getRangeCount());
+        assertEquals(0x0100, img.getRangeStart(0));
+        assertEquals(2, img.getRangeLength(0));
+        assertEquals(0x0200, img.getRangeStart(1));
+        assertEquals(-1, img.getEntryPoint());
+    }
+
+    @Test
+    public void testLabelAndNotes() {
+        String rec = record('1', 0x0100, 0x01);
+        SRecordImage img = decode("LABEL=Star Trek\r\nLoad at 0100\n" + rec +
+                                  "\nLABEL=not a label\n");
+        assertEquals("Star Trek", img.getLabel());
+        assertEquals("Load at 0100\nLABEL=not a label\n", img.getNotes());
+        assertEquals(1, img.getRangeCount());
+
+        img = decode(rec + "\nLABEL=too late\n");
+        assertNull(img.getLabel());
+        assertEquals("LABEL=too late\n", img.getNotes());
+    }
+
+    @Test
+    public void testCopyToClips() {
+        SRecordImage img = decode(record('1', 0x0FFE, 1, 2, 3, 4) + "\n");
+        byte dst[] = new byte[4];
+        // Only the end of the range lands in dst
+        img.copyTo(dst, 0x1000);
+        assertArrayEquals(new byte[] { 3, 4, 0, 0 }, dst);
+        // Only the start of the range lands in dst
+        dst = new byte[3];
+        img.copyTo(dst, 0x0FFC);
+        assertArrayEquals(new byte[] { 0, 0, 1 }, dst);
+        // Entirely outside of dst
+        dst = new byte[2];
+        img.copyTo(dst, 0x2000);
+        assertArrayEquals(new byte[] { 0, 0 }, dst);
+    }
+
+    @Test
+    public void testSidecar() throws IOException {
+        SRecordImage img = decode("LABEL=Cached\nnote\n" +
+                                  record('1', 0x0100, 1, 2, 3) + "\n" +
+                                  record('1', 0x0200, 4) + "\n" +
+                                  record('9', 0x0100) + "\n");
+        Path dir = Files.createTempDirectory("srecord-test");
+        File sidecar = new File(dir.toFile(), "image.bin");
+        try {
+            img.writeSidecar(sidecar, 100, 12345);
+            SRecordImage cached = SRecordImage.readSidecar(sidecar.toPath(), 100, 12345);
+            assertNotNull(cached);
+            assertEquals(img.getChecksum(), cached.getChecksum());
+            assertEquals(img.getRangeCount(), cached.getRangeCount());
+            assertEquals(img.getEntryPoint(), cached.getEntryPoint());
+            assertArrayEquals(img.getRecords(), cached.getRecords());
+            assertEquals("Cached", cached.getLabel());
+            assertEquals("note\n", cached.getNotes());
+            // A source of another length or content is decoded again
+            assertNull(SRecordImage.readSidecar(sidecar.toPath(), 101, 12345));
+            assertNull(SRecordImage.readSidecar(sidecar.toPath(), 100, 12346));
+            // So is a truncated sidecar
+            Files.write(sidecar.toPath(), new byte[10]);
+            assertNull(SRecordImage.readSidecar(sidecar.toPath(), 100, 12345));
+        } finally {
+            Files.deleteIfExists(sidecar.toPath());
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    @Test
+    public void testCacheDirIsPrivateByDefault() {
+        String saved = System.getProperty(SRecordImage.CACHE_DIR_PROPERTY);
+        try {
+            System.clearProperty(SRecordImage.CACHE_DIR_PROPERTY);
+            File home = new File(System.getProperty("user.home"));
+            assertEquals(home, SRecordImage.cacheDir().getParentFile().getParentFile());
+            System.setProperty(SRecordImage.CACHE_DIR_PROPERTY, "elsewhere");
+            assertEquals(new File("elsewhere"), SRecordImage.cacheDir());
+        } finally {
+            if (saved == null) {
+                System.clearProperty(SRecordImage.CACHE_DIR_PROPERTY);
+            } else {
+                System.setProperty(SRecordImage.CACHE_DIR_PROPERTY, saved);
+            }
+        }
+    }
+}
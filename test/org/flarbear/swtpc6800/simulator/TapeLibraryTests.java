@@ -0,0 +1,222 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of scanning, indexing and watching the tape directory.
+ */
+public class TapeLibraryTests {
+    private static final String TAPE =
+        "LABEL=Test Tape\n" +
+        SRecordImageTests.record('1', 0x0100, 0x86, 0x41) + "\n" +
+        SRecordImageTests.record('1', 0x0200, 0x55) + "\n" +
+        SRecordImageTests.record('9', 0x0100) + "\n";
+
+    private Path root;
+    private Path tapeDir;
+    private String savedCacheDir;
+
+    // Runs a test with the tape directory and the cache in a fresh
+    // temporary directory
+    private interface Body {
+        public void run() throws Exception;
+    }
+
+    private void withTempDirs(Body body) throws Exception {
+        root = Files.createTempDirectory("tape-library-test");
+        tapeDir = Files.createDirectory(root.resolve("tapes"));
+        savedCacheDir = System.getProperty(SRecordImage.CACHE_DIR_PROPERTY);
+        System.setProperty(SRecordImage.CACHE_DIR_PROPERTY, root.resolve("cache").toString());
+        try {
+            body.run();
+        } finally {
+            if (savedCacheDir == null) {
+                System.clearProperty(SRecordImage.CACHE_DIR_PROPERTY);
+            } else {
+                System.setProperty(SRecordImage.CACHE_DIR_PROPERTY, savedCacheDir);
+            }
+            try (Stream<Path> s = Files.walk(root)) {
+                s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static BlockingQueue<List<TapeLibrary.Entry>> listen(TapeLibrary lib) {
+        BlockingQueue<List<TapeLibrary.Entry>> q = new LinkedBlockingQueue<>();
+        lib.addListener(q::add);
+        return q;
+    }
+
+    private static List<TapeLibrary.Entry> next(BlockingQueue<List<TapeLibrary.Entry>> q)
+        throws InterruptedException
+    {
+        List<TapeLibrary.Entry> entries = q.poll(10, TimeUnit.SECONDS);
+        assertNotNull("no update from the library", entries);
+        return entries;
+    }
+
+    private static TapeLibrary.Entry find(List<TapeLibrary.Entry> entries, Path p) {
+        String source = p.toAbsolutePath().toString();
+        for (TapeLibrary.Entry e : entries) {
+            if (e.getSource().equals(source)) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private Path writeTape(String name) throws IOException {
+        return Files.write(tapeDir.resolve(name), TAPE.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        withTempDirs(() -> {
+            Path tape = writeTape("test.S19");
+            Files.write(tapeDir.resolve("notes.txt"), new byte[] { 'x' });
+            TapeLibrary lib = new TapeLibrary(tapeDir);
+            BlockingQueue<List<TapeLibrary.Entry>> q = listen(lib);
+            lib.start();
+            try {
+                List<TapeLibrary.Entry> entries = next(q);
+                assertEquals(TapeLibrary.BUNDLED_TAPES.length + 1, entries.size());
+                assertEquals(entries, lib.getEntries());
+                for (int i = 0; i < TapeLibrary.BUNDLED_TAPES.length; i++) {
+                    assertTrue(entries.get(i).isBundled());
+                    assertEquals(TapeLibrary.BUNDLED_TAPES[i], entries.get(i).getSource());
+                }
+                TapeLibrary.Entry e = find(entries, tape);
+                assertNotNull(e);
+                assertFalse(e.isBundled());
+                assertEquals("Test Tape", e.getLabel());
+                assertEquals(TAPE.length(), e.getSize());
+                assertEquals(2, e.getRangeCount());
+                assertEquals(0x0100, e.getRangeStart(0));
+                assertEquals(2, e.getRangeLength(0));
+                assertEquals(0x0200, e.getRangeStart(1));
+                assertEquals(0x0100, e.getEntryPoint());
+                CRC32 crc = new CRC32();
+                crc.update(TAPE.getBytes(StandardCharsets.US_ASCII));
+                assertEquals(crc.getValue(), e.getChecksum());
+                byte mem[] = new byte[0x10000];
+                e.load().copyTo(mem, 0);
+                assertEquals(0x41, mem[0x0101]);
+            } finally {
+                lib.stop();
+            }
+        });
+    }
+
+    @Test
+    public void testIndexIsReadBack() throws Exception {
+        withTempDirs(() -> {
+            Path tape = writeTape("test.S19");
+            TapeLibrary first = new TapeLibrary(tapeDir);
+            BlockingQueue<List<TapeLibrary.Entry>> q1 = listen(first);
+            first.start();
+            next(q1);
+            first.stop();
+            assertTrue(Files.isRegularFile(root.resolve("cache").resolve("tape-index.bin")));
+
+            // The second library publishes what the index says before it
+            // has scanned anything, so it still lists the deleted tape
+            // until its own scan catches up
+            Files.delete(tape);
+            TapeLibrary second = new TapeLibrary(tapeDir);
+            BlockingQueue<List<TapeLibrary.Entry>> q2 = listen(second);
+            second.start();
+            try {
+                TapeLibrary.Entry e = find(next(q2), tape);
+                assertNotNull(e);
+                assertEquals("Test Tape", e.getLabel());
+                List<TapeLibrary.Entry> rescanned = next(q2);
+                assertNull(find(rescanned, tape));
+                assertEquals(TapeLibrary.BUNDLED_TAPES.length, rescanned.size());
+            } finally {
+                second.stop();
+            }
+        });
+    }
+
+    @Test
+    public void testDamagedIndexIsRebuilt() throws Exception {
+        withTempDirs(() -> {
+            Path tape = writeTape("test.S19");
+            Path index = Files.createDirectory(root.resolve("cache")).resolve("tape-index.bin");
+            // The right header and a huge count, then nothing
+            Files.write(index, new byte[] {
+                'T', 'I', 'D', 'X', 0, 0, 0, 1, 0x7f, 0, 0, 0,
+            });
+            TapeLibrary lib = new TapeLibrary(tapeDir);
+            BlockingQueue<List<TapeLibrary.Entry>> q = listen(lib);
+            lib.start();
+            try {
+                List<TapeLibrary.Entry> entries = next(q);
+                assertEquals(TapeLibrary.BUNDLED_TAPES.length + 1, entries.size());
+                assertNotNull(find(entries, tape));
+            } finally {
+                lib.stop();
+            }
+
+            // and was replaced by a good one
+            TapeLibrary again = new TapeLibrary(tapeDir);
+            BlockingQueue<List<TapeLibrary.Entry>> q2 = listen(again);
+            again.start();
+            try {
+                assertNotNull(find(next(q2), tape));
+            } finally {
+                again.stop();
+            }
+        });
+    }
+
+    @Test
+    public void testWatchesTapeDirectory() throws Exception {
+        withTempDirs(() -> {
+            TapeLibrary lib = new TapeLibrary(tapeDir);
+            BlockingQueue<List<TapeLibrary.Entry>> q = listen(lib);
+            lib.start();
+            try {
+                assertEquals(TapeLibrary.BUNDLED_TAPES.length, next(q).size());
+                // Give the scanner time to register the watch
+                Thread.sleep(500);
+
+                Path tape = writeTape("added.S19");
+                List<TapeLibrary.Entry> entries = next(q);
+                while (find(entries, tape) == null) {
+                    entries = next(q);
+                }
+                assertEquals("Test Tape", find(entries, tape).getLabel());
+
+                Files.delete(tape);
+                entries = next(q);
+                while (find(entries, tape) != null) {
+                    entries = next(q);
+                }
+                assertEquals(TapeLibrary.BUNDLED_TAPES.length, entries.size());
+            } finally {
+                lib.stop();
+            }
+        });
+    }
+}
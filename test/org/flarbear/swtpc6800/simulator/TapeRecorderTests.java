@@ -0,0 +1,101 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static org.flarbear.swtpc6800.simulator.SRecordImageTests.record;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests of the punched tape recorder and its S-record decoder.
+ */
+public class TapeRecorderTests {
+    private static SRecordImage punch(String text) throws IOException {
+        Path file = Files.createTempFile("tape-test", ".s19");
+        try {
+            TapeRecorder recorder = new TapeRecorder(file, true);
+            byte bytes[] = text.getBytes(StandardCharsets.US_ASCII);
+            recorder.write(bytes, 0, bytes.length);
+            recorder.close();
+            assertArrayEquals(bytes, Files.readAllBytes(file));
+            return recorder.getImage();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testLongestRecord() throws IOException {
+        int data[] = new int[252];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        String rec = record('1', 0x1000, data);
+        assertEquals(2 + 2 + 255 * 2, rec.length());
+        SRecordImage img = punch(rec + "\r\n" + record('9', 0x1000) + "\r\n");
+        assertEquals(0, img.getBadRecordCount());
+        assertEquals(1, img.getRangeCount());
+        assertEquals(0x1000, img.getRangeStart(0));
+        assertEquals(252, img.getRangeLength(0));
+        assertEquals(0x1000, img.getEntryPoint());
+    }
+
+    @Test
+    public void testBackToBackRecords() throws IOException {
+        SRecordImage img = punch(record('1', 0x0100, 1, 2) + record('1', 0x0102, 3) +
+                                 record('9', 0x0100));
+        assertEquals(0, img.getBadRecordCount());
+        assertEquals(1, img.getRangeCount());
+        assertEquals(3, img.getRangeLength(0));
+    }
+
+    @Test
+    public void testFromMemoryRecords() {
+        byte mem[] = new byte[0x10000];
+        long loaded[] = new long[0x10000 / 64];
+        for (int a = 0x0100; a < 0x0124; a++) {
+            mem[a] = (byte) (a * 7);
+            loaded[a >> 6] |= 1L << a;
+        }
+        // A range that crosses from one word of the bitmap to the next
+        for (int a = 0x0FFF; a <= 0x1000; a++) {
+            mem[a] = (byte) 0xA5;
+            loaded[a >> 6] |= 1L << a;
+        }
+        SRecordImage img = SRecordImage.fromMemory(mem, loaded, 0x0100, 2, "MEM");
+        assertEquals(2, img.getRangeCount());
+        assertEquals(0x0100, img.getRangeStart(0));
+        assertEquals(0x24, img.getRangeLength(0));
+        assertEquals(0x0FFF, img.getRangeStart(1));
+        assertEquals(2, img.getRangeLength(1));
+        assertEquals(2, img.getBadRecordCount());
+        assertEquals("MEM", img.getLabel());
+
+        // Split the records up by their counts and decode them again
+        String recs = new String(img.getRecords(), StandardCharsets.US_ASCII);
+        StringBuilder lines = new StringBuilder();
+        int nrecs = 0;
+        for (int i = 0; i < recs.length(); nrecs++) {
+            int count = Integer.parseInt(recs.substring(i + 2, i + 4), 16);
+            int end = i + 4 + count * 2;
+            lines.append(recs, i, end).append('\n');
+            i = end;
+        }
+        // 16 + 16 + 4 bytes, 2 bytes and the S9
+        assertEquals(5, nrecs);
+        SRecordImage again = SRecordImageTests.decode(lines.toString());
+        assertEquals(0, again.getBadRecordCount());
+        assertEquals(0x0100, again.getEntryPoint());
+        assertEquals(img.getChecksum(), again.getChecksum());
+        byte copy[] = new byte[0x10000];
+        again.copyTo(copy, 0);
+        assertArrayEquals(mem, copy);
+    }
+}
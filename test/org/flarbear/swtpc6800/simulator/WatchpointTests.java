@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of watchpoints on the system bus.
+ */
+public class WatchpointTests {
+    private static final int PROGRAM[] = {
+        0xB6, 0x10, 0xF8,       // 0100 LDAA $10F8
+        0xB7, 0x11, 0x08,       // 0103 STAA $1108
+        0x86, 0x42,             // 0106 LDAA #$42
+        0xB7, 0x10, 0xFF,       // 0108 STAA $10FF
+        0xB7, 0x12, 0x00,       // 010B STAA $1200
+        0x20, 0xFE,             // 010E BRA *
+    };
+
+    // Watches $10F0-$1110, which is in two pages
+    private static final int START = 0x10F0;
+    private static final int END = 0x1110;
+
+    private static final class Log implements Watchpoint.Listener {
+        final List<String> accesses = new ArrayList<>();
+
+        @Override
+        public void accessed(Watchpoint w, char addr, byte data, boolean write) {
+            accesses.add(String.format("%s %04X %02X", write ? "W" : "R", (int) addr, data & 0xff));
+        }
+    }
+
+    private static Machine bootedMachine() {
+        Machine m = MachineBuilder.standard().realTime(false).build();
+        m.runFor(200000);
+        for (int i = 0; i < PROGRAM.length; i++) {
+            m.store(0x0100 + i, (byte) PROGRAM[i]);
+        }
+        m.store(0x10F8, (byte) 0x07);
+        return m;
+    }
+
+    private static void runProgram(Machine m) {
+        m.getProcessor().jumpTo((char) 0x0100);
+        m.runFor(1000);
+    }
+
+    @Test
+    public void testReadsAndWrites() {
+        Machine m = bootedMachine();
+        Log reads = new Log();
+        Log writes = new Log();
+        Log both = new Log();
+        Watchpoint r = new Watchpoint(START, END, Watchpoint.READ, null, reads);
+        Watchpoint w = new Watchpoint(START, END, Watchpoint.WRITE, null, writes);
+        Watchpoint rw = new Watchpoint(START, END, Watchpoint.READ | Watchpoint.WRITE, null, both);
+        m.addWatchpoint(r);
+        m.addWatchpoint(w);
+        m.addWatchpoint(rw);
+        runProgram(m);
+
+        assertEquals(List.of("R 10F8 07"), reads.accesses);
+        assertEquals(List.of("W 1108 07", "W 10FF 42"), writes.accesses);
+        assertEquals(List.of("R 10F8 07", "W 1108 07", "W 10FF 42"), both.accesses);
+        assertEquals(1, r.getHitCount());
+        assertEquals(2, w.getHitCount());
+        assertEquals(3, rw.getHitCount());
+        // The watched pages still reach the memory behind them
+        assertEquals(0x07, m.load(0x1108));
+        assertEquals(0x42, m.load(0x10FF));
+    }
+
+    @Test
+    public void testOnlyPagesInRangeAreWatched() {
+        Machine m = bootedMachine();
+        SWTPc6800 system = m.getSystem();
+        m.addWatchpoint(new Watchpoint(START, END, Watchpoint.WRITE, null, new Log()));
+        assertFalse(system.isWatched(START - 0x100));
+        assertTrue(system.isWatched(START));
+        assertTrue(system.isWatched(END));
+        assertFalse(system.isWatched(END + 0x100));
+    }
+
+    @Test
+    public void testDataCondition() {
+        Machine m = bootedMachine();
+        Log log = new Log();
+        m.addWatchpoint(new Watchpoint(START, END, Watchpoint.WRITE, d -> d == 0x42, log));
+        runProgram(m);
+        assertEquals(List.of("W 10FF 42"), log.accesses);
+    }
+
+    @Test
+    public void testRemoveRestoresPageHandler() {
+        Machine m = bootedMachine();
+        SWTPc6800 system = m.getSystem();
+        Log log = new Log();
+        Watchpoint wide = new Watchpoint(START, END, Watchpoint.WRITE, null, log);
+        Watchpoint narrow = new Watchpoint(0x1108, 0x1108, Watchpoint.WRITE, null, log);
+        m.addWatchpoint(wide);
+        m.addWatchpoint(narrow);
+
+        // The other watchpoint still needs the second page
+        m.removeWatchpoint(wide);
+        assertFalse(system.isWatched(START));
+        assertTrue(system.isWatched(END));
+        m.removeWatchpoint(narrow);
+        assertFalse(system.isWatched(END));
+
+        runProgram(m);
+        assertTrue(log.accesses.isEmpty());
+        assertEquals(0x42, m.load(0x10FF));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testFlatMemoryCannotBeWatched() {
+        Machine m = new MachineBuilder().flatMemory().realTime(false).build();
+        m.addWatchpoint(new Watchpoint(START, END, Watchpoint.WRITE, null, new Log()));
+    }
+}
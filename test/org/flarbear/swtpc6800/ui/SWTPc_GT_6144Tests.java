@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022, Jim Graham, Flarbear Widgets
+ */
+
+package org.flarbear.swtpc6800.ui;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that the GT-6144 keeps getting frames while it is being drawn on.
+ */
+public class SWTPc_GT_6144Tests {
+    private static final class Display extends SWTPc_GT_6144 {
+        private static final long serialVersionUID = 1L;
+
+        volatile CountDownLatch repainted = new CountDownLatch(1);
+
+        @Override
+        void repaintCells(int row0, int col0, int row1, int col1) {
+            super.repaintCells(row0, col0, row1, col1);
+            repainted.countDown();
+        }
+    }
+
+    // Flips the dot at row, col from the processor side
+    private static void flip(SWTPc_GT_6144 gt, int row, int col) {
+        boolean write = (gt.pixels[row] & (1L << col)) == 0;
+        gt.transition((byte) (col | (write ? SWTPc_GT_6144.RW_DATA_BIT : 0)), false, false);
+        gt.transition((byte) (SWTPc_GT_6144.FF_LOAD_BIT | row), false, false);
+    }
+
+    @Test
+    public void testDrawingWhileFramesFlush() throws Exception {
+        Display gt = new Display();
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        Thread drawer = new Thread(() -> {
+            int n = 0;
+            while (System.nanoTime() < end) {
+                flip(gt, n % SWTPc_GT_6144.ROWS, (n / SWTPc_GT_6144.ROWS) % SWTPc_GT_6144.COLS);
+                n++;
+                if ((n & 0xff) == 0) {
+                    Thread.yield();
+                }
+            }
+        });
+        drawer.start();
+        drawer.join();
+
+        // A frame lost while the drawing raced the flushes would leave
+        // this dot on the screen and never repainted
+        for (int i = 0; i < 10; i++) {
+            gt.repainted = new CountDownLatch(1);
+            flip(gt, 0, 0);
+            assertTrue(gt.repainted.await(2, TimeUnit.SECONDS));
+        }
+    }
+}